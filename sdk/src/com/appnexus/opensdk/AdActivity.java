@@ -26,7 +26,6 @@ import android.os.Build;
 import android.os.Bundle;
 import android.os.Handler;
 import android.os.Message;
-import android.util.Pair;
 import android.view.*;
 import android.webkit.CookieSyncManager;
 import android.webkit.WebView;
@@ -57,7 +56,6 @@ public class AdActivity extends Activity {
 
     protected FrameLayout layout;
     private WebView webView;
-    private long now;
     private boolean close_added = false;
     private static AdActivity current_ad_activity = null;
     private MRAIDImplementation mraidFullscreenImplementation = null;
@@ -94,8 +92,6 @@ public class AdActivity extends Activity {
             setContentView(layout);
 
             setIAdView(InterstitialAdView.INTERSTITIALADVIEW_TO_USE);
-            now = getIntent().getLongExtra(InterstitialAdView.INTENT_KEY_TIME,
-                    System.currentTimeMillis());
             int closeButtonDelay = getIntent().getIntExtra(
                     InterstitialAdView.INTENT_KEY_CLOSE_BUTTON_DELAY,
                     Settings.getSettings().DEFAULT_INTERSTITIAL_CLOSE_BUTTON_DELAY);
@@ -207,16 +203,11 @@ public class AdActivity extends Activity {
             if (av.getParent() != null) {
                 ((ViewGroup) av.getParent()).removeAllViews();
             }
-            Pair<Long, Displayable> p = InterstitialAdView.q.poll();
-            while (p != null && p.second != null
-                    && now - p.first > InterstitialAdView.MAX_AGE) {
-                Clog.w(Clog.baseLogTag, Clog.getString(R.string.too_old));
-                p = InterstitialAdView.q.poll();
-            }
-            if ((p == null) || (p.second == null)
-                    || !(p.second.getView() instanceof WebView))
+            Displayable d = InterstitialAdQueue.poll(av.getPlacementID());
+            av.refill();
+            if ((d == null) || !(d.getView() instanceof WebView))
                 return;
-            webView = (WebView) p.second.getView();
+            webView = (WebView) d.getView();
             layout.addView(webView);
         }
 
@@ -0,0 +1,175 @@
+/*
+ *    Copyright 2013 APPNEXUS INC
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.appnexus.opensdk;
+
+import android.annotation.SuppressLint;
+import android.os.AsyncTask;
+import android.os.Build;
+import android.util.Pair;
+import com.appnexus.opensdk.utils.Clog;
+import com.appnexus.opensdk.utils.Settings;
+
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Keeps already fetched ad responses ready to be shown, keyed by
+ * placement, size and targeting.  Entries expire after the server's
+ * Cache-Control max-age, or Settings.AD_CACHE_TTL if none was sent, and
+ * the least recently used entries are dropped beyond
+ * Settings.AD_CACHE_SIZE.  Each entry is shown at most once.
+ */
+class AdCache {
+    private static final LinkedHashMap<String, Entry> entries
+            = new LinkedHashMap<String, Entry>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+            return size() > Settings.getSettings().AD_CACHE_SIZE;
+        }
+    };
+
+    // keys with a prefetch request on the wire
+    private static final HashSet<String> inFlight = new HashSet<String>();
+
+    private static class Entry {
+        final AdResponse response;
+        final long expiresAt;
+
+        Entry(AdResponse response, long expiresAt) {
+            this.response = response;
+            this.expiresAt = expiresAt;
+        }
+    }
+
+    /**
+     * Builds the cache key for the ad the owner would request right now.
+     */
+    static String keyFor(AdView owner) {
+        StringBuilder sb = new StringBuilder();
+        sb.append(owner.getPlacementID()).append('|');
+        if (owner.isBanner()) {
+            BannerAdView bav = (BannerAdView) owner;
+            sb.append(bav.getAdWidth()).append('x').append(bav.getAdHeight()).append('|');
+        }
+        sb.append(owner.getContainerWidth()).append('x')
+                .append(owner.getContainerHeight()).append('|');
+
+        // everything else that changes the request goes into one hash
+        StringBuilder targeting = new StringBuilder();
+        targeting.append(owner.getAge()).append(',')
+                .append(owner.getGender()).append(',')
+                .append(owner.getReserve()).append(',')
+                .append(owner.getShouldServePSAs()).append(',')
+                .append(owner.getOpensNativeBrowser());
+        if (owner.getCustomKeywords() != null) {
+            for (Pair<String, String> pair : owner.getCustomKeywords()) {
+                targeting.append(',').append(pair.first).append('=').append(pair.second);
+            }
+        }
+        sb.append(Integer.toHexString(targeting.toString().hashCode()));
+        return sb.toString();
+    }
+
+    /**
+     * Removes and returns the live entry for key, or null if there is
+     * none.
+     */
+    static synchronized AdResponse take(String key) {
+        purgeExpired();
+        Entry entry = entries.remove(key);
+        if (entry == null) {
+            Clog.v(Clog.baseLogTag, R.string.ad_cache_miss, key);
+            return null;
+        }
+        Clog.d(Clog.baseLogTag, R.string.ad_cache_hit, key);
+        return entry.response;
+    }
+
+    static synchronized void put(String key, AdResponse response) {
+        long ttl = response.getMaxAge() >= 0 ? response.getMaxAge()
+                : Settings.getSettings().AD_CACHE_TTL;
+        if (ttl <= 0) return;
+
+        purgeExpired();
+        entries.put(key, new Entry(response, System.currentTimeMillis() + ttl));
+        Clog.d(Clog.baseLogTag, R.string.ad_cache_stored, key, (int) ttl);
+    }
+
+    /**
+     * Starts a background request for key unless an entry is already
+     * waiting or a prefetch is on the wire.
+     */
+    @SuppressLint("NewApi")
+    static void refill(AdView owner, String key) {
+        synchronized (AdCache.class) {
+            purgeExpired();
+            if (entries.containsKey(key) || inFlight.contains(key)) return;
+            inFlight.add(key);
+        }
+
+        AdRequest request = new AdRequest(new PrefetchRequester(owner, key));
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB) {
+            request.executeOnExecutor(AsyncTask.THREAD_POOL_EXECUTOR);
+        } else {
+            request.execute();
+        }
+    }
+
+    private static synchronized void done(String key) {
+        inFlight.remove(key);
+    }
+
+    private static void purgeExpired() {
+        long now = System.currentTimeMillis();
+        Iterator<Entry> it = entries.values().iterator();
+        while (it.hasNext()) {
+            if (it.next().expiresAt <= now) it.remove();
+        }
+    }
+
+    // fills the cache instead of showing the ad
+    private static class PrefetchRequester implements AdRequester {
+        private final AdView owner;
+        private final String key;
+
+        PrefetchRequester(AdView owner, String key) {
+            this.owner = owner;
+            this.key = key;
+        }
+
+        @Override
+        public void failed(AdRequest request) {
+            done(key);
+        }
+
+        @Override
+        public void onReceiveResponse(AdResponse response) {
+            done(key);
+            if ((response != null) && response.containsAds()) {
+                put(key, response);
+                AssetCache.prefetch(response.getContent());
+            }
+        }
+
+        @Override
+        public AdView getOwner() {
+            return owner;
+        }
+    }
+}
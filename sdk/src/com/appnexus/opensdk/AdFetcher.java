@@ -21,17 +21,24 @@ import android.app.Activity;
 import android.os.AsyncTask;
 import android.os.Build;
 import android.os.Handler;
+import android.os.Looper;
 import android.os.Message;
+import android.os.SystemClock;
+import android.view.View;
 import com.appnexus.opensdk.utils.Clog;
 import com.appnexus.opensdk.utils.Settings;
+import com.appnexus.opensdk.utils.StringUtil;
 
 import java.lang.ref.WeakReference;
-import java.util.concurrent.Executors;
-import java.util.concurrent.ScheduledExecutorService;
-import java.util.concurrent.TimeUnit;
+import java.util.ArrayList;
 
 class AdFetcher implements AdRequester {
-    private ScheduledExecutorService tasker;
+    // Refreshes are delayed messages on the main looper's queue, which
+    // every fetcher shares, so starting and stopping never creates threads
+    private static final int MSG_FETCH = 0;
+
+    private boolean isRunning = false;
+    private long nextFetchAt = -1;
     private final AdView owner;
     private int period = -1;
     private boolean autoRefresh;
@@ -40,6 +47,9 @@ class AdFetcher implements AdRequester {
     private long lastFetchTime = -1;
     private long timePausedAt = -1;
     private AdRequest adRequest;
+    // when the load now in progress began, for Metrics.Stage.TOTAL
+    private long loadStartedAt = -1;
+    private long responseMaxAge = -1;
 
     // Fires requests whenever it receives a message
     public AdFetcher(AdView owner) {
@@ -49,7 +59,7 @@ class AdFetcher implements AdRequester {
 
     void setPeriod(int period) {
         this.period = period;
-        if (tasker != null)
+        if (isRunning)
             shouldReset = true;
     }
 
@@ -63,17 +73,12 @@ class AdFetcher implements AdRequester {
             adRequest = null;
         }
 
-        if (tasker == null)
-            return;
-        tasker.shutdownNow();
-        try {
-            tasker.awaitTermination(period, TimeUnit.MILLISECONDS);
-        } catch (InterruptedException e) {
-            tasker = null;
+        if (!isRunning)
             return;
-        }
-        tasker = null;
-        Clog.d(Clog.baseLogTag, Clog.getString(R.string.stop));
+        handler.removeMessages(MSG_FETCH);
+        isRunning = false;
+        nextFetchAt = -1;
+        Clog.d(Clog.baseLogTag, R.string.stop);
         timePausedAt = System.currentTimeMillis();
 
     }
@@ -83,9 +88,9 @@ class AdFetcher implements AdRequester {
     }
 
     void start() {
-        Clog.d(Clog.baseLogTag, Clog.getString(R.string.start));
-        if (tasker != null) {
-            Clog.d(Clog.baseLogTag, Clog.getString(R.string.moot_restart));
+        Clog.d(Clog.baseLogTag, R.string.start);
+        if (isRunning) {
+            Clog.d(Clog.baseLogTag, R.string.moot_restart);
             requestFailed();
             return;
         }
@@ -93,20 +98,17 @@ class AdFetcher implements AdRequester {
     }
 
     private void makeTasker() {
-        // Start a Scheduler to execute recurring tasks
-        tasker = Executors
-                .newScheduledThreadPool(Settings.getSettings().FETCH_THREAD_COUNT);
-
-        // Get the period from the settings
-        final int msPeriod = period <= 0 ? 30 * 1000 : period;
+        isRunning = true;
 
         if (!getAutoRefresh()) {
-            Clog.v(Clog.baseLogTag,
-                    Clog.getString(R.string.fetcher_start_single));
+            Clog.v(Clog.baseLogTag, R.string.fetcher_start_single);
             // Request an ad once
-            tasker.schedule(new MessageRunnable(), 0, TimeUnit.SECONDS);
+            nextFetchAt = -1;
+            handler.sendEmptyMessage(MSG_FETCH);
         } else {
-            Clog.v(Clog.baseLogTag, Clog.getString(R.string.fetcher_start_auto));
+            Clog.v(Clog.baseLogTag, R.string.fetcher_start_auto);
+            // Get the period from the settings
+            int msPeriod = period <= 0 ? 30 * 1000 : period;
             // Start recurring ad requests
             long stall_temp;
             if (timePausedAt != -1 && lastFetchTime != -1) {
@@ -115,31 +117,25 @@ class AdFetcher implements AdRequester {
                 stall_temp = 0;
             }
 
-            final long stall = stall_temp;
-            Clog.v(Clog.baseLogTag,
-                    Clog.getString(R.string.request_delayed_by_x_ms, stall));
-            tasker.schedule(new Runnable() {
-                @Override
-                public void run() {
-                    Clog.v(Clog.baseLogTag, Clog.getString(
-                            R.string.request_delayed_by_x_ms, stall));
-                    tasker.scheduleAtFixedRate(new MessageRunnable(), 0,
-                            msPeriod, TimeUnit.MILLISECONDS);
-                }
-            }, stall, TimeUnit.MILLISECONDS);
+            long stall = Math.max(stall_temp, 0);
+            Clog.v(Clog.baseLogTag, R.string.request_delayed_by_x_ms, stall);
+            nextFetchAt = SystemClock.uptimeMillis() + stall;
+            handler.sendEmptyMessageAtTime(MSG_FETCH, nextFetchAt);
         }
     }
 
-    private class MessageRunnable implements Runnable {
-
-        @Override
-        public void run() {
-            Clog.v(Clog.baseLogTag,
-                    Clog.getString(R.string.handler_message_pass));
-            handler.sendEmptyMessage(0);
-
-        }
-
+    // Queue the next auto-refresh at a fixed rate from the last one
+    private void scheduleNextFetch() {
+        if (!isRunning || !getAutoRefresh() || (nextFetchAt == -1))
+            return;
+        // Get the period from the settings
+        int msPeriod = period <= 0 ? 30 * 1000 : period;
+        long now = SystemClock.uptimeMillis();
+        nextFetchAt += msPeriod;
+        // don't try to catch up on refreshes missed while the device slept
+        if (nextFetchAt < now)
+            nextFetchAt = now + msPeriod;
+        handler.sendEmptyMessageAtTime(MSG_FETCH, nextFetchAt);
     }
 
     // Create a handler which will receive the AsyncTasks and spawn them from
@@ -148,6 +144,7 @@ class AdFetcher implements AdRequester {
         private final WeakReference<AdFetcher> mFetcher;
 
         RequestHandler(AdFetcher f) {
+            super(Looper.getMainLooper());
             mFetcher = new WeakReference<AdFetcher>(f);
         }
 
@@ -159,8 +156,11 @@ class AdFetcher implements AdRequester {
             // If an MRAID ad is expanded in the owning view, do nothing with
             // this message
             AdFetcher fetcher = mFetcher.get();
-            if (fetcher == null
-                    || !fetcher.owner.isReadyToStart())
+            if (fetcher == null)
+                return;
+            Clog.v(Clog.baseLogTag, R.string.handler_message_pass);
+            fetcher.scheduleNextFetch();
+            if (!fetcher.owner.isReadyToStart())
                 return;
 
             // If we need to reset, reset.
@@ -173,12 +173,23 @@ class AdFetcher implements AdRequester {
 
             // Update last fetch time once
             if(fetcher.lastFetchTime!=-1){
-                Clog.d(Clog.baseLogTag,
-                        Clog.getString(
-                                R.string.new_ad_since,
-                                (int) (System.currentTimeMillis() - fetcher.lastFetchTime)));
+                Clog.d(Clog.baseLogTag, R.string.new_ad_since,
+                                (int) (System.currentTimeMillis() - fetcher.lastFetchTime));
             }
             fetcher.lastFetchTime = System.currentTimeMillis();
+            fetcher.loadStartedAt = SystemClock.elapsedRealtime();
+
+            // Serve a prefetched ad if there is one, and fetch the next
+            // one in the background either way
+            if (fetcher.owner.getPrefetchAds()) {
+                String key = AdCache.keyFor(fetcher.owner);
+                AdResponse cached = AdCache.take(key);
+                AdCache.refill(fetcher.owner, key);
+                if (cached != null) {
+                    fetcher.onReceiveResponse(cached);
+                    return;
+                }
+            }
 
             // Spawn an AdRequest
             fetcher.adRequest = new AdRequest(fetcher);
@@ -198,7 +209,7 @@ class AdFetcher implements AdRequester {
         this.autoRefresh = autoRefresh;
         // Restart with new autorefresh setting, but only if auto-refresh was
         // set to true
-        if (tasker != null) {
+        if (isRunning) {
             if (autoRefresh) {
                 stop();
                 start();
@@ -215,17 +226,37 @@ class AdFetcher implements AdRequester {
 
         if ((owner.getMediatedAds() != null) && !owner.getMediatedAds().isEmpty()) {
             // mediated
+            int parallelism = Settings.getSettings().MEDIATION_PARALLELISM;
+            MediatedAd next;
+            if (parallelism > 1) {
+                ArrayList<MediatedAd> ads = new ArrayList<MediatedAd>();
+                while (ads.size() < parallelism) {
+                    MediatedAd ad = popAvailableMediatedAd();
+                    if (ad == null) break;
+                    ads.add(ad);
+                }
+                if (ads.size() > 1) {
+                    new MediationGroup(owner.mAdFetcher, owner.getAdDispatcher(), ads.size())
+                            .start((Activity) owner.getContext(), owner.isBanner(), ads);
+                    return;
+                }
+                next = ads.isEmpty() ? null : ads.get(0);
+            } else {
+                next = popAvailableMediatedAd();
+            }
+
+            // a null ad fails the controller, which moves on to the next response
             if (owner.isBanner()) {
                 MediatedBannerAdViewController.create(
                         (Activity) owner.getContext(),
                         owner.mAdFetcher,
-                        owner.popMediatedAd(),
+                        next,
                         owner.getAdDispatcher());
             } else if (owner.isInterstitial()) {
                 MediatedInterstitialAdViewController.create(
                         (Activity) owner.getContext(),
                         owner.mAdFetcher,
-                        owner.popMediatedAd(),
+                        next,
                         owner.getAdDispatcher());
             }
         } else if ((response != null)
@@ -235,7 +266,7 @@ class AdFetcher implements AdRequester {
             output.loadAd(response);
             owner.getAdDispatcher().onAdLoaded(output);
         } else {
-            AdWebView output = new AdWebView(owner);
+            AdWebView output = WebViewPool.acquire(owner);
             output.loadAd(response);
             // standard
             if(owner.isBanner()){
@@ -248,13 +279,27 @@ class AdFetcher implements AdRequester {
         }
     }
 
+    // Adaptors already known to be missing are skipped without building a
+    // controller, unless the server wants to hear about it through a result_cb
+    private MediatedAd popAvailableMediatedAd() {
+        while ((owner.getMediatedAds() != null) && !owner.getMediatedAds().isEmpty()) {
+            MediatedAd ad = owner.popMediatedAd();
+            if ((ad != null) && (!StringUtil.isEmpty(ad.getResultCB())
+                    || !MediatedAdViewRegistry.isUnavailable(ad.getClassName()))) {
+                return ad;
+            }
+        }
+        return null;
+    }
+
     public void onReceiveResponse(final AdResponse response) {
         boolean responseHasAds = (response != null) && response.containsAds();
         boolean ownerHasAds = (owner.getMediatedAds() != null) && !owner.getMediatedAds().isEmpty();
 
         // no ads in the response and no old ads means no fill
         if (!responseHasAds && !ownerHasAds) {
-            Clog.w(Clog.httpRespLogTag, Clog.getString(R.string.response_no_ads));
+            Clog.w(Clog.httpRespLogTag, R.string.response_no_ads);
+            Metrics.count(Metrics.Counter.NO_FILLS);
             requestFailed();
             return;
         }
@@ -267,7 +312,7 @@ class AdFetcher implements AdRequester {
 
         // no ads in the response and no old ads means no fill
         if (!responseHasAds && !ownerHasAds) {
-            Clog.w(Clog.httpRespLogTag, Clog.getString(R.string.response_no_ads));
+            Clog.w(Clog.httpRespLogTag, R.string.response_no_ads);
             requestFailed();
             return;
         }
@@ -276,12 +321,15 @@ class AdFetcher implements AdRequester {
             // if non-mediated ad is overriding the list,
             // this will be null and skip the loop for mediation
             owner.setMediatedAds(response.getMediatedAds());
+            responseMaxAge = response.getMaxAge();
         }
 
+        final long receivedAt = SystemClock.elapsedRealtime();
         this.owner.handler.post(new Runnable() {
             @Override
             public void run() {
                 AdFetcher.this.dispatchResponse(response);
+                Metrics.since(Metrics.Stage.DISPATCH, receivedAt);
             }
         });
 
@@ -292,6 +340,36 @@ class AdFetcher implements AdRequester {
         return owner;
     }
 
+    // The owner's ad came from a batch request, so the next auto-refresh
+    // is due a full period from now
+    void resumeAfterBatch() {
+        stop();
+        lastFetchTime = System.currentTimeMillis();
+        timePausedAt = lastFetchTime;
+        if (getAutoRefresh() && owner.isBanner()
+                && (owner.getWindowVisibility() == View.VISIBLE)) {
+            ((BannerAdView) owner).start();
+        }
+    }
+
+    /**
+     * @return when the load now in progress began, or -1 if it was already
+     * taken
+     */
+    long takeLoadStart() {
+        long start = loadStartedAt;
+        loadStartedAt = -1;
+        return start;
+    }
+
+    /**
+     * @return the Cache-Control max-age of the last response with ads in
+     * ms, or -1 if it had none
+     */
+    long getResponseMaxAge() {
+        return responseMaxAge;
+    }
+
     public void clearDurations() {
         lastFetchTime = -1;
         timePausedAt = -1;
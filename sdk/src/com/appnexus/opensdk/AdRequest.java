@@ -19,36 +19,36 @@ package com.appnexus.opensdk;
 import java.io.IOException;
 import java.util.ArrayList;
 
+import org.apache.http.Header;
+import org.apache.http.HttpEntity;
 import org.apache.http.HttpResponse;
 import org.apache.http.StatusLine;
 import org.apache.http.client.ClientProtocolException;
 import org.apache.http.client.methods.HttpGet;
+import org.apache.http.client.methods.HttpPost;
+import org.apache.http.client.methods.HttpRequestBase;
 import org.apache.http.conn.ConnectTimeoutException;
 import org.apache.http.conn.HttpHostConnectException;
-import org.apache.http.impl.client.DefaultHttpClient;
-import org.apache.http.params.BasicHttpParams;
-import org.apache.http.params.HttpConnectionParams;
-import org.apache.http.params.HttpParams;
+import org.apache.http.entity.StringEntity;
 import org.apache.http.util.EntityUtils;
 
 import android.annotation.TargetApi;
 import android.content.Context;
-import android.content.pm.PackageManager;
 import android.content.res.Configuration;
 import android.location.Location;
-import android.location.LocationManager;
 import android.net.ConnectivityManager;
 import android.net.NetworkInfo;
 import android.net.Uri;
 import android.os.AsyncTask;
 import android.os.Build;
-import android.provider.Settings.Secure;
-import android.telephony.TelephonyManager;
+import android.os.SystemClock;
 import android.util.Pair;
 
 import com.appnexus.opensdk.InterstitialAdView.Size;
 import com.appnexus.opensdk.utils.Clog;
+import com.appnexus.opensdk.utils.HTTPEngine;
 import com.appnexus.opensdk.utils.HashingFunctions;
+import com.appnexus.opensdk.utils.RequestHistory;
 import com.appnexus.opensdk.utils.Settings;
 import com.appnexus.opensdk.utils.StringUtil;
 import com.appnexus.opensdk.utils.WebviewUtil;
@@ -59,25 +59,16 @@ class AdRequest extends AsyncTask<Void, Integer, AdResponse> {
     private final AdRequester requester;
     private AdListener adListener;
     private Context context;
-    private String hidmd5;
-    private String hidsha1;
-    private String devMake;
-    private String devModel;
-    private String carrier;
-    private boolean firstlaunch;
+    private DeviceContext.Snapshot device;
     private String lat;
     private String lon;
     private String locDataAge;
     private String locDataPrecision;
-    private String ua;
     private String orientation;
     private String allowedSizes;
-    private String mcc;
-    private String mnc;
     private String connection_type;
     private String dev_time; // Set at the time of the request
     private String dev_timezone;
-    private String language;
     private final String placementId;
     private String nativeBrowser;
     private String psa;
@@ -89,6 +80,7 @@ class AdRequest extends AsyncTask<Void, Integer, AdResponse> {
     private String age;
     private String gender;
     private ArrayList<Pair<String, String>> customKeywords;
+    private long createdAt = -1;
 
     private static final AdResponse HTTP_ERROR
             = new AdResponse(true);
@@ -123,26 +115,17 @@ class AdRequest extends AsyncTask<Void, Integer, AdResponse> {
                      AdListener adListener, boolean shouldServePSAs, boolean shouldRetry) {
         this.adListener = adListener;
         this.requester = requester;
+        String hidmd5 = null;
+        String hidsha1 = null;
         if (aid != null) {
             hidmd5 = HashingFunctions.md5(aid);
             hidsha1 = HashingFunctions.sha1(aid);
         }
-        devMake = Settings.getSettings().deviceMake;
-        devModel = Settings.getSettings().deviceModel;
-
-        // Get firstlaunch and convert it to a string
-        firstlaunch = Settings.getSettings().first_launch;
-        // Get ua, the user agent...
-        ua = Settings.getSettings().ua;
+        device = new DeviceContext.Snapshot(hidmd5, hidsha1, carrier, mcc, mnc);
 
         this.lat = lat;
         this.lon = lon;
 
-        this.carrier = carrier;
-
-        this.mnc = mnc;
-        this.mcc = mcc;
-
         this.width = width;
         this.height = height;
         this.maxWidth = maxWidth;
@@ -152,7 +135,6 @@ class AdRequest extends AsyncTask<Void, Integer, AdResponse> {
         this.dev_time = "" + System.currentTimeMillis();
 
         this.dev_timezone = Settings.getSettings().dev_timezone;
-        this.language = Settings.getSettings().language;
 
         this.placementId = placementId;
         this.psa = shouldServePSAs ? "1" : "0";
@@ -161,86 +143,19 @@ class AdRequest extends AsyncTask<Void, Integer, AdResponse> {
     }
 
     public AdRequest(AdRequester adRequester) {
+        createdAt = SystemClock.elapsedRealtime();
         owner = adRequester.getOwner();
         this.requester = adRequester;
         this.placementId = owner.getPlacementID();
         context = owner.getContext();
-        String aid = android.provider.Settings.Secure.getString(
-                context.getContentResolver(), Secure.ANDROID_ID);
-
-        // Do we have access to location?
-        if (context
-                .checkCallingOrSelfPermission("android.permission.ACCESS_FINE_LOCATION") == PackageManager.PERMISSION_GRANTED
-                || context
-                .checkCallingOrSelfPermission("android.permission.ACCESS_COARSE_LOCATION") == PackageManager.PERMISSION_GRANTED) {
-            // Get lat, long from any GPS information that might be currently
-            // available
-            LocationManager lm = (LocationManager) context
-                    .getSystemService(Context.LOCATION_SERVICE);
-            Location lastLocation = null;
-            for (String provider_name : lm.getProviders(true)) {
-                Location l = lm.getLastKnownLocation(provider_name);
-                if (l == null) {
-                    continue;
-                }
 
-                if (lastLocation == null) {
-                    lastLocation = l;
-                } else {
-                    if ( l.getTime() > 0 && lastLocation.getTime()>0) {
-                        if (l.getTime() > lastLocation.getTime()) {
-                            lastLocation = l;
-                        }
-                    }
-                }
-            }
-            if(lastLocation!=null){
-                lat = ""+lastLocation.getLatitude();
-                lon = ""+lastLocation.getLongitude();
-                locDataPrecision = ""+lastLocation.getAccuracy();
-                locDataAge = "" + (System.currentTimeMillis() - lastLocation.getTime());
-            }
-        } else {
-            Clog.w(Clog.baseLogTag,
-                    Clog.getString(R.string.permissions_missing_location));
-        }
-
-        // Do we have permission ACCESS_NETWORK_STATE?
-        if (context
-                .checkCallingOrSelfPermission("android.permission.ACCESS_NETWORK_STATE") != PackageManager.PERMISSION_GRANTED) {
-            Clog.e(Clog.baseLogTag,
-                    Clog.getString(R.string.permissions_missing_network_state));
-            fail();
-            this.cancel(true);
-            return;
-        }
+        // Only what comes from the view is read here, on the UI thread.
+        // Device parameters are collected in the background, see
+        // collectDeviceParams()
 
         // Get orientation, the current rotation of the device
         orientation = context.getResources().getConfiguration().orientation
                 == Configuration.ORIENTATION_LANDSCAPE ? "h" : "v";
-        // Get hidmd5, hidsha1, the device ID hashed
-        if (Settings.getSettings().hidmd5 == null) {
-            Settings.getSettings().hidmd5 = HashingFunctions.md5(aid);
-        }
-        hidmd5 = Settings.getSettings().hidmd5;
-        if (Settings.getSettings().hidsha1 == null) {
-            Settings.getSettings().hidsha1 = HashingFunctions.sha1(aid);
-        }
-        hidsha1 = Settings.getSettings().hidsha1;
-        // Get devMake, devModel, the Make and Model of the current device
-        devMake = Settings.getSettings().deviceMake;
-        devModel = Settings.getSettings().deviceModel;
-        // Get carrier
-        if (Settings.getSettings().carrierName == null) {
-            Settings.getSettings().carrierName = ((TelephonyManager) context
-                    .getSystemService(Context.TELEPHONY_SERVICE))
-                    .getNetworkOperatorName();
-        }
-        carrier = Settings.getSettings().carrierName;
-        // Get firstlaunch and convert it to a string
-        firstlaunch = Settings.getSettings().first_launch;
-        // Get ua, the user agent...
-        ua = Settings.getSettings().ua;
         // Get wxh
 
         if(owner.isBanner()){
@@ -251,37 +166,18 @@ class AdRequest extends AsyncTask<Void, Integer, AdResponse> {
         maxHeight = owner.getContainerHeight();
         maxWidth = owner.getContainerWidth();
 
-
-
-        if (Settings.getSettings().mcc == null
-                || Settings.getSettings().mnc == null) {
-            TelephonyManager tm = (TelephonyManager) context
-                    .getSystemService(Context.TELEPHONY_SERVICE);
-            String networkOperator = tm.getNetworkOperator();
-            if (networkOperator != null && networkOperator.length() >= 6) {
-                Settings.getSettings().mcc = networkOperator.substring(0, 3);
-                Settings.getSettings().mnc = networkOperator.substring(3);
-            }
-        }
-        mcc = Settings.getSettings().mcc;
-        mnc = Settings.getSettings().mnc;
-
-        ConnectivityManager cm = (ConnectivityManager) context
-                .getSystemService(Context.CONNECTIVITY_SERVICE);
-        NetworkInfo wifi = cm.getNetworkInfo(ConnectivityManager.TYPE_WIFI);
-        connection_type = wifi.isConnected() ? "wifi" : "wan";
-        dev_time = "" + System.currentTimeMillis();
-
         if (owner instanceof InterstitialAdView) {
             // Make string for allowed_sizes
-            allowedSizes = "";
+            StringBuilder sizesBuilder = new StringBuilder();
             ArrayList<Size> sizes = ((InterstitialAdView) owner).getAllowedSizes();
-            for (Size s : sizes) {
-                allowedSizes += "" + s.width() + "x" + s.height();
-                // If not last size, add a comma
-                if (sizes.indexOf(s) != sizes.size() - 1)
-                    allowedSizes += ",";
+            for (int i = 0; i < sizes.size(); i++) {
+                Size s = sizes.get(i);
+                // If not first size, add a comma
+                if (i > 0)
+                    sizesBuilder.append(',');
+                sizesBuilder.append(s.width()).append('x').append(s.height());
             }
+            allowedSizes = sizesBuilder.toString();
         }
 
         nativeBrowser = owner.getOpensNativeBrowser() ? "1" : "0";
@@ -306,11 +202,46 @@ class AdRequest extends AsyncTask<Void, Integer, AdResponse> {
                 gender = null;
             }
         }
-        customKeywords = owner.getCustomKeywords();
+        // copied, the view's list may change while we're in the background
+        if (owner.getCustomKeywords() != null) {
+            customKeywords = new ArrayList<Pair<String, String>>(owner.getCustomKeywords());
+        }
+    }
 
-        mcc = Settings.getSettings().mcc;
-        mnc = Settings.getSettings().mnc;
-        language = Settings.getSettings().language;
+    /**
+     * Gathers the parameters that don't come from the view. Called off
+     * the UI thread, before the URL is built.
+     *
+     * @return false if the request can't be made.
+     */
+    boolean collectDeviceParams() {
+        // already set by the test constructor
+        if (device != null) return true;
+
+        DeviceContext deviceContext = DeviceContext.getInstance(context);
+
+        // Do we have permission ACCESS_NETWORK_STATE?
+        if (!deviceContext.hasNetworkStatePermission()) {
+            Clog.e(Clog.baseLogTag, R.string.permissions_missing_network_state);
+            return false;
+        }
+
+        // Get the device parameters, already encoded
+        device = deviceContext.getSnapshot();
+
+        // Get lat, long from any GPS information that might be currently
+        // available
+        Location lastLocation = deviceContext.getLocation();
+        if(lastLocation!=null){
+            lat = ""+lastLocation.getLatitude();
+            lon = ""+lastLocation.getLongitude();
+            locDataPrecision = ""+lastLocation.getAccuracy();
+            locDataAge = "" + (System.currentTimeMillis() - lastLocation.getTime());
+        }
+
+        connection_type = deviceContext.getConnectionType();
+        dev_time = "" + System.currentTimeMillis();
+        return true;
     }
 
     private void fail() {
@@ -322,32 +253,28 @@ class AdRequest extends AsyncTask<Void, Integer, AdResponse> {
     }
 
     String getRequestUrl() {
-        StringBuilder sb;
-        sb = new StringBuilder(Settings.getSettings().BASE_URL);
-        sb.append("id=");
+        return Settings.getSettings().BASE_URL + getRequestParams(false);
+    }
+
+    /**
+     * @param post whether the parameters are for a POST body, which names
+     *             the session instead of repeating the device parameters
+     *             once the server has them
+     */
+    String getRequestParams(boolean post) {
+        StringBuilder sb = new StringBuilder("id=");
         if (placementId != null) {
             sb.append(Uri.encode(placementId));
         } else {
             sb.append("NO-PLACEMENT-ID");
         }
-        if (!StringUtil.isEmpty(hidmd5)) sb.append("&md5udid=").append(Uri.encode(hidmd5));
-        if (!StringUtil.isEmpty(hidsha1)) sb.append("&sha1udid=").append(Uri.encode(hidsha1));
-        if (!StringUtil.isEmpty(devMake)) sb.append("&devmake=").append(Uri.encode(devMake));
-        if (!StringUtil.isEmpty(devModel)) sb.append("&devmodel=").append(Uri.encode(devModel));
-        if (!StringUtil.isEmpty(carrier)) sb.append( "&carrier=").append(Uri.encode(carrier));
-        sb.append("&appid=");
-        if (!StringUtil.isEmpty(Settings.getSettings().app_id)) {
-            sb.append(Uri.encode(Settings.getSettings().app_id));
-        } else {
-            sb.append("NO-APP-ID");
-        }
-        if (firstlaunch) sb.append("&firstlaunch=true");
-        if (!StringUtil.isEmpty(lat) && !StringUtil.isEmpty(lon)) sb.append("&loc=").append(lat).append(",").append(lon);
-        if (!StringUtil.isEmpty(locDataAge)) sb.append("&loc_age=").append(locDataAge);
-        if (!StringUtil.isEmpty(locDataPrecision)) sb.append("&loc_prec=").append(locDataPrecision);
-        if (Settings.getSettings().test_mode) sb.append("&istest=true");
-        if (!StringUtil.isEmpty(ua)) sb.append("&ua=").append(Uri.encode(ua));
-        if (!StringUtil.isEmpty(orientation)) sb.append("&orientation=").append(orientation);
+        appendPlacementParams(sb);
+        appendSharedParams(sb, post);
+        return sb.toString();
+    }
+
+    // Parameters that describe this ad space rather than the device or user
+    private void appendPlacementParams(StringBuilder sb) {
         if (width > 0 && height > 0) sb.append("&size=").append(width).append("x").append(height);
         // complicated, don't change
         if (owner != null) {
@@ -361,20 +288,31 @@ class AdRequest extends AsyncTask<Void, Integer, AdResponse> {
             }
         }
         if (!StringUtil.isEmpty(allowedSizes)) sb.append("&promo_sizes=").append(allowedSizes);
-        if (!StringUtil.isEmpty(mcc)) sb.append("&mcc=").append(Uri.encode(mcc));
-        if (!StringUtil.isEmpty(mnc)) sb.append("&mnc=").append(Uri.encode(mnc));
-        if (!StringUtil.isEmpty(language)) sb.append("&language=").append(Uri.encode(language));
-        if (!StringUtil.isEmpty(dev_timezone)) sb.append("&devtz=").append(Uri.encode(dev_timezone));
-        if (!StringUtil.isEmpty(dev_time)) sb.append("&devtime=").append(Uri.encode(dev_time));
-        if (!StringUtil.isEmpty(connection_type)) sb.append("&connection_type=").append( Uri.encode(connection_type));
         if (!StringUtil.isEmpty(nativeBrowser)) sb.append("&native_browser=").append(nativeBrowser);
         if (!StringUtil.isEmpty(psa)) sb.append( "&psa=").append(psa);
         if (reserve>0) sb.append("&reserve=").append(reserve);
+    }
+
+    // Device, app and user parameters. A batch sends these once, from its
+    // first request, and the placement parameters as lists.
+    void appendSharedParams(StringBuilder sb, boolean post) {
+        if (post) {
+            // the device parameters go in the first request of a session,
+            // later ones only name it
+            sb.append("&session=").append(device.getSessionToken());
+            if (!device.isSessionKnown()) sb.append(device.getEncodedParams());
+        } else {
+            sb.append(device.getEncodedParams());
+        }
+        if (!StringUtil.isEmpty(lat) && !StringUtil.isEmpty(lon)) sb.append("&loc=").append(lat).append(",").append(lon);
+        if (!StringUtil.isEmpty(locDataAge)) sb.append("&loc_age=").append(locDataAge);
+        if (!StringUtil.isEmpty(locDataPrecision)) sb.append("&loc_prec=").append(locDataPrecision);
+        if (!StringUtil.isEmpty(orientation)) sb.append("&orientation=").append(orientation);
+        if (!StringUtil.isEmpty(dev_timezone)) sb.append("&devtz=").append(Uri.encode(dev_timezone));
+        if (!StringUtil.isEmpty(dev_time)) sb.append("&devtime=").append(Uri.encode(dev_time));
+        if (!StringUtil.isEmpty(connection_type)) sb.append("&connection_type=").append( Uri.encode(connection_type));
         if (!StringUtil.isEmpty(age)) sb.append("&age=").append(Uri.encode(age));
         if (!StringUtil.isEmpty(gender)) sb.append("&gender=").append(Uri.encode(gender));
-        sb.append("&format=json");
-        sb.append("&st=mobile_app");
-        sb.append("&sdkver=").append(Uri.encode(Settings.getSettings().sdkVersion));
 
         // add custom parameters if there are any
         if (customKeywords != null) {
@@ -387,83 +325,182 @@ class AdRequest extends AsyncTask<Void, Integer, AdResponse> {
                 }
             }
         }
+    }
 
-        return sb.toString();
+    String getPlacementId() {
+        return placementId;
+    }
+
+    DeviceContext.Snapshot getDevice() {
+        return device;
+    }
+
+    // "WxH" as the banner size and max_size parameters, or "" if not sent
+    String getSize() {
+        if (width > 0 && height > 0) return width + "x" + height;
+        return "";
+    }
+
+    String getMaxSize() {
+        if ((width < 0 || height < 0) && maxWidth > 0 && maxHeight > 0)
+            return maxWidth + "x" + maxHeight;
+        return "";
+    }
+
+    String getPsa() {
+        return psa;
+    }
+
+    float getReserve() {
+        return reserve;
+    }
+
+    String getNativeBrowser() {
+        return nativeBrowser;
     }
 
     @Override
     protected AdResponse doInBackground(Void... params) {
+        Metrics.since(Metrics.Stage.QUEUE, createdAt);
+        if (!collectDeviceParams()) {
+            return null;
+        }
         if (!hasNetwork(context)) {
-            Clog.e(Clog.httpReqLogTag,
-                    Clog.getString(R.string.no_connectivity));
+            Clog.e(Clog.httpReqLogTag, R.string.no_connectivity);
             return null;
         }
 
-        return doRequest();
-
+        AdResponse response = doRequest();
+        if ((response != null) && (context != null)) {
+            response.prepareCreative(context.getResources());
+        }
+        return response;
     }
 
     private AdResponse doRequest() {
-        String query_string = getRequestUrl();
+        String query_string;
+        String body = null;
+        if (Settings.getSettings().POST_REQUESTS) {
+            query_string = Settings.getSettings().BASE_URL;
+            body = getRequestParams(true);
+            Clog.setLastRequest(body);
+            Clog.d(Clog.httpReqLogTag, R.string.fetch_post, query_string, body);
+        } else {
+            query_string = getRequestUrl();
+            Clog.setLastRequest(query_string);
+            Clog.d(Clog.httpReqLogTag, R.string.fetch_url, query_string);
+        }
 
-        Clog.setLastRequest(query_string);
+        return executeRequest(query_string, body, device, placementId, new ResponseReader<AdResponse>() {
+            @Override
+            public AdResponse read(HttpEntity entity, Header[] headers) throws IOException {
+                if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB) {
+                    // parse straight off the socket, no intermediate body string
+                    AdResponse response = new AdResponse(entity.getContent(),
+                            EntityUtils.getContentCharSet(entity), headers);
+                    return response.isBlank() ? null : response;
+                }
+                String out = EntityUtils.toString(entity);
+                if (out.equals("")) {
+                    Clog.e(Clog.httpRespLogTag, R.string.response_blank);
+                    return null;
+                }
+                return new AdResponse(out, headers);
+            }
+        }, AdRequest.HTTP_ERROR);
+    }
 
-        Clog.d(Clog.httpReqLogTag,
-                Clog.getString(R.string.fetch_url, query_string));
+    // Turns a 200 response into the request's result
+    interface ResponseReader<T> {
+        T read(HttpEntity entity, Header[] headers) throws IOException;
+    }
 
+    /**
+     * Runs an ad call on the shared HTTP client. Returns httpError on a
+     * bad status, null if the call failed, otherwise whatever reader made
+     * of the response.  Every call is added to the RequestHistory.
+     *
+     * @param body    the form-encoded parameters to POST, or null to GET
+     *                the url
+     * @param session the device parameters the body refers to; the server
+     *                knows them after a 200 and has forgotten them after
+     *                any other status, so the next body sends them again
+     */
+    static <T> T executeRequest(String url, String body, DeviceContext.Snapshot session,
+                                String placementId, ResponseReader<T> reader, T httpError) {
         HttpResponse r = null;
-        String out = null;
+        T result;
+        long requestedAt = System.currentTimeMillis();
+        long start = SystemClock.elapsedRealtime();
+        int status = -1;
+        RequestHistory.takeResponseBody();
+        Metrics.count(Metrics.Counter.REQUESTS);
         try {
-            HttpParams p = new BasicHttpParams();
-            HttpConnectionParams.setConnectionTimeout(p,
-                    Settings.getSettings().HTTP_CONNECTION_TIMEOUT);
-            HttpConnectionParams.setSoTimeout(p,
-                    Settings.getSettings().HTTP_SOCKET_TIMEOUT);
-            HttpConnectionParams.setSocketBufferSize(p, 8192);
-            DefaultHttpClient h = new DefaultHttpClient(p);
-
-            HttpGet req = new HttpGet(query_string);
+            HttpRequestBase req;
+            if (body != null) {
+                HttpPost post = new HttpPost(url);
+                StringEntity entity = new StringEntity(body, "UTF-8");
+                entity.setContentType("application/x-www-form-urlencoded");
+                post.setEntity(entity);
+                req = post;
+            } else {
+                req = new HttpGet(url);
+            }
             req.setHeader("User-Agent", Settings.getSettings().ua);
-            r = h.execute(req);
+            r = HTTPEngine.execute(req);
+            long responseAt = SystemClock.elapsedRealtime();
+            Metrics.latency(Metrics.Stage.HTTP, responseAt - start);
+            if (r.getStatusLine() != null) {
+                status = r.getStatusLine().getStatusCode();
+            }
             if (!httpShouldContinue(r.getStatusLine())) {
-                return AdRequest.HTTP_ERROR;
+                return httpError;
             }
-            out = EntityUtils.toString(r.getEntity());
-            WebviewUtil.cookieSync(h.getCookieStore().getCookies());
+            result = reader.read(r.getEntity(), r.getAllHeaders());
+            Metrics.since(Metrics.Stage.PARSE, responseAt);
+            WebviewUtil.cookieSync(HTTPEngine.getClient().getCookieStore().getCookies());
         } catch (ClientProtocolException e) {
-            Clog.e(Clog.httpReqLogTag, Clog.getString(R.string.http_unknown));
+            Clog.e(Clog.httpReqLogTag, R.string.http_unknown);
             return null;
         } catch (ConnectTimeoutException e) {
-            Clog.e(Clog.httpReqLogTag, Clog.getString(R.string.http_timeout));
+            Clog.e(Clog.httpReqLogTag, R.string.http_timeout);
             return null;
         } catch (HttpHostConnectException he) {
-            Clog.e(Clog.httpReqLogTag, Clog.getString(
-                    R.string.http_unreachable, he.getHost().getHostName(), he
-                    .getHost().getPort()));
+            Clog.e(Clog.httpReqLogTag, R.string.http_unreachable,
+                    he.getHost().getHostName(), he.getHost().getPort());
             return null;
         } catch (IOException e) {
-            Clog.e(Clog.httpReqLogTag, Clog.getString(R.string.http_io));
+            Clog.e(Clog.httpReqLogTag, R.string.http_io);
             return null;
         } catch (SecurityException se) {
-            Clog.e(Clog.baseLogTag,
-                    Clog.getString(R.string.permissions_internet));
+            Clog.e(Clog.baseLogTag, R.string.permissions_internet);
             return null;
         } catch(IllegalArgumentException ie) {
-            Clog.e(Clog.httpReqLogTag, Clog.getString(R.string.http_unknown));
+            Clog.e(Clog.httpReqLogTag, R.string.http_unknown);
             return null;
         } catch (Exception e) {
             e.printStackTrace();
-            Clog.e(Clog.baseLogTag, Clog.getString(R.string.unknown_exception));
-            return null;
-        }
-        if (out.equals("")) {
-            Clog.e(Clog.httpRespLogTag, Clog.getString(R.string.response_blank));
+            Clog.e(Clog.baseLogTag, R.string.unknown_exception);
             return null;
+        } finally {
+            // drain what the reader skipped so the connection is reused
+            HTTPEngine.release(r);
+            // -1 is a cancelled or failed call, not an HTTP error
+            if ((status != -1) && (status != 200)) {
+                Metrics.count(Metrics.Counter.HTTP_ERRORS);
+            }
+            if ((body != null) && (session != null) && (status != -1)) {
+                session.setSessionKnown(status == 200);
+            }
+            RequestHistory.add(new RequestHistory.Record(requestedAt,
+                    SystemClock.elapsedRealtime() - start,
+                    (body != null) ? url + body : url, placementId, status,
+                    RequestHistory.takeResponseBody()));
         }
-        return new AdResponse(out, r.getAllHeaders());
+        return result;
     }
 
-    private boolean hasNetwork(Context context) {
+    static boolean hasNetwork(Context context) {
         if (context != null) {
             NetworkInfo ninfo = ((ConnectivityManager) context
                     .getSystemService(Context.CONNECTIVITY_SERVICE))
@@ -476,15 +513,14 @@ class AdRequest extends AsyncTask<Void, Integer, AdResponse> {
     }
 
 
-    private boolean httpShouldContinue(StatusLine statusLine) {
+    private static boolean httpShouldContinue(StatusLine statusLine) {
         if (statusLine == null)
             return false;
 
         int http_error_code = statusLine.getStatusCode();
         switch (http_error_code) {
             default:
-                Clog.d(Clog.httpRespLogTag,
-                        Clog.getString(R.string.http_bad_status, http_error_code));
+                Clog.d(Clog.httpRespLogTag, R.string.http_bad_status, http_error_code);
                 return false;
             case 200:
                 return true;
@@ -496,7 +532,7 @@ class AdRequest extends AsyncTask<Void, Integer, AdResponse> {
     protected void onPostExecute(AdResponse result) {
         // check for invalid responses
         if (result == null) {
-            Clog.v(Clog.httpRespLogTag, Clog.getString(R.string.no_response));
+            Clog.v(Clog.httpRespLogTag, R.string.no_response);
             fail();
             return; // http request failed
         }
@@ -516,7 +552,7 @@ class AdRequest extends AsyncTask<Void, Integer, AdResponse> {
     @Override
     protected void onCancelled(AdResponse adResponse) {
         super.onCancelled(adResponse);
-        Clog.w(Clog.httpRespLogTag, Clog.getString(R.string.cancel_request));
+        Clog.w(Clog.httpRespLogTag, R.string.cancel_request);
     }
 
 //   // Uncomment for unit tests
@@ -16,7 +16,12 @@
 
 package com.appnexus.opensdk;
 
-import android.annotation.SuppressLint;
+import android.annotation.TargetApi;
+import android.content.res.Resources;
+import android.os.Build;
+import android.util.JsonReader;
+import android.util.JsonToken;
+import android.util.MalformedJsonException;
 import com.appnexus.opensdk.utils.Clog;
 import com.appnexus.opensdk.utils.HTTPResponse;
 import com.appnexus.opensdk.utils.StringUtil;
@@ -26,10 +31,18 @@ import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
 
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.io.StringReader;
+import java.io.UnsupportedEncodingException;
 import java.util.LinkedList;
 import java.util.Locale;
 
-@SuppressLint("NewApi")
 class AdResponse {
     private String content;
     private int height;
@@ -43,6 +56,13 @@ class AdResponse {
 
     private boolean isHttpError = false;
 
+    private boolean isBlank = false;
+
+    // from Cache-Control, in milliseconds. -1 if the server didn't say
+    private long maxAge = -1;
+    // the page the WebView loads, see prepareCreative()
+    private volatile String creativeHtml = null;
+
     private static final String MRAID_JS_FILENAME = "mraid.js";
     private static final String RESPONSE_KEY_STATUS = "status";
     private static final String RESPONSE_KEY_ERROR_MESSAGE = "errorMessage";
@@ -57,10 +77,49 @@ class AdResponse {
     private static final String RESPONSE_KEY_ID = "id";
     private static final String RESPONSE_KEY_PARAM = "param";
     private static final String RESPONSE_KEY_RESULT_CB = "result_cb";
+    private static final String RESPONSE_KEY_BATCH = "batch";
+
+    private static final String RESPONSE_HEADER_CACHE_CONTROL = "Cache-Control";
 
     private static final String RESPONSE_VALUE_ERROR = "error";
     private static final String RESPONSE_VALUE_ANDROID = "android";
 
+    // how much of a streamed body is kept around for logging and Clog.getLastResponse()
+    private static final int MAX_CAPTURED_BODY_BYTES = 32 * 1024;
+
+    /**
+     * Parses the response straight from the HTTP stream, API 11+ only.
+     * Parsing stops as soon as the first standard ad or the android
+     * mediation handlers are read, so the rest of the body is never
+     * decoded.
+     *
+     * @throws IOException if the stream itself fails. Malformed JSON
+     *                     is logged, not thrown.
+     */
+    @TargetApi(Build.VERSION_CODES.HONEYCOMB)
+    AdResponse(InputStream body, String charset, Header[] headers) throws IOException {
+        maxAge = printHeaders(headers);
+
+        BodyCapture capture = new BodyCapture(body, MAX_CAPTURED_BODY_BYTES);
+        try {
+            parseResponse(new InputStreamReader(capture,
+                    charset != null ? charset : "UTF-8"));
+        } catch (UnsupportedEncodingException e) {
+            Clog.e(Clog.httpRespLogTag, R.string.response_json_error, charset);
+        }
+
+        if (capture.getCount() == 0) {
+            Clog.e(Clog.httpRespLogTag, R.string.response_blank);
+            Clog.clearLastResponse();
+            isBlank = true;
+            return;
+        }
+
+        String captured = capture.toString();
+        Clog.setLastResponse(captured);
+        Clog.d(Clog.httpRespLogTag, R.string.response_body, captured);
+    }
+
     public AdResponse(String body, Header[] headers) {
         if (StringUtil.isEmpty(body)) {
             Clog.clearLastResponse();
@@ -69,15 +128,14 @@ class AdResponse {
 
         Clog.setLastResponse(body);
 
-        Clog.d(Clog.httpRespLogTag,
-                Clog.getString(R.string.response_body, body));
+        Clog.d(Clog.httpRespLogTag, R.string.response_body, body);
 
-        printHeaders(headers);
+        maxAge = printHeaders(headers);
         parseResponse(body);
     }
 
     public AdResponse(HTTPResponse httpResponse) {
-        printHeaders(httpResponse.getHeaders());
+        maxAge = printHeaders(httpResponse.getHeaders());
         parseResponse(httpResponse.getResponseBody());
     }
 
@@ -85,17 +143,147 @@ class AdResponse {
         this.isHttpError = isHttpError;
     }
 
-    private void printHeaders(Header[] headers) {
+    // an empty response, filled in by the batch parsers
+    private AdResponse(long maxAge) {
+        this.maxAge = maxAge;
+    }
+
+    /**
+     * Parses a batch response, {"batch":[{...}, {...}]}, from the HTTP
+     * stream into one AdResponse per requested placement, in request
+     * order.  API 11+ only.  Slots the server left out are null.
+     *
+     * @throws IOException if the stream itself fails. Malformed JSON
+     *                     is logged, not thrown.
+     */
+    @TargetApi(Build.VERSION_CODES.HONEYCOMB)
+    static AdResponse[] parseBatch(InputStream body, String charset,
+                                   Header[] headers, int count) throws IOException {
+        AdResponse[] responses = new AdResponse[count];
+        long maxAge = printHeaders(headers);
+
+        BodyCapture capture = new BodyCapture(body, MAX_CAPTURED_BODY_BYTES);
+        try {
+            JsonReader reader = new JsonReader(new InputStreamReader(capture,
+                    charset != null ? charset : "UTF-8"));
+            reader.beginObject();
+            while (reader.hasNext()) {
+                if (RESPONSE_KEY_BATCH.equals(reader.nextName())
+                        && (reader.peek() == JsonToken.BEGIN_ARRAY)) {
+                    reader.beginArray();
+                    for (int i = 0; reader.hasNext(); i++) {
+                        if ((i < count) && (reader.peek() == JsonToken.BEGIN_OBJECT)) {
+                            responses[i] = new AdResponse(maxAge);
+                            responses[i].readResponse(reader, false);
+                        } else {
+                            reader.skipValue();
+                        }
+                    }
+                    reader.endArray();
+                } else {
+                    reader.skipValue();
+                }
+            }
+            reader.endObject();
+        } catch (UnsupportedEncodingException e) {
+            Clog.e(Clog.httpRespLogTag, R.string.response_json_error, charset);
+        } catch (EOFException e) {
+            // blank or truncated body, keep what was parsed
+        } catch (MalformedJsonException e) {
+            Clog.e(Clog.httpRespLogTag, R.string.response_json_error, e.getMessage());
+        } catch (IllegalStateException e) {
+            Clog.e(Clog.httpRespLogTag, R.string.response_json_error, e.getMessage());
+        }
+
+        if (capture.getCount() == 0) {
+            Clog.e(Clog.httpRespLogTag, R.string.response_blank);
+            Clog.clearLastResponse();
+            return responses;
+        }
+        String captured = capture.toString();
+        Clog.setLastResponse(captured);
+        Clog.d(Clog.httpRespLogTag, R.string.response_body, captured);
+        return responses;
+    }
+
+    /**
+     * Same as {@link #parseBatch(InputStream, String, Header[], int)}
+     * for a body that has already been read, using org.json.
+     */
+    static AdResponse[] parseBatch(String body, Header[] headers, int count) {
+        AdResponse[] responses = new AdResponse[count];
+        if (StringUtil.isEmpty(body)) {
+            Clog.e(Clog.httpRespLogTag, R.string.response_blank);
+            Clog.clearLastResponse();
+            return responses;
+        }
+
+        Clog.setLastResponse(body);
+        Clog.d(Clog.httpRespLogTag, R.string.response_body, body);
+        long maxAge = printHeaders(headers);
+
+        JSONArray batch;
+        try {
+            batch = getJSONArray(new JSONObject(body), RESPONSE_KEY_BATCH);
+        } catch (JSONException e) {
+            Clog.e(Clog.httpRespLogTag, R.string.response_json_error, body);
+            return responses;
+        }
+        if (batch == null) return responses;
+
+        for (int i = 0; (i < count) && (i < batch.length()); i++) {
+            JSONObject response = getJSONObjectFromArray(batch, i);
+            if (response != null) {
+                responses[i] = new AdResponse(maxAge);
+                responses[i].handleResponse(response);
+            }
+        }
+        return responses;
+    }
+
+    // logs the headers and returns the Cache-Control max-age in ms, or -1
+    private static long printHeaders(Header[] headers) {
+        long maxAge = -1;
         if (headers != null) {
             for (Header h : headers) {
-                Clog.v(Clog.httpRespLogTag,
-                        Clog.getString(R.string.response_header, h.getName(),
-                                h.getValue()));
+                Clog.v(Clog.httpRespLogTag, R.string.response_header, h.getName(), h.getValue());
+                if (RESPONSE_HEADER_CACHE_CONTROL.equalsIgnoreCase(h.getName())) {
+                    maxAge = parseCacheControl(h.getValue());
+                }
+            }
+        }
+        return maxAge;
+    }
+
+    // the max-age in ms, 0 for no-cache or no-store, or -1 if there is none
+    static long parseCacheControl(String value) {
+        long maxAge = -1;
+        if (value == null) return maxAge;
+        for (String directive : value.split(",")) {
+            directive = directive.trim().toLowerCase(Locale.US);
+            if (directive.equals("no-cache") || directive.equals("no-store")) {
+                return 0;
+            }
+            if (directive.startsWith("max-age=")) {
+                int seconds = parseInt(directive.substring("max-age=".length()));
+                if (seconds >= 0) maxAge = seconds * 1000L;
             }
         }
+        return maxAge;
     }
 
     private void parseResponse(String body) {
+        if (StringUtil.isEmpty(body)) return;
+
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB) {
+            try {
+                parseResponse(new StringReader(body));
+            } catch (IOException e) {
+                // a StringReader doesn't fail
+            }
+            return;
+        }
+
         JSONObject response;
 
         try {
@@ -105,12 +293,14 @@ class AdResponse {
                 return;
             }
         } catch (JSONException e) {
-            Clog.e(Clog.httpRespLogTag,
-                Clog.getString(R.string.response_json_error, body));
+            Clog.e(Clog.httpRespLogTag, R.string.response_json_error, body);
             return;
         }
         // response will never be null at this point
+        handleResponse(response);
+    }
 
+    private void handleResponse(JSONObject response) {
         // stop parsing if status is not valid
         if (!checkStatusIsValid(response)) return;
         // stop parsing if we get an ad from ads[]
@@ -125,8 +315,7 @@ class AdResponse {
         if (status != null) {
             if (status.equals(RESPONSE_VALUE_ERROR)) {
                 String error = getJSONString(response, RESPONSE_KEY_ERROR_MESSAGE);
-                Clog.e(Clog.httpRespLogTag,
-                        Clog.getString(R.string.response_error, error));
+                Clog.e(Clog.httpRespLogTag, R.string.response_error, error);
                 return false;
             }
         }
@@ -144,8 +333,7 @@ class AdResponse {
             width = getJSONInt(firstAd, RESPONSE_KEY_WIDTH);
             content = getJSONString(firstAd, RESPONSE_KEY_CONTENT);
             if (content == null || content.equals("")) {
-                Clog.e(Clog.httpRespLogTag,
-                        Clog.getString(R.string.blank_ad));
+                Clog.e(Clog.httpRespLogTag, R.string.blank_ad);
             }
             else {
                 isMraid = content.contains(MRAID_JS_FILENAME);
@@ -204,6 +392,319 @@ class AdResponse {
         return false;
     }
 
+    /*
+     Streaming parser, API 11+
+     */
+
+    @TargetApi(Build.VERSION_CODES.HONEYCOMB)
+    private void parseResponse(Reader in) throws IOException {
+        JsonReader reader = new JsonReader(in);
+        try {
+            readResponse(reader, true);
+        } catch (EOFException e) {
+            // blank or truncated body, nothing to parse
+        } catch (MalformedJsonException e) {
+            Clog.e(Clog.httpRespLogTag, R.string.response_json_error, e.getMessage());
+        } catch (IllegalStateException e) {
+            // the JSON is valid but isn't shaped like an ad response
+            Clog.e(Clog.httpRespLogTag, R.string.response_json_error, e.getMessage());
+        }
+    }
+
+    // Reads one response object. With stopEarly set, returns without
+    // consuming the rest of the object as soon as both the status and a
+    // standard ad have been read.
+    @TargetApi(Build.VERSION_CODES.HONEYCOMB)
+    private void readResponse(JsonReader reader, boolean stopEarly) throws IOException {
+        boolean statusRead = false;
+        boolean statusIsError = false;
+        String errorMessage = null;
+        LinkedList<MediatedAd> handlers = null;
+        boolean stopped = false;
+
+        reader.beginObject();
+        while (reader.hasNext()) {
+            String name = reader.nextName();
+            if (RESPONSE_KEY_STATUS.equals(name)) {
+                statusRead = true;
+                statusIsError = RESPONSE_VALUE_ERROR.equals(readString(reader));
+                // an ad was already found in ads[]
+                if (stopEarly && containsAds) {
+                    stopped = true;
+                    break;
+                }
+            } else if (RESPONSE_KEY_ERROR_MESSAGE.equals(name)) {
+                errorMessage = readString(reader);
+            } else if (RESPONSE_KEY_ADS.equals(name)
+                    && (reader.peek() == JsonToken.BEGIN_ARRAY)) {
+                // stop parsing if we get an ad from ads[], unless an error
+                // status may still follow
+                boolean stopHere = stopEarly && statusRead;
+                if (readStdAds(reader, stopHere) && stopHere) {
+                    stopped = true;
+                    break;
+                }
+            } else if (RESPONSE_KEY_MEDIATED_ADS.equals(name)
+                    && (reader.peek() == JsonToken.BEGIN_ARRAY)) {
+                handlers = readMediatedAds(reader);
+            } else {
+                reader.skipValue();
+            }
+        }
+        if (!stopped) reader.endObject();
+
+        if (statusIsError) {
+            Clog.e(Clog.httpRespLogTag, R.string.response_error, errorMessage);
+            content = null;
+            containsAds = false;
+            return;
+        }
+        // a standard ad always wins over mediated[]
+        if (!containsAds && (handlers != null) && !handlers.isEmpty()) {
+            mediatedAds = handlers;
+            containsAds = true;
+        }
+    }
+
+    // returns true if response contains an ad, false if not
+    @TargetApi(Build.VERSION_CODES.HONEYCOMB)
+    private boolean readStdAds(JsonReader reader, boolean stopEarly) throws IOException {
+        reader.beginArray();
+        if (!reader.hasNext()) {
+            reader.endArray();
+            return false;
+        }
+
+        // take the first ad
+        if (reader.peek() == JsonToken.BEGIN_OBJECT) {
+            reader.beginObject();
+            while (reader.hasNext()) {
+                String name = reader.nextName();
+                if (RESPONSE_KEY_TYPE.equals(name)) {
+                    type = readString(reader);
+                } else if (RESPONSE_KEY_HEIGHT.equals(name)) {
+                    height = readInt(reader);
+                } else if (RESPONSE_KEY_WIDTH.equals(name)) {
+                    width = readInt(reader);
+                } else if (RESPONSE_KEY_CONTENT.equals(name)) {
+                    content = readString(reader);
+                } else {
+                    reader.skipValue();
+                }
+            }
+            reader.endObject();
+        } else {
+            reader.skipValue();
+        }
+
+        boolean found = !StringUtil.isEmpty(content);
+        if (found) {
+            isMraid = content.contains(MRAID_JS_FILENAME);
+            containsAds = true;
+            if (stopEarly) return true;
+        } else {
+            Clog.e(Clog.httpRespLogTag, R.string.blank_ad);
+        }
+
+        while (reader.hasNext()) {
+            reader.skipValue();
+        }
+        reader.endArray();
+        return found;
+    }
+
+    @TargetApi(Build.VERSION_CODES.HONEYCOMB)
+    private LinkedList<MediatedAd> readMediatedAds(JsonReader reader) throws IOException {
+        LinkedList<MediatedAd> ads = new LinkedList<MediatedAd>();
+        reader.beginArray();
+        while (reader.hasNext()) {
+            // parse through the elements of the mediated array for handlers
+            if (reader.peek() != JsonToken.BEGIN_OBJECT) {
+                reader.skipValue();
+                continue;
+            }
+            // result_cb may come before or after handler[], so the
+            // handlers are only completed once the element is read
+            int first = ads.size();
+            String resultCB = null;
+            reader.beginObject();
+            while (reader.hasNext()) {
+                String name = reader.nextName();
+                if (RESPONSE_KEY_HANDLER.equals(name)
+                        && (reader.peek() == JsonToken.BEGIN_ARRAY)) {
+                    reader.beginArray();
+                    while (reader.hasNext()) {
+                        MediatedAd handler = readHandler(reader);
+                        if (handler != null) ads.add(handler);
+                    }
+                    reader.endArray();
+                } else if (RESPONSE_KEY_RESULT_CB.equals(name)) {
+                    resultCB = readString(reader);
+                } else {
+                    reader.skipValue();
+                }
+            }
+            reader.endObject();
+
+            for (int i = first; i < ads.size(); i++) {
+                ads.get(i).setResultCB(resultCB);
+            }
+        }
+        reader.endArray();
+        return ads;
+    }
+
+    // returns null for handlers that aren't for android
+    @TargetApi(Build.VERSION_CODES.HONEYCOMB)
+    private MediatedAd readHandler(JsonReader reader) throws IOException {
+        if (reader.peek() != JsonToken.BEGIN_OBJECT) {
+            reader.skipValue();
+            return null;
+        }
+        String type = null;
+        String className = null;
+        String param = null;
+        String adId = null;
+        int height = -1;
+        int width = -1;
+
+        reader.beginObject();
+        while (reader.hasNext()) {
+            String name = reader.nextName();
+            if (RESPONSE_KEY_TYPE.equals(name)) {
+                type = readString(reader);
+            } else if (RESPONSE_KEY_CLASS.equals(name)) {
+                className = readString(reader);
+            } else if (RESPONSE_KEY_PARAM.equals(name)) {
+                param = readString(reader);
+            } else if (RESPONSE_KEY_ID.equals(name)) {
+                adId = readString(reader);
+            } else if (RESPONSE_KEY_HEIGHT.equals(name)) {
+                height = readInt(reader);
+            } else if (RESPONSE_KEY_WIDTH.equals(name)) {
+                width = readInt(reader);
+            } else {
+                reader.skipValue();
+            }
+        }
+        reader.endObject();
+
+        // we only care about handlers for android
+        if (!RESPONSE_VALUE_ANDROID.equals(type) || StringUtil.isEmpty(className)) {
+            return null;
+        }
+        return new MediatedAd(className, param, width, height, adId, null);
+    }
+
+    // same leniency as JSONObject.getString(), but null instead of an exception
+    @TargetApi(Build.VERSION_CODES.HONEYCOMB)
+    private static String readString(JsonReader reader) throws IOException {
+        switch (reader.peek()) {
+            case STRING:
+            case NUMBER:
+                return reader.nextString();
+            case BOOLEAN:
+                return String.valueOf(reader.nextBoolean());
+            case NULL:
+                reader.nextNull();
+                return null;
+            default:
+                reader.skipValue();
+                return null;
+        }
+    }
+
+    // same leniency as JSONObject.getInt(), but -1 instead of an exception
+    @TargetApi(Build.VERSION_CODES.HONEYCOMB)
+    private static int readInt(JsonReader reader) throws IOException {
+        JsonToken token = reader.peek();
+        if ((token != JsonToken.NUMBER) && (token != JsonToken.STRING)) {
+            reader.skipValue();
+            return -1;
+        }
+        return parseInt(reader.nextString());
+    }
+
+    // parses a leading integer, truncating any fraction; -1 if there is none
+    static int parseInt(String s) {
+        if (s == null) return -1;
+        int len = s.length();
+        int i = 0;
+        boolean negative = false;
+        if ((len > 0) && ((s.charAt(0) == '-') || (s.charAt(0) == '+'))) {
+            negative = s.charAt(0) == '-';
+            i++;
+        }
+        int start = i;
+        long value = 0;
+        while ((i < len) && Character.isDigit(s.charAt(i))) {
+            value = value * 10 + (s.charAt(i) - '0');
+            if (value > Integer.MAX_VALUE) return -1;
+            i++;
+        }
+        if (i == start) return -1;
+        // only a fractional part may follow the digits
+        if ((i < len) && (s.charAt(i) != '.')) return -1;
+        return (int) (negative ? -value : value);
+    }
+
+    // keeps the first bytes of the stream for logging while it is parsed
+    private static class BodyCapture extends FilterInputStream {
+        private final ByteArrayOutputStream captured;
+        private final int limit;
+        private int count = 0;
+
+        BodyCapture(InputStream in, int limit) {
+            super(in);
+            this.limit = limit;
+            this.captured = new ByteArrayOutputStream(Math.min(limit, 8192));
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if (b >= 0) {
+                if (count < limit) captured.write(b);
+                count++;
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int length) throws IOException {
+            int n = super.read(buffer, offset, length);
+            if (n > 0) {
+                int keep = Math.min(n, limit - count);
+                if (keep > 0) captured.write(buffer, offset, keep);
+                count += n;
+            }
+            return n;
+        }
+
+        int getCount() {
+            return count;
+        }
+
+        @Override
+        public String toString() {
+            try {
+                return captured.toString("UTF-8");
+            } catch (UnsupportedEncodingException e) {
+                return captured.toString();
+            }
+        }
+    }
+
+    // how long the server allows this ad to be kept, -1 if unspecified
+    long getMaxAge() {
+        return maxAge;
+    }
+
+    // true if a streamed body turned out to be empty
+    boolean isBlank() {
+        return isBlank;
+    }
+
     public String getContent() {
         return content != null ? content : "";
     }
@@ -229,6 +730,29 @@ class AdResponse {
         return containsAds;
     }
 
+    /**
+     * Builds the page the WebView loads for this ad: MRAID creatives get
+     * mraid.js injected, others are wrapped in a page without margins.
+     * Call in the background, so the main thread only has to load the
+     * result.
+     */
+    void prepareCreative(Resources r) {
+        if ((creativeHtml != null) || StringUtil.isEmpty(content)) return;
+        String html = isMraid ? MRAIDImplementation.injectMraidDotJS(content, r)
+                : AdWebView.wrapCreative(content);
+        Clog.v(Clog.baseLogTag, R.string.webview_loading, html);
+        creativeHtml = html;
+    }
+
+    /**
+     * @return the page built by prepareCreative(), which is called now if
+     * it hasn't been
+     */
+    String getCreativeHtml(Resources r) {
+        prepareCreative(r);
+        return creativeHtml;
+    }
+
     public boolean isMraid() {
         return isMraid;
     }
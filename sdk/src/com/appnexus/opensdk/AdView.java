@@ -62,6 +62,7 @@ public abstract class AdView extends FrameLayout {
 	private int width = -1;
 	private int height = -1;
 	boolean shouldServePSAs = true;
+	private boolean prefetchAds = false;
 	private float reserve = 0.00f;
 	String age;
 	GENDER gender = GENDER.UNKNOWN;
@@ -103,36 +104,37 @@ public abstract class AdView extends FrameLayout {
 		// Store self.context in the settings for errors
 		Clog.error_context = this.getContext();
 
-		Clog.d(Clog.publicFunctionsLogTag, Clog.getString(R.string.new_adview));
+		Clog.d(Clog.publicFunctionsLogTag, R.string.new_adview);
 
 		SharedPreferences prefs = PreferenceManager
 				.getDefaultSharedPreferences(context);
 		if (prefs.getBoolean("opensdk_first_launch", true)) {
 			// This is the first launch, store a value to remember
-			Clog.v(Clog.baseLogTag,
-					Clog.getString(R.string.first_opensdk_launch));
+			Clog.v(Clog.baseLogTag, R.string.first_opensdk_launch);
 			Settings.getSettings().first_launch = true;
 			prefs.edit().putBoolean("opensdk_first_launch", false).commit();
 		} else {
 			// Found the stored value, this is NOT the first launch
-			Clog.v(Clog.baseLogTag,
-					Clog.getString(R.string.not_first_opensdk_launch));
+			Clog.v(Clog.baseLogTag, R.string.not_first_opensdk_launch);
 			Settings.getSettings().first_launch = false;
 		}
 
-		// Store the UA in the settings
-		Settings.getSettings().ua = new WebView(context).getSettings()
-				.getUserAgentString();
-		Clog.v(Clog.baseLogTag,
-				Clog.getString(R.string.ua, Settings.getSettings().ua));
+		// Store the UA in the settings, a pooled WebView reads it the first
+		// time around
+		WebViewPool.prepare(context);
+		// send tracking calls left over from earlier runs
+		EventJournal.flush(context);
+		AssetCache.init(context);
+		// known before the first MRAID ad asks
+		MRAIDCapabilities.prefetch(context);
+		Clog.v(Clog.baseLogTag, R.string.ua, Settings.getSettings().ua);
 
 		// Store the AppID in the settings
 		Settings.getSettings().app_id = context.getApplicationContext()
 				.getPackageName();
-		Clog.v(Clog.baseLogTag,
-				Clog.getString(R.string.appid, Settings.getSettings().app_id));
+		Clog.v(Clog.baseLogTag, R.string.appid, Settings.getSettings().app_id);
 
-		Clog.v(Clog.baseLogTag, Clog.getString(R.string.making_adman));
+		Clog.v(Clog.baseLogTag, R.string.making_adman);
 
         // Some AdMob creatives won't load unless we set their parent's viewgroup's padding to 0-0-0-0
         setPadding(0,0,0,0);
@@ -164,8 +166,8 @@ public abstract class AdView extends FrameLayout {
 			measuredHeight = (int) ((bottom - top) / density + 0.5f);
 			if ((measuredHeight < height || measuredWidth < width)
 					&& measuredHeight > 0 && measuredWidth > 0) {
-				Clog.e(Clog.baseLogTag, Clog.getString(R.string.adsize_too_big,
-						measuredWidth, measuredHeight, width, height));
+				Clog.e(Clog.baseLogTag, R.string.adsize_too_big,
+						measuredWidth, measuredHeight, width, height);
 				// Hide the space, since no ad will be loaded due to error
 				hide();
 				// Stop any request in progress
@@ -193,11 +195,11 @@ public abstract class AdView extends FrameLayout {
 
     boolean isReadyToStart() {
 		if (isMRAIDExpanded()) {
-			Clog.e(Clog.baseLogTag, Clog.getString(R.string.already_expanded));
+			Clog.e(Clog.baseLogTag, R.string.already_expanded);
 			return false;
 		}
 		if (StringUtil.isEmpty(placementID)) {
-			Clog.e(Clog.baseLogTag, Clog.getString(R.string.no_placement_id));
+			Clog.e(Clog.baseLogTag, R.string.no_placement_id);
 			return false;
 		}
 		return true;
@@ -251,7 +253,7 @@ public abstract class AdView extends FrameLayout {
 	void loadHtml(String content, int width, int height) {
 		this.mAdFetcher.stop();
 
-		AdWebView awv = new AdWebView(this);
+		AdWebView awv = WebViewPool.acquire(this);
 		awv.loadData(content, "text/html", "UTF-8");
 		FrameLayout.LayoutParams lp = new FrameLayout.LayoutParams(width,
 				height);
@@ -285,8 +287,7 @@ public abstract class AdView extends FrameLayout {
 		}
 
 		this.removeAllViews();
-		if (webView != null)
-			webView.destroy();
+		WebViewPool.recycle(webView);
 		if (d.getView() == null) {
 			return;
 		}
@@ -316,8 +317,7 @@ public abstract class AdView extends FrameLayout {
 	 * @return The current placement id.
 	 */
 	public String getPlacementID() {
-		Clog.d(Clog.publicFunctionsLogTag,
-				Clog.getString(R.string.get_placement_id, placementID));
+		Clog.d(Clog.publicFunctionsLogTag, R.string.get_placement_id, placementID);
 		return placementID;
 	}
 
@@ -331,8 +331,7 @@ public abstract class AdView extends FrameLayout {
 	 *            The placement ID to use.
 	 */
 	public void setPlacementID(String placementID) {
-		Clog.d(Clog.publicFunctionsLogTag,
-				Clog.getString(R.string.set_placement_id, placementID));
+		Clog.d(Clog.publicFunctionsLogTag, R.string.set_placement_id, placementID);
 		this.placementID = placementID;
 	}
 
@@ -633,8 +632,7 @@ public abstract class AdView extends FrameLayout {
 	 *            The {@link AdListener} object to use.
 	 */
 	public void setAdListener(AdListener listener) {
-		Clog.d(Clog.publicFunctionsLogTag,
-				Clog.getString(R.string.set_ad_listener));
+		Clog.d(Clog.publicFunctionsLogTag, R.string.set_ad_listener);
 		adListener = listener;
 	}
 
@@ -644,8 +642,7 @@ public abstract class AdView extends FrameLayout {
 	 * @return The {@link AdListener} object in use.
 	 */
 	public AdListener getAdListener() {
-		Clog.d(Clog.publicFunctionsLogTag,
-                Clog.getString(R.string.get_ad_listener));
+		Clog.d(Clog.publicFunctionsLogTag, R.string.get_ad_listener);
 		return adListener;
 	}
 
@@ -653,6 +650,10 @@ public abstract class AdView extends FrameLayout {
 		this.getAdDispatcher().onAdFailed(true);
 	}
 
+	// called on the main thread once a load has failed for good
+	void loadFailed() {
+	}
+
 	/**
 	 * Retrieve the setting that determines whether or not the
 	 * device's native browser is used instead of the in-app
@@ -661,8 +662,7 @@ public abstract class AdView extends FrameLayout {
 	 * @return true if the device's native browser will be used; false otherwise.
 	 */
 	public boolean getOpensNativeBrowser() {
-		Clog.d(Clog.publicFunctionsLogTag, Clog.getString(
-				R.string.get_opens_native_browser, opensNativeBrowser));
+		Clog.d(Clog.publicFunctionsLogTag, R.string.get_opens_native_browser, opensNativeBrowser);
 		return opensNativeBrowser;
 	}
 
@@ -677,8 +677,7 @@ public abstract class AdView extends FrameLayout {
 	 * @param opensNativeBrowser
 	 */
 	public void setOpensNativeBrowser(boolean opensNativeBrowser) {
-		Clog.d(Clog.publicFunctionsLogTag, Clog.getString(
-				R.string.set_opens_native_browser, opensNativeBrowser));
+		Clog.d(Clog.publicFunctionsLogTag, R.string.set_opens_native_browser, opensNativeBrowser);
 		this.opensNativeBrowser = opensNativeBrowser;
 	}
 
@@ -716,6 +715,31 @@ public abstract class AdView extends FrameLayout {
 		this.shouldServePSAs = shouldServePSAs;
 	}
 
+	/**
+	 * Retrieve whether ads for this view are prefetched.  See
+	 * setPrefetchAds.
+	 *
+	 * @return true if ads are served from the prefetch cache when available.
+	 */
+	public boolean getPrefetchAds() {
+		return prefetchAds;
+	}
+
+	/**
+	 * Keep the next ad for this placement, size and targeting
+	 * fetched ahead of time, so that it can be shown without
+	 * waiting on the network.  Prefetched ads are shared between
+	 * views with the same placement, size and targeting, which
+	 * makes this most useful for lists that show many of the same
+	 * ad view.  The default value is false.
+	 *
+	 * @param prefetchAds
+	 *            Whether ads for this view should be prefetched.
+	 */
+	public void setPrefetchAds(boolean prefetchAds) {
+		this.prefetchAds = prefetchAds;
+	}
+
 	/**
 	 * Retrieve the reserve price.  The reserve price is the
 	 * minimum price you will accept in order to show an ad.  A
@@ -899,6 +923,9 @@ public abstract class AdView extends FrameLayout {
 				@Override
 				public void run() {
 					display(d);
+					Metrics.count(Metrics.Counter.FILLS);
+					if (mAdFetcher != null)
+						Metrics.since(Metrics.Stage.TOTAL, mAdFetcher.takeLoadStart());
 					if (adListener != null)
 						adListener.onAdLoaded(AdView.this);
 				}
@@ -914,6 +941,7 @@ public abstract class AdView extends FrameLayout {
 			handler.post(new Runnable() {
 				@Override
 				public void run() {
+					loadFailed();
 					if (adListener != null)
 						adListener.onAdRequestFailed(AdView.this);
 				}
@@ -19,14 +19,18 @@ package com.appnexus.opensdk;
 import android.annotation.SuppressLint;
 import android.app.Activity;
 import android.content.ActivityNotFoundException;
+import android.content.Context;
 import android.content.Intent;
+import android.content.MutableContextWrapper;
 import android.graphics.Color;
 import android.net.Uri;
 import android.net.http.SslError;
+import android.os.SystemClock;
 import android.util.Pair;
 import android.view.Gravity;
 import android.view.View;
 import android.webkit.SslErrorHandler;
+import android.webkit.WebResourceResponse;
 import android.webkit.WebSettings;
 import android.webkit.WebView;
 import android.webkit.WebViewClient;
@@ -40,15 +44,72 @@ import com.appnexus.opensdk.utils.WebviewUtil;
 class AdWebView extends WebView implements Displayable {
     private boolean failed = false;
     private AdView destination;
+    private boolean destroyed = false;
+    // when the creative started loading, for Metrics.Stage.RENDER
+    private long loadStartedAt = -1;
 
 
     public AdWebView(AdView owner) {
         super(owner.getContext());
+        Metrics.adjustGauge(Metrics.Gauge.LIVE_WEBVIEWS, 1);
         destination = owner;
         setupSettings();
         setup();
     }
 
+    // For WebViewPool.  The view is configured but belongs to no AdView
+    // until attach() is called.
+    AdWebView(Context appContext) {
+        super(new MutableContextWrapper(appContext));
+        Metrics.adjustGauge(Metrics.Gauge.LIVE_WEBVIEWS, 1);
+        setupSettings();
+    }
+
+    void attach(AdView owner) {
+        ((MutableContextWrapper) getContext()).setBaseContext(owner.getContext());
+        destination = owner;
+        failed = false;
+        setup();
+    }
+
+    /**
+     * Clears the ad this view showed so it can be pooled.
+     *
+     * @return false if the view wasn't made by the pool and can't be reused
+     */
+    boolean detach() {
+        if (!(getContext() instanceof MutableContextWrapper)) return false;
+
+        stopLoading();
+        setWebViewClient(new WebViewClient());
+        setWebChromeClient(null);
+        loadUrl("about:blank");
+        clearHistory();
+        ((MutableContextWrapper) getContext())
+                .setBaseContext(getContext().getApplicationContext());
+        destination = null;
+        loadStartedAt = -1;
+        return true;
+    }
+
+    @Override
+    public void destroy() {
+        if (!destroyed) {
+            destroyed = true;
+            Metrics.adjustGauge(Metrics.Gauge.LIVE_WEBVIEWS, -1);
+        }
+        super.destroy();
+    }
+
+    void loadStarted() {
+        loadStartedAt = SystemClock.elapsedRealtime();
+    }
+
+    void pageFinished() {
+        Metrics.since(Metrics.Stage.RENDER, loadStartedAt);
+        loadStartedAt = -1;
+    }
+
     protected void setupSettings(){
         Settings.getSettings().ua = this.getSettings().getUserAgentString();
         this.getSettings().setJavaScriptEnabled(true);
@@ -81,17 +142,25 @@ class AdWebView extends WebView implements Displayable {
             @Override
             public void onReceivedError(WebView view, int errorCode,
                                         String description, String failingURL) {
-                Clog.e(Clog.httpRespLogTag, Clog.getString(
-                        R.string.webclient_error, errorCode, description));
+                Clog.e(Clog.httpRespLogTag, R.string.webclient_error, errorCode, description);
             }
 
             @Override
             public void onReceivedSslError(WebView view,
                                            SslErrorHandler handler, SslError error) {
                 AdWebView.this.fail();
-                Clog.e(Clog.httpRespLogTag,
-                        Clog.getString(R.string.webclient_error,
-                                error.getPrimaryError(), error.toString()));
+                Clog.e(Clog.httpRespLogTag, R.string.webclient_error,
+                                error.getPrimaryError(), error.toString());
+            }
+
+            @Override
+            public void onPageFinished(WebView view, String url) {
+                pageFinished();
+            }
+
+            @Override
+            public WebResourceResponse shouldInterceptRequest(WebView view, String url) {
+                return AssetCache.intercept(url);
             }
 
             @Override
@@ -154,8 +223,7 @@ class AdWebView extends WebView implements Displayable {
         Intent intent;
         // open the in-app browser
         if (!AdWebView.this.destination.getOpensNativeBrowser() && url.startsWith("http")) {
-            Clog.d(Clog.baseLogTag,
-                    Clog.getString(R.string.opening_inapp));
+            Clog.d(Clog.baseLogTag, R.string.opening_inapp);
             intent = new Intent(AdWebView.this.destination.getContext(),
                     BrowserActivity.class);
             intent.putExtra("url", url);
@@ -167,8 +235,7 @@ class AdWebView extends WebView implements Displayable {
                                 AdWebView.this.destination.getBrowserStyle()));
             }
         } else {
-            Clog.d(Clog.baseLogTag,
-                    Clog.getString(R.string.opening_native));
+            Clog.d(Clog.baseLogTag, R.string.opening_native);
             intent = new Intent(Intent.ACTION_VIEW);
             intent.setData(Uri.parse(url));
         }
@@ -176,8 +243,7 @@ class AdWebView extends WebView implements Displayable {
         try {
             AdWebView.this.destination.getContext().startActivity(intent);
         } catch (ActivityNotFoundException e) {
-            Clog.w(Clog.baseLogTag,
-                    Clog.getString(R.string.opening_url_failed, url));
+            Clog.w(Clog.baseLogTag, R.string.opening_url_failed, url);
         }
     }
 
@@ -187,9 +253,8 @@ class AdWebView extends WebView implements Displayable {
             return;
         }
 
-        String body = "<html><head /><body style='margin:0;padding:0;'>"
-                + ad.getContent() + "</body></html>";
-        Clog.v(Clog.baseLogTag, Clog.getString(R.string.webview_loading, body));
+        String body = ad.getCreativeHtml(getResources());
+        loadStarted();
         this.loadDataWithBaseURL("http://mobile.adnxs.com", body, "text/html",
                 "UTF-8", null);
 
@@ -203,6 +268,13 @@ class AdWebView extends WebView implements Displayable {
         this.setLayoutParams(resize);
     }
 
+    // Runs in the background, see AdResponse.prepareCreative()
+    static String wrapCreative(String content) {
+        return new StringBuilder(content.length() + 80)
+                .append("<html><head /><body style='margin:0;padding:0;'>")
+                .append(content).append("</body></html>").toString();
+    }
+
     @Override
     protected void onWindowVisibilityChanged(int visibility) {
         super.onWindowVisibilityChanged(visibility);
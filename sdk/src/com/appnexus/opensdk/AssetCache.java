@@ -0,0 +1,340 @@
+/*
+ *    Copyright 2013 APPNEXUS INC
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.appnexus.opensdk;
+
+import android.annotation.TargetApi;
+import android.content.Context;
+import android.os.Build;
+import android.webkit.WebResourceResponse;
+import com.appnexus.opensdk.utils.Clog;
+import com.appnexus.opensdk.utils.HTTPEngine;
+import com.appnexus.opensdk.utils.HashingFunctions;
+import com.appnexus.opensdk.utils.Settings;
+import org.apache.http.Header;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpResponse;
+import org.apache.http.client.methods.HttpGet;
+
+import java.io.*;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * <p>
+ * Images, scripts and stylesheets of creatives, kept on disk so a creative
+ * shown again renders without fetching them again.  Ad WebViews don't use
+ * the WebView cache, see AdWebView.setupSettings(); instead their clients
+ * pass sub-resource requests to {@link #intercept(String)}, which answers
+ * from disk.  Anything not on disk is left to the WebView, which sends its
+ * own cookies and Referer.  The cache is filled when an ad is prefetched,
+ * PREFETCH_THREADS assets at a time so ad calls keep their connections.
+ * </p>
+ * <p>
+ * Only responses the server allows to be cached, with a Cache-Control
+ * max-age and no no-cache or no-store, are kept, and only until they
+ * expire, so tracking pixels still fire every time.  Once the cache is
+ * over Settings.ASSET_CACHE_SIZE bytes the least recently used assets are
+ * deleted.  WebResourceResponse needs API 11, so on older devices nothing
+ * is cached.
+ * </p>
+ */
+class AssetCache {
+    static final String DIR_NAME = "appnexus_assets";
+    static final int MAX_ASSET_BYTES = 512 * 1024;
+    static final int MAX_ASSETS_PER_AD = 16;
+    static final int PREFETCH_THREADS = 2;
+
+    private static final Pattern ASSET_URL = Pattern.compile(
+            "(?:src|href)\\s*=\\s*[\"'](https?://[^\"'\\s>]+)[\"']",
+            Pattern.CASE_INSENSITIVE);
+    private static final String[] ASSET_EXTENSIONS = {
+            ".png", ".jpg", ".jpeg", ".gif", ".webp", ".svg", ".js", ".css"
+    };
+
+    private static File dir = null;
+    private static Executor prefetcher = null;
+    // urls being fetched by prefetch()
+    private static final HashSet<String> inFlight = new HashSet<String>();
+
+    static synchronized void init(Context context) {
+        if ((dir == null) && (context != null)) {
+            dir = new File(context.getApplicationContext().getCacheDir(), DIR_NAME);
+        }
+    }
+
+    private static boolean enabled() {
+        return (Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB)
+                && (Settings.getSettings().ASSET_CACHE_SIZE > 0) && (dir != null);
+    }
+
+    /**
+     * Answers a WebView sub-resource request from the cache.  Runs on a
+     * WebView thread.
+     *
+     * @return the asset, or null to let the WebView load the url itself
+     */
+    @TargetApi(Build.VERSION_CODES.HONEYCOMB)
+    static WebResourceResponse intercept(String url) {
+        if (!enabled() || !isAsset(url)) return null;
+
+        WebResourceResponse cached = read(url);
+        if (cached != null) {
+            Clog.v(Clog.baseLogTag, R.string.asset_cache_hit, url);
+        }
+        return cached;
+    }
+
+    /**
+     * Fetches the assets the creative refers to, if they aren't cached
+     * yet, on the prefetch threads.  The creative is scanned in the
+     * background too.
+     */
+    static void prefetch(final String html) {
+        if (!enabled() || (html == null)) return;
+        prefetcher().execute(new Runnable() {
+            @Override
+            public void run() {
+                prefetchAssets(html);
+            }
+        });
+    }
+
+    private static synchronized Executor prefetcher() {
+        if (prefetcher == null) {
+            prefetcher = Executors.newFixedThreadPool(PREFETCH_THREADS);
+        }
+        return prefetcher;
+    }
+
+    private static void prefetchAssets(String html) {
+        Matcher m = ASSET_URL.matcher(html);
+        int count = 0;
+        while (m.find() && (count < MAX_ASSETS_PER_AD)) {
+            final String url = m.group(1);
+            if (!isAsset(url) || file(url).exists()) continue;
+            synchronized (AssetCache.class) {
+                if (!inFlight.add(url)) continue;
+            }
+            count++;
+            prefetcher().execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        Asset asset = fetch(url);
+                        if ((asset != null) && (asset.maxAge > 0)) {
+                            write(url, asset);
+                        }
+                    } finally {
+                        synchronized (AssetCache.class) {
+                            inFlight.remove(url);
+                        }
+                    }
+                }
+            });
+        }
+        if (count > 0) {
+            Clog.d(Clog.baseLogTag, R.string.asset_cache_prefetch, count);
+        }
+    }
+
+    static boolean isAsset(String url) {
+        if ((url == null) || !(url.startsWith("http://") || url.startsWith("https://"))) {
+            return false;
+        }
+        int end = url.length();
+        int query = url.indexOf('?');
+        if (query != -1) end = query;
+        int fragment = url.indexOf('#');
+        if ((fragment != -1) && (fragment < end)) end = fragment;
+        String path = url.substring(0, end).toLowerCase(Locale.US);
+        for (String extension : ASSET_EXTENSIONS) {
+            if (path.endsWith(extension)) return true;
+        }
+        return false;
+    }
+
+    private static class Asset {
+        final String mimeType;
+        final String encoding;
+        final long maxAge;
+        final byte[] body;
+
+        Asset(String mimeType, String encoding, long maxAge, byte[] body) {
+            this.mimeType = mimeType;
+            this.encoding = encoding;
+            this.maxAge = maxAge;
+            this.body = body;
+        }
+    }
+
+    // null if the asset couldn't be fetched or is too big to keep in memory
+    private static Asset fetch(String url) {
+        HttpResponse r = null;
+        try {
+            HttpGet get = new HttpGet(url);
+            get.setHeader("User-Agent", Settings.getSettings().ua);
+            r = HTTPEngine.execute(get);
+            if ((r.getStatusLine() == null) || (r.getStatusLine().getStatusCode() != 200)) {
+                return null;
+            }
+            HttpEntity entity = r.getEntity();
+            if ((entity == null) || (entity.getContentLength() > MAX_ASSET_BYTES)) {
+                return null;
+            }
+            byte[] body = readAll(entity.getContent(), MAX_ASSET_BYTES);
+            if (body == null) return null;
+
+            long maxAge = -1;
+            for (Header h : r.getHeaders("Cache-Control")) {
+                maxAge = AdResponse.parseCacheControl(h.getValue());
+            }
+            String mimeType = "application/octet-stream";
+            String encoding = null;
+            Header type = entity.getContentType();
+            if (type != null) {
+                String[] parts = type.getValue().split(";");
+                mimeType = parts[0].trim();
+                for (int i = 1; i < parts.length; i++) {
+                    String part = parts[i].trim();
+                    if (part.toLowerCase(Locale.US).startsWith("charset=")) {
+                        encoding = part.substring("charset=".length());
+                    }
+                }
+            }
+            return new Asset(mimeType, encoding, maxAge, body);
+        } catch (Exception e) {
+            return null;
+        } finally {
+            HTTPEngine.release(r);
+        }
+    }
+
+    // null if there are more than limit bytes
+    private static byte[] readAll(InputStream in, int limit) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(16 * 1024);
+        byte[] buffer = new byte[8192];
+        int n;
+        while ((n = in.read(buffer)) != -1) {
+            out.write(buffer, 0, n);
+            if (out.size() > limit) return null;
+        }
+        return out.toByteArray();
+    }
+
+    private static File file(String url) {
+        return new File(dir, HashingFunctions.md5(url));
+    }
+
+    // Each file is one header line, "expiresAt mimeType [encoding]", then
+    // the asset
+    @TargetApi(Build.VERSION_CODES.HONEYCOMB)
+    private static WebResourceResponse read(String url) {
+        File f = file(url);
+        if (!f.exists()) return null;
+        InputStream in = null;
+        try {
+            in = new BufferedInputStream(new FileInputStream(f));
+            String[] header = readLine(in).split(" ");
+            if ((header.length < 2) || (Long.parseLong(header[0]) <= System.currentTimeMillis())) {
+                in.close();
+                f.delete();
+                return null;
+            }
+            // a hit makes it the most recently used
+            f.setLastModified(System.currentTimeMillis());
+            return new WebResourceResponse(header[1], (header.length > 2) ? header[2] : null, in);
+        } catch (Exception e) {
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException ignored) {
+                }
+            }
+            f.delete();
+            return null;
+        }
+    }
+
+    private static String readLine(InputStream in) throws IOException {
+        StringBuilder sb = new StringBuilder();
+        int c;
+        while (((c = in.read()) != -1) && (c != '\n')) {
+            sb.append((char) c);
+        }
+        return sb.toString();
+    }
+
+    private static void write(String url, Asset asset) {
+        File f = file(url);
+        File tmp = new File(dir, f.getName() + ".tmp." + Thread.currentThread().getId());
+        OutputStream out = null;
+        try {
+            if (!dir.exists() && !dir.mkdirs()) return;
+            out = new BufferedOutputStream(new FileOutputStream(tmp));
+            String header = (System.currentTimeMillis() + asset.maxAge) + " " + asset.mimeType
+                    + ((asset.encoding != null) ? " " + asset.encoding : "") + "\n";
+            out.write(header.getBytes("UTF-8"));
+            out.write(asset.body);
+            out.close();
+            out = null;
+            if (!tmp.renameTo(f)) {
+                tmp.delete();
+                return;
+            }
+            Clog.v(Clog.baseLogTag, R.string.asset_cache_stored, url, asset.body.length);
+        } catch (IOException e) {
+            tmp.delete();
+            return;
+        } finally {
+            if (out != null) {
+                try {
+                    out.close();
+                } catch (IOException ignored) {
+                }
+            }
+        }
+        trim();
+    }
+
+    // deletes the least recently used files until the cache fits
+    private static synchronized void trim() {
+        File[] files = dir.listFiles();
+        if (files == null) return;
+        long size = 0;
+        for (File f : files) size += f.length();
+        long max = Settings.getSettings().ASSET_CACHE_SIZE;
+        if (size <= max) return;
+
+        Arrays.sort(files, new Comparator<File>() {
+            @Override
+            public int compare(File a, File b) {
+                long diff = a.lastModified() - b.lastModified();
+                return (diff < 0) ? -1 : ((diff > 0) ? 1 : 0);
+            }
+        });
+        for (int i = 0; (i < files.length) && (size > max); i++) {
+            long length = files[i].length();
+            if (files[i].delete()) size -= length;
+        }
+    }
+}
@@ -24,6 +24,7 @@ import android.content.Intent;
 import android.content.IntentFilter;
 import android.content.res.TypedArray;
 import android.graphics.Point;
+import android.os.AsyncTask;
 import android.os.Build;
 import android.util.AttributeSet;
 import android.view.Display;
@@ -35,6 +36,8 @@ import com.appnexus.opensdk.utils.Clog;
 import com.appnexus.opensdk.utils.Settings;
 import com.appnexus.opensdk.utils.WebviewUtil;
 
+import java.util.ArrayList;
+
 /**
  * This view is added to an existing layout in order to display banner
  * ads.  It may be added via XML or code.
@@ -96,6 +99,9 @@ public class BannerAdView extends AdView {
     private boolean expandsToFitScreenWidth = false;
     private int width = -1;
     private int height = -1;
+    // auto-refresh is paused while the banner is scrolled off screen
+    private VisibilityTracker visibilityTracker;
+    private boolean refreshPaused = false;
 
     private void setDefaultsBeforeXML() {
         running = false;
@@ -177,6 +183,46 @@ public class BannerAdView extends AdView {
         onFirstLayout();
         mAdFetcher.setPeriod(period);
         mAdFetcher.setAutoRefresh(getAutoRefresh());
+        visibilityTracker = new VisibilityTracker(this, new VisibilityTracker.Listener() {
+            @Override
+            public void onVisibilityChanged(boolean visible) {
+                onScrolledOnScreen(visible);
+            }
+        });
+    }
+
+    // AdFetcher keeps the time since the last ad when it is stopped, so
+    // the refresh resumes with only the rest of the period to wait
+    private void onScrolledOnScreen(boolean visible) {
+        if (!visible) {
+            if (running && auto_refresh && (mAdFetcher != null)) {
+                Clog.d(Clog.baseLogTag, R.string.off_screen_pause);
+                refreshPaused = true;
+                mAdFetcher.stop();
+            }
+        } else if (refreshPaused) {
+            refreshPaused = false;
+            if (running && (mAdFetcher != null)) {
+                Clog.d(Clog.baseLogTag, R.string.on_screen_resume);
+                mAdFetcher.start();
+            }
+        }
+    }
+
+    @Override
+    protected void onAttachedToWindow() {
+        super.onAttachedToWindow();
+        if (visibilityTracker != null) {
+            visibilityTracker.start();
+        }
+    }
+
+    @Override
+    protected void onDetachedFromWindow() {
+        if (visibilityTracker != null) {
+            visibilityTracker.stop();
+        }
+        super.onDetachedFromWindow();
     }
 
     void setupBroadcast(Context context) {
@@ -188,16 +234,14 @@ public class BannerAdView extends AdView {
             public void onReceive(Context context, Intent intent) {
                 if (intent.getAction().equals(Intent.ACTION_SCREEN_OFF)) {
                     stop();
-                    Clog.d(Clog.baseLogTag,
-                            Clog.getString(R.string.screen_off_stop));
+                    Clog.d(Clog.baseLogTag, R.string.screen_off_stop);
                 } else if (intent.getAction().equals(Intent.ACTION_SCREEN_ON)) {
                     if (auto_refresh)
                         start();
                     else if (shouldReloadOnResume)
                         stop();
                     start();
-                    Clog.d(Clog.baseLogTag,
-                            Clog.getString(R.string.screen_on_start));
+                    Clog.d(Clog.baseLogTag, R.string.screen_on_start);
                 }
 
             }
@@ -270,16 +314,64 @@ public class BannerAdView extends AdView {
         return loadAd();
     }
 
+    /**
+     * Loads ads into several banners with a single request to the
+     * server, instead of one request per banner.  Use this when a
+     * screen shows more than one placement.  Each banner should have
+     * its placement ID (and ad size, if any) set already.  Device and
+     * user targeting, such as age, gender and custom keywords, is
+     * taken from the first banner.  Each banner's {@link AdListener}
+     * receives its own result, and auto-refresh continues for each
+     * banner separately after this first load.
+     *
+     * @param adViews The banners to load ads into.
+     *
+     * @return <code>true</code> if the request was dispatched,
+     *         <code>false</code> if none of the banners could load an ad.
+     */
+    @SuppressLint("NewApi")
+    public static boolean loadAdsInBatch(BannerAdView... adViews) {
+        ArrayList<AdFetcher> fetchers = new ArrayList<AdFetcher>();
+        if (adViews != null) {
+            for (BannerAdView bav : adViews) {
+                if ((bav == null) || (bav.mAdFetcher == null) || !bav.isReadyToStart())
+                    continue;
+                bav.mAdFetcher.stop();
+                bav.mAdFetcher.clearDurations();
+                bav.running = true;
+                fetchers.add(bav.mAdFetcher);
+            }
+        }
+        if (fetchers.isEmpty())
+            return false;
+
+        BatchAdRequest request = new BatchAdRequest(fetchers);
+        if (request.size() == 0)
+            return false;
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB) {
+            request.executeOnExecutor(AsyncTask.THREAD_POOL_EXECUTOR);
+        } else {
+            request.execute();
+        }
+        return true;
+    }
+
     void start() {
-        Clog.d(Clog.publicFunctionsLogTag, Clog.getString(R.string.start));
+        Clog.d(Clog.publicFunctionsLogTag, R.string.start);
         mAdFetcher.start();
         running = true;
+        // pause again at the next frame if the banner is still off screen
+        refreshPaused = false;
+        if (visibilityTracker != null) {
+            visibilityTracker.reset();
+        }
     }
 
     void stop() {
-        Clog.d(Clog.publicFunctionsLogTag, Clog.getString(R.string.stop));
+        Clog.d(Clog.publicFunctionsLogTag, R.string.stop);
         mAdFetcher.stop();
         running = false;
+        refreshPaused = false;
     }
 
     @Override
@@ -291,51 +383,42 @@ public class BannerAdView extends AdView {
                 R.styleable.BannerAdView);
 
         final int N = a.getIndexCount();
-        Clog.v(Clog.xmlLogTag, Clog.getString(R.string.found_n_in_xml, N));
+        Clog.v(Clog.xmlLogTag, R.string.found_n_in_xml, N);
         for (int i = 0; i < N; ++i) {
             int attr = a.getIndex(i);
             if (attr == R.styleable.BannerAdView_placement_id) {
                 setPlacementID(a.getString(attr));
-                Clog.d(Clog.xmlLogTag, Clog.getString(R.string.placement_id,
-                        a.getString(attr)));
+                Clog.d(Clog.xmlLogTag, R.string.placement_id,
+                        a.getString(attr));
             } else if (attr == R.styleable.BannerAdView_auto_refresh_interval) {
                 setAutoRefreshInterval(a.getInt(attr, 30 * 1000));
-                Clog.d(Clog.xmlLogTag,
-                        Clog.getString(R.string.xml_set_period, period));
+                Clog.d(Clog.xmlLogTag, R.string.xml_set_period, period);
             } else if (attr == R.styleable.BannerAdView_test) {
                 Settings.getSettings().test_mode = a.getBoolean(attr, false);
-                Clog.d(Clog.xmlLogTag,
-                        Clog.getString(R.string.xml_set_test,
-                                Settings.getSettings().test_mode));
+                Clog.d(Clog.xmlLogTag, R.string.xml_set_test,
+                                Settings.getSettings().test_mode);
             } else if (attr == R.styleable.BannerAdView_auto_refresh) {
                 setAutoRefresh(a.getBoolean(attr, false));
-                Clog.d(Clog.xmlLogTag, Clog.getString(
-                        R.string.xml_set_auto_refresh, auto_refresh));
+                Clog.d(Clog.xmlLogTag, R.string.xml_set_auto_refresh, auto_refresh);
             } else if (attr == R.styleable.BannerAdView_adWidth) {
                 setAdWidth(a.getInt(attr, -1));
-                Clog.d(Clog.xmlLogTag,
-                        Clog.getString(R.string.xml_ad_width,
-                                a.getInt(attr, -1)));
+                Clog.d(Clog.xmlLogTag, R.string.xml_ad_width,
+                                a.getInt(attr, -1));
             } else if (attr == R.styleable.BannerAdView_adHeight) {
                 setAdHeight(a.getInt(attr, -1));
-                Clog.d(Clog.xmlLogTag,
-                        Clog.getString(R.string.xml_ad_height,
-                                a.getInt(attr, -1)));
+                Clog.d(Clog.xmlLogTag, R.string.xml_ad_height,
+                                a.getInt(attr, -1));
             } else if (attr == R.styleable.BannerAdView_should_reload_on_resume) {
                 setShouldReloadOnResume(a.getBoolean(attr, false));
-                Clog.d(Clog.xmlLogTag, Clog.getString(
-                        R.string.xml_set_should_reload, shouldReloadOnResume));
+                Clog.d(Clog.xmlLogTag, R.string.xml_set_should_reload, shouldReloadOnResume);
             } else if (attr == R.styleable.BannerAdView_opens_native_browser) {
                 setOpensNativeBrowser(a.getBoolean(attr, false));
-                Clog.d(Clog.xmlLogTag, Clog.getString(
-                        R.string.xml_set_opens_native_browser,
-                        opensNativeBrowser));
+                Clog.d(Clog.xmlLogTag, R.string.xml_set_opens_native_browser,
+                        opensNativeBrowser);
             }else if (attr == R.styleable.BannerAdView_expands_to_fit_screen_width){
                 setExpandsToFitScreenWidth(a.getBoolean(attr, false));
-                Clog.d(Clog.xmlLogTag, Clog.getString(
-                        R.string.xml_set_expands_to_full_screen_width,
-                        expandsToFitScreenWidth
-                ));
+                Clog.d(Clog.xmlLogTag, R.string.xml_set_expands_to_full_screen_width,
+                        expandsToFitScreenWidth);
             }
         }
         a.recycle();
@@ -349,8 +432,7 @@ public class BannerAdView extends AdView {
      *         enabled.
      */
     public int getAutoRefreshInterval() {
-        Clog.d(Clog.publicFunctionsLogTag,
-                Clog.getString(R.string.get_period, period));
+        Clog.d(Clog.publicFunctionsLogTag, R.string.get_period, period);
         return period;
     }
 
@@ -362,7 +444,7 @@ public class BannerAdView extends AdView {
      */
     @Deprecated
     public void setAdHeight(int h) {
-        Clog.d(Clog.baseLogTag, Clog.getString(R.string.set_height, h));
+        Clog.d(Clog.baseLogTag, R.string.set_height, h);
         height = h;
     }
 
@@ -374,7 +456,7 @@ public class BannerAdView extends AdView {
      */
     @Deprecated
     public void setAdWidth(int w) {
-        Clog.d(Clog.baseLogTag, Clog.getString(R.string.set_width, w));
+        Clog.d(Clog.baseLogTag, R.string.set_width, w);
         width = w;
     }
 
@@ -385,7 +467,7 @@ public class BannerAdView extends AdView {
      * @param h The height of the ad, in pixels.
      */
     public void setAdSize(int w, int h){
-        Clog.d(Clog.baseLogTag, Clog.getString(R.string.set_size, w, h));
+        Clog.d(Clog.baseLogTag, R.string.set_size, w, h);
         width=w;
         height=h;
     }
@@ -396,7 +478,7 @@ public class BannerAdView extends AdView {
      * @return The height of the ad to request.
      */
     public int getAdHeight() {
-        Clog.d(Clog.baseLogTag, Clog.getString(R.string.get_height, height));
+        Clog.d(Clog.baseLogTag, R.string.get_height, height);
         return height;
     }
 
@@ -406,7 +488,7 @@ public class BannerAdView extends AdView {
      * @return The width of the ad to request.
      */
     public int getAdWidth() {
-        Clog.d(Clog.baseLogTag, Clog.getString(R.string.get_width, width));
+        Clog.d(Clog.baseLogTag, R.string.get_width, width);
         return width;
     }
 
@@ -423,8 +505,7 @@ public class BannerAdView extends AdView {
         this.period = Math.max(Settings.getSettings().MIN_REFRESH_MILLISECONDS,
                 period);
         if (period > 0) {
-            Clog.d(Clog.publicFunctionsLogTag,
-                    Clog.getString(R.string.set_period, this.period));
+            Clog.d(Clog.publicFunctionsLogTag, R.string.set_period, this.period);
             setAutoRefresh(true);
         } else {
             setAutoRefresh(false);
@@ -440,8 +521,7 @@ public class BannerAdView extends AdView {
      * @return If true, this view will periodically request new ads.
      */
     private boolean getAutoRefresh() {
-        Clog.d(Clog.publicFunctionsLogTag,
-                Clog.getString(R.string.get_auto_refresh, auto_refresh));
+        Clog.d(Clog.publicFunctionsLogTag, R.string.get_auto_refresh, auto_refresh);
         return auto_refresh;
     }
 
@@ -452,8 +532,7 @@ public class BannerAdView extends AdView {
      *                     request new ads.
      */
     private void setAutoRefresh(boolean auto_refresh) {
-        Clog.d(Clog.publicFunctionsLogTag,
-                Clog.getString(R.string.set_auto_refresh, auto_refresh));
+        Clog.d(Clog.publicFunctionsLogTag, R.string.set_auto_refresh, auto_refresh);
         this.auto_refresh = auto_refresh;
         if (mAdFetcher != null) {
             mAdFetcher.setAutoRefresh(auto_refresh);
@@ -471,8 +550,7 @@ public class BannerAdView extends AdView {
      * @return If true, the ad will reload on resume.
      */
     public boolean getShouldReloadOnResume() {
-        Clog.d(Clog.publicFunctionsLogTag, Clog.getString(
-                R.string.get_should_resume, shouldReloadOnResume));
+        Clog.d(Clog.publicFunctionsLogTag, R.string.get_should_resume, shouldReloadOnResume);
         return shouldReloadOnResume;
     }
 
@@ -484,8 +562,7 @@ public class BannerAdView extends AdView {
      *                             on resume.
      */
     void setShouldReloadOnResume(boolean shouldReloadOnResume) {
-        Clog.d(Clog.publicFunctionsLogTag, Clog.getString(
-                R.string.set_should_resume, shouldReloadOnResume));
+        Clog.d(Clog.publicFunctionsLogTag, R.string.set_should_resume, shouldReloadOnResume);
         this.shouldReloadOnResume = shouldReloadOnResume;
     }
 
@@ -501,7 +578,7 @@ public class BannerAdView extends AdView {
                 setupBroadcast(getContext());
                 receiversRegistered = true;
             }
-            Clog.d(Clog.baseLogTag, Clog.getString(R.string.unhidden));
+            Clog.d(Clog.baseLogTag, R.string.unhidden);
             if (!closing && !mraid_changing_size_or_visibility && !isMRAIDExpanded() && mAdFetcher != null
                     && (running || shouldReloadOnResume || auto_refresh)){
                 start();
@@ -518,7 +595,7 @@ public class BannerAdView extends AdView {
                 dismantleBroadcast();
                 receiversRegistered = false;
             }
-            Clog.d(Clog.baseLogTag, Clog.getString(R.string.hidden));
+            Clog.d(Clog.baseLogTag, R.string.hidden);
             if (mAdFetcher != null && running) {
                 stop();
             }
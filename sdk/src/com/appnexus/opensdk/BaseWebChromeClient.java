@@ -26,19 +26,17 @@ class BaseWebChromeClient extends WebChromeClient {
 
     @Override
     public boolean onConsoleMessage(ConsoleMessage consoleMessage) {
-        Clog.v(Clog.jsLogTag,
-                Clog.getString(com.appnexus.opensdk.R.string.console_message,
+        Clog.v(Clog.jsLogTag, com.appnexus.opensdk.R.string.console_message,
                         consoleMessage.message(),
                         consoleMessage.lineNumber(),
-                        consoleMessage.sourceId()));
+                        consoleMessage.sourceId());
         return true;
     }
 
     @Override
     public boolean onJsAlert(WebView view, String url, String message,
                              JsResult result) {
-        Clog.v(Clog.jsLogTag,
-                Clog.getString(com.appnexus.opensdk.R.string.js_alert, message, url));
+        Clog.v(Clog.jsLogTag, com.appnexus.opensdk.R.string.js_alert, message, url);
         result.confirm();
         return true;
     }
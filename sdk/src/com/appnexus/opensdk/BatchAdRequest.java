@@ -0,0 +1,171 @@
+/*
+ *    Copyright 2013 APPNEXUS INC
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.appnexus.opensdk;
+
+import android.content.Context;
+import android.net.Uri;
+import android.os.AsyncTask;
+import android.os.Build;
+import com.appnexus.opensdk.utils.Clog;
+import com.appnexus.opensdk.utils.Settings;
+import org.apache.http.Header;
+import org.apache.http.HttpEntity;
+import org.apache.http.util.EntityUtils;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Fetches ads for several banners with one ad call.  Device and user
+ * parameters are sent once, taken from the first banner.  Placement ids
+ * and the per-placement parameters are sent as comma separated lists in
+ * banner order.  The server answers with {"batch":[...]}, one regular
+ * ad response per placement in the same order, and each one is handed
+ * to its banner's AdFetcher as if it had made the call itself.
+ */
+class BatchAdRequest extends AsyncTask<Void, Integer, AdResponse[]> {
+    private final ArrayList<AdFetcher> fetchers = new ArrayList<AdFetcher>();
+    private final ArrayList<AdRequest> requests = new ArrayList<AdRequest>();
+    private final Context context;
+
+    private static final AdResponse[] HTTP_ERROR = new AdResponse[0];
+
+    BatchAdRequest(List<AdFetcher> adFetchers) {
+        for (AdFetcher fetcher : adFetchers) {
+            // collects the same parameters a single request would
+            fetchers.add(fetcher);
+            requests.add(new AdRequest(fetcher));
+        }
+        context = fetchers.isEmpty() ? null : fetchers.get(0).getOwner().getContext();
+    }
+
+    int size() {
+        return requests.size();
+    }
+
+    String getRequestUrl() {
+        return Settings.getSettings().BASE_URL + getRequestParams(false);
+    }
+
+    // see AdRequest.getRequestParams()
+    String getRequestParams(boolean post) {
+        StringBuilder ids = new StringBuilder();
+        StringBuilder sizes = new StringBuilder();
+        StringBuilder maxSizes = new StringBuilder();
+        StringBuilder nativeBrowsers = new StringBuilder();
+        StringBuilder psas = new StringBuilder();
+        StringBuilder reserves = new StringBuilder();
+        for (int i = 0; i < requests.size(); i++) {
+            AdRequest request = requests.get(i);
+            String sep = i > 0 ? "," : "";
+            ids.append(sep).append(request.getPlacementId() != null
+                    ? Uri.encode(request.getPlacementId()) : "NO-PLACEMENT-ID");
+            sizes.append(sep).append(request.getSize());
+            maxSizes.append(sep).append(request.getMaxSize());
+            nativeBrowsers.append(sep).append(request.getNativeBrowser());
+            psas.append(sep).append(request.getPsa());
+            reserves.append(sep).append(request.getReserve() > 0 ? request.getReserve() : 0);
+        }
+
+        StringBuilder sb = new StringBuilder("ids=").append(ids);
+        sb.append("&sizes=").append(sizes);
+        sb.append("&max_sizes=").append(maxSizes);
+        sb.append("&native_browsers=").append(nativeBrowsers);
+        sb.append("&psas=").append(psas);
+        sb.append("&reserves=").append(reserves);
+        requests.get(0).appendSharedParams(sb, post);
+        return sb.toString();
+    }
+
+    @Override
+    protected AdResponse[] doInBackground(Void... params) {
+        for (AdRequest request : requests) {
+            if (!request.collectDeviceParams()) {
+                return null;
+            }
+        }
+        if (!AdRequest.hasNetwork(context)) {
+            Clog.e(Clog.httpReqLogTag, R.string.no_connectivity);
+            return null;
+        }
+
+        StringBuilder ids = new StringBuilder();
+        for (AdRequest request : requests) {
+            if (ids.length() > 0) ids.append(',');
+            ids.append(request.getPlacementId());
+        }
+
+        String query_string;
+        String body = null;
+        if (Settings.getSettings().POST_REQUESTS) {
+            query_string = Settings.getSettings().BASE_URL;
+            body = getRequestParams(true);
+            Clog.setLastRequest(body);
+            Clog.d(Clog.httpReqLogTag, R.string.fetch_post, query_string, body);
+        } else {
+            query_string = getRequestUrl();
+            Clog.setLastRequest(query_string);
+            Clog.d(Clog.httpReqLogTag, R.string.fetch_url, query_string);
+        }
+
+        final int count = requests.size();
+        AdResponse[] responses = AdRequest.executeRequest(query_string, body,
+                requests.get(0).getDevice(), ids.toString(), new AdRequest.ResponseReader<AdResponse[]>() {
+            @Override
+            public AdResponse[] read(HttpEntity entity, Header[] headers) throws IOException {
+                if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB) {
+                    return AdResponse.parseBatch(entity.getContent(),
+                            EntityUtils.getContentCharSet(entity), headers, count);
+                }
+                return AdResponse.parseBatch(EntityUtils.toString(entity), headers, count);
+            }
+        }, HTTP_ERROR);
+        if ((responses != null) && (context != null)) {
+            for (AdResponse response : responses) {
+                if (response != null) response.prepareCreative(context.getResources());
+            }
+        }
+        return responses;
+    }
+
+    @Override
+    protected void onPostExecute(AdResponse[] results) {
+        if (results == null) {
+            Clog.v(Clog.httpRespLogTag, R.string.no_response);
+        }
+
+        for (int i = 0; i < fetchers.size(); i++) {
+            AdFetcher fetcher = fetchers.get(i);
+            AdResponse response = ((results != null) && (i < results.length))
+                    ? results[i] : null;
+
+            fetcher.resumeAfterBatch();
+            if (response == null) {
+                fetcher.failed(requests.get(i));
+            } else {
+                fetcher.onReceiveResponse(response);
+            }
+        }
+    }
+
+    @Override
+    protected void onCancelled() {
+        super.onCancelled();
+        Clog.w(Clog.httpRespLogTag, R.string.cancel_request);
+    }
+}
@@ -144,8 +144,7 @@ public class BrowserActivity extends Activity {
             @Override
             public boolean shouldOverrideUrlLoading(WebView view, String url) {
                 if (url.startsWith("http")) {
-                    Clog.d(Clog.baseLogTag,
-                            Clog.getString(R.string.opening_url, url));
+                    Clog.d(Clog.baseLogTag, R.string.opening_url, url);
                     return false;
                 } else {
                     Intent i = new Intent(Intent.ACTION_VIEW);
@@ -154,8 +153,7 @@ public class BrowserActivity extends Activity {
                         startActivity(i);
                         finish();
                     } catch (ActivityNotFoundException e) {
-                        Clog.w(Clog.browserLogTag,
-                                Clog.getString(R.string.opening_url_failed, url));
+                        Clog.w(Clog.browserLogTag, R.string.opening_url_failed, url);
                     }
                     return true;
                 }
@@ -199,11 +197,10 @@ public class BrowserActivity extends Activity {
             @Override
             public boolean onConsoleMessage(ConsoleMessage consoleMessage) {
                 // super.onConsoleMessage(consoleMessage);
-                Clog.w(Clog.browserLogTag,
-                        Clog.getString(R.string.console_message,
+                Clog.w(Clog.browserLogTag, R.string.console_message,
                                 consoleMessage.message(),
                                 consoleMessage.lineNumber(),
-                                consoleMessage.sourceId()));
+                                consoleMessage.sourceId());
                 return true;
             }
 
@@ -211,8 +208,7 @@ public class BrowserActivity extends Activity {
             public boolean onJsAlert(WebView view, String url, String message,
                                      JsResult result) {
                 // /super.onJsAlert(view, url, message, result);
-                Clog.w(Clog.browserLogTag,
-                        Clog.getString(R.string.js_alert, message, url));
+                Clog.w(Clog.browserLogTag, R.string.js_alert, message, url);
                 result.confirm();
                 return true;
             }
@@ -257,8 +253,7 @@ public class BrowserActivity extends Activity {
         openBrowser.setOnClickListener(new OnClickListener() {
             @Override
             public void onClick(View v) {
-                Clog.d(Clog.baseLogTag,
-                        Clog.getString(R.string.opening_native_current));
+                Clog.d(Clog.baseLogTag, R.string.opening_native_current);
                 Intent i = new Intent(Intent.ACTION_VIEW, Uri.parse(webview
                         .getUrl()));
                 startActivity(i);
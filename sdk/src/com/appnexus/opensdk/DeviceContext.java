@@ -0,0 +1,295 @@
+/*
+ *    Copyright 2013 APPNEXUS INC
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.appnexus.opensdk;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.content.pm.PackageManager;
+import android.location.Location;
+import android.location.LocationManager;
+import android.net.ConnectivityManager;
+import android.net.NetworkInfo;
+import android.net.Uri;
+import android.provider.Settings.Secure;
+import android.telephony.TelephonyManager;
+import com.appnexus.opensdk.utils.Clog;
+import com.appnexus.opensdk.utils.HashingFunctions;
+import com.appnexus.opensdk.utils.Settings;
+import com.appnexus.opensdk.utils.StringUtil;
+
+import java.util.UUID;
+
+/**
+ * What an ad request needs to know about the device, gathered once per
+ * process instead of once per request.  The parameters that don't change
+ * between requests are kept in an immutable {@link Snapshot}, already
+ * URL-encoded.  It is rebuilt when one of the Settings it was built
+ * from changes, and while the carrier or MCC/MNC are unknown, for example
+ * in airplane mode or before the SIM is ready, at most once every
+ * OPERATOR_RETRY_INTERVAL and whenever connectivity changes.  Connectivity is updated from CONNECTIVITY_ACTION
+ * broadcasts, and the last known location is re-read at most once every
+ * LOCATION_REFRESH_INTERVAL.
+ */
+class DeviceContext {
+    private static final long LOCATION_REFRESH_INTERVAL = 60000;
+    private static final long OPERATOR_RETRY_INTERVAL = 60000;
+
+    private static DeviceContext instance = null;
+
+    private final Context context;
+    private final boolean hasLocationPermission;
+    private final boolean hasNetworkStatePermission;
+
+    private volatile Snapshot snapshot = null;
+    private volatile String connectionType = null;
+    private volatile Location location = null;
+    private volatile long locationReadAt = -1;
+
+    static synchronized DeviceContext getInstance(Context context) {
+        if (instance == null) {
+            instance = new DeviceContext(context.getApplicationContext());
+        }
+        return instance;
+    }
+
+    private DeviceContext(Context context) {
+        this.context = context;
+
+        hasLocationPermission = (context
+                .checkCallingOrSelfPermission("android.permission.ACCESS_FINE_LOCATION") == PackageManager.PERMISSION_GRANTED)
+                || (context
+                .checkCallingOrSelfPermission("android.permission.ACCESS_COARSE_LOCATION") == PackageManager.PERMISSION_GRANTED);
+        if (!hasLocationPermission) {
+            Clog.w(Clog.baseLogTag, R.string.permissions_missing_location);
+        }
+
+        hasNetworkStatePermission = context
+                .checkCallingOrSelfPermission("android.permission.ACCESS_NETWORK_STATE") == PackageManager.PERMISSION_GRANTED;
+        if (hasNetworkStatePermission) {
+            updateConnectionType();
+            context.registerReceiver(new BroadcastReceiver() {
+                @Override
+                public void onReceive(Context context, Intent intent) {
+                    updateConnectionType();
+                    // the network operator may be known now
+                    Snapshot s = snapshot;
+                    if ((s != null) && s.isMissingOperator()) {
+                        snapshot = null;
+                    }
+                }
+            }, new IntentFilter(ConnectivityManager.CONNECTIVITY_ACTION));
+        }
+    }
+
+    boolean hasNetworkStatePermission() {
+        return hasNetworkStatePermission;
+    }
+
+    /**
+     * @return the device parameters, rebuilt first if the Settings they
+     * come from have changed since the last request.
+     */
+    Snapshot getSnapshot() {
+        Snapshot s = snapshot;
+        if ((s == null) || s.isStale()) {
+            s = buildSnapshot();
+            snapshot = s;
+        }
+        return s;
+    }
+
+    String getConnectionType() {
+        return connectionType;
+    }
+
+    /**
+     * @return the most recent last known location of any provider, or
+     * null if there is none or no permission to read it.
+     */
+    Location getLocation() {
+        if (!hasLocationPermission) return null;
+
+        long now = System.currentTimeMillis();
+        if ((locationReadAt == -1) || (now - locationReadAt >= LOCATION_REFRESH_INTERVAL)) {
+            locationReadAt = now;
+            location = readLastLocation();
+        }
+        return location;
+    }
+
+    private Location readLastLocation() {
+        // Get lat, long from any GPS information that might be currently
+        // available
+        LocationManager lm = (LocationManager) context
+                .getSystemService(Context.LOCATION_SERVICE);
+        Location lastLocation = null;
+        try {
+            for (String provider_name : lm.getProviders(true)) {
+                Location l = lm.getLastKnownLocation(provider_name);
+                if (l == null) {
+                    continue;
+                }
+
+                if (lastLocation == null) {
+                    lastLocation = l;
+                } else {
+                    if (l.getTime() > 0 && lastLocation.getTime() > 0) {
+                        if (l.getTime() > lastLocation.getTime()) {
+                            lastLocation = l;
+                        }
+                    }
+                }
+            }
+        } catch (SecurityException e) {
+            Clog.w(Clog.baseLogTag, R.string.permissions_missing_location);
+        }
+        return lastLocation;
+    }
+
+    private void updateConnectionType() {
+        ConnectivityManager cm = (ConnectivityManager) context
+                .getSystemService(Context.CONNECTIVITY_SERVICE);
+        NetworkInfo wifi = cm.getNetworkInfo(ConnectivityManager.TYPE_WIFI);
+        connectionType = (wifi != null) && wifi.isConnected() ? "wifi" : "wan";
+    }
+
+    private Snapshot buildSnapshot() {
+        Settings settings = Settings.getSettings();
+
+        // Get hidmd5, hidsha1, the device ID hashed
+        if ((settings.hidmd5 == null) || (settings.hidsha1 == null)) {
+            String aid = Secure.getString(context.getContentResolver(), Secure.ANDROID_ID);
+            if (settings.hidmd5 == null) {
+                settings.hidmd5 = HashingFunctions.md5(aid);
+            }
+            if (settings.hidsha1 == null) {
+                settings.hidsha1 = HashingFunctions.sha1(aid);
+            }
+        }
+
+        TelephonyManager tm = null;
+        // Get carrier
+        if (StringUtil.isEmpty(settings.carrierName)) {
+            tm = (TelephonyManager) context.getSystemService(Context.TELEPHONY_SERVICE);
+            settings.carrierName = tm.getNetworkOperatorName();
+        }
+        if (StringUtil.isEmpty(settings.mcc) || StringUtil.isEmpty(settings.mnc)) {
+            if (tm == null) {
+                tm = (TelephonyManager) context.getSystemService(Context.TELEPHONY_SERVICE);
+            }
+            String networkOperator = tm.getNetworkOperator();
+            if (networkOperator != null && networkOperator.length() >= 6) {
+                settings.mcc = networkOperator.substring(0, 3);
+                settings.mnc = networkOperator.substring(3);
+            }
+        }
+
+        return new Snapshot(settings.hidmd5, settings.hidsha1, settings.carrierName,
+                settings.mcc, settings.mnc);
+    }
+
+    /**
+     * Device and app parameters that are the same for every request,
+     * encoded once.  In POST mode the server keeps them under a session
+     * token, new with every Snapshot, so they are only sent until the
+     * server has answered a request that carried them.
+     */
+    static final class Snapshot {
+        private final String ua;
+        private final String appId;
+        private final boolean firstLaunch;
+        private final boolean testMode;
+        private final String encoded;
+        private final boolean missingOperator;
+        private final long builtAt = System.currentTimeMillis();
+        private final String sessionToken = UUID.randomUUID().toString().replace("-", "");
+        private volatile boolean sessionKnown = false;
+
+        Snapshot(String hidmd5, String hidsha1, String carrier, String mcc, String mnc) {
+            Settings settings = Settings.getSettings();
+            ua = settings.ua;
+            appId = settings.app_id;
+            firstLaunch = settings.first_launch;
+            testMode = settings.test_mode;
+            missingOperator = StringUtil.isEmpty(carrier) || StringUtil.isEmpty(mcc)
+                    || StringUtil.isEmpty(mnc);
+
+            StringBuilder sb = new StringBuilder();
+            if (!StringUtil.isEmpty(hidmd5)) sb.append("&md5udid=").append(Uri.encode(hidmd5));
+            if (!StringUtil.isEmpty(hidsha1)) sb.append("&sha1udid=").append(Uri.encode(hidsha1));
+            if (!StringUtil.isEmpty(settings.deviceMake)) sb.append("&devmake=").append(Uri.encode(settings.deviceMake));
+            if (!StringUtil.isEmpty(settings.deviceModel)) sb.append("&devmodel=").append(Uri.encode(settings.deviceModel));
+            if (!StringUtil.isEmpty(carrier)) sb.append("&carrier=").append(Uri.encode(carrier));
+            sb.append("&appid=");
+            if (!StringUtil.isEmpty(appId)) {
+                sb.append(Uri.encode(appId));
+            } else {
+                sb.append("NO-APP-ID");
+            }
+            if (firstLaunch) sb.append("&firstlaunch=true");
+            if (testMode) sb.append("&istest=true");
+            if (!StringUtil.isEmpty(ua)) sb.append("&ua=").append(Uri.encode(ua));
+            if (!StringUtil.isEmpty(mcc)) sb.append("&mcc=").append(Uri.encode(mcc));
+            if (!StringUtil.isEmpty(mnc)) sb.append("&mnc=").append(Uri.encode(mnc));
+            if (!StringUtil.isEmpty(settings.language)) sb.append("&language=").append(Uri.encode(settings.language));
+            sb.append("&format=json");
+            sb.append("&st=mobile_app");
+            sb.append("&sdkver=").append(Uri.encode(settings.sdkVersion));
+            encoded = sb.toString();
+        }
+
+        /**
+         * @return the parameters as "&name=value" pairs, ready to append
+         * to the request URL.
+         */
+        String getEncodedParams() {
+            return encoded;
+        }
+
+        String getSessionToken() {
+            return sessionToken;
+        }
+
+        /**
+         * @return whether the server has the parameters under the session
+         * token, so a POST body can leave them out.
+         */
+        boolean isSessionKnown() {
+            return sessionKnown;
+        }
+
+        void setSessionKnown(boolean known) {
+            sessionKnown = known;
+        }
+
+        private boolean isStale() {
+            Settings settings = Settings.getSettings();
+            return !StringUtil.equals(ua, settings.ua)
+                    || !StringUtil.equals(appId, settings.app_id)
+                    || (firstLaunch != settings.first_launch)
+                    || (testMode != settings.test_mode)
+                    || (missingOperator
+                    && (System.currentTimeMillis() - builtAt >= OPERATOR_RETRY_INTERVAL));
+        }
+
+        private boolean isMissingOperator() {
+            return missingOperator;
+        }
+    }
+}
@@ -0,0 +1,373 @@
+/*
+ *    Copyright 2013 APPNEXUS INC
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.appnexus.opensdk;
+
+import android.annotation.SuppressLint;
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.net.ConnectivityManager;
+import android.os.AsyncTask;
+import android.os.Build;
+import android.os.Handler;
+import android.os.Looper;
+import com.appnexus.opensdk.utils.Clog;
+import com.appnexus.opensdk.utils.HTTPEngine;
+import com.appnexus.opensdk.utils.Settings;
+import org.apache.http.HttpResponse;
+import org.apache.http.client.methods.HttpGet;
+
+import java.io.*;
+import java.util.ArrayList;
+
+/**
+ * <p>
+ * Tracking calls that must reach the server even if the device is offline
+ * or the app is killed: the install pixel and the result_cb of mediated
+ * ads that were shown.  Each call is appended to a file before anything
+ * is sent, one "time url" line per call, and removed once the server has
+ * answered.
+ * </p>
+ * <p>
+ * Calls are sent BATCH_SIZE at a time on the AsyncTask pool.  After a
+ * failure the next attempt waits on the main looper, from
+ * RETRY_DELAY_INTERVAL_MS doubling up to RETRY_DELAY_MAX_MS, so no thread
+ * is held while waiting.  While the device is offline nothing is tried
+ * until connectivity returns.  Calls older than MAX_AGE_MS, or beyond the
+ * newest MAX_EVENTS, are dropped.
+ * </p>
+ */
+class EventJournal {
+    static final String FILE_NAME = "appnexus_events";
+    static final int BATCH_SIZE = 10;
+    static final int MAX_EVENTS = 100;
+    static final long MAX_AGE_MS = 7 * 24 * 60 * 60 * 1000L;
+    static final int RETRY_DELAY_INTERVAL_MS = 30 * 1000;
+    static final int RETRY_DELAY_MAX_MS = 300 * 1000;
+
+    // the file is only touched while holding the class lock
+    private static Context appContext = null;
+    private static BroadcastReceiver connectivityReceiver = null;
+
+    // sender state, main thread only
+    private static final Handler handler = new Handler(Looper.getMainLooper());
+    private static boolean sending = false;
+    private static int delay = 0;
+    private static final Runnable retry = new Runnable() {
+        @Override
+        public void run() {
+            send();
+        }
+    };
+
+    /**
+     * Writes the call to the journal, then sends whatever is pending.  The
+     * write happens on the calling thread so the call survives the process
+     * being killed straight after, as it can be after a BroadcastReceiver
+     * returns.
+     */
+    static void add(Context context, String url) {
+        if ((context == null) || (url == null)) return;
+        synchronized (EventJournal.class) {
+            init(context);
+            Writer out = null;
+            try {
+                out = new OutputStreamWriter(appContext.openFileOutput(FILE_NAME,
+                        Context.MODE_PRIVATE | Context.MODE_APPEND), "UTF-8");
+                out.write(System.currentTimeMillis() + " " + url + "\n");
+            } catch (IOException e) {
+                Clog.e(Clog.baseLogTag, R.string.event_journal_io_error, e.getMessage());
+            } finally {
+                close(out);
+            }
+        }
+        Clog.d(Clog.baseLogTag, R.string.event_journal_added, url);
+        flush(context);
+    }
+
+    /**
+     * Like {@link #add(Context, String)}, but writes the call on the
+     * AsyncTask pool, for callers on the main thread.
+     */
+    @SuppressLint("NewApi")
+    static void post(final Context context, final String url) {
+        if ((context == null) || (url == null)) return;
+        AsyncTask<Void, Void, Void> task = new AsyncTask<Void, Void, Void>() {
+            @Override
+            protected Void doInBackground(Void... params) {
+                add(context, url);
+                return null;
+            }
+        };
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB) {
+            task.executeOnExecutor(AsyncTask.THREAD_POOL_EXECUTOR);
+        } else {
+            task.execute();
+        }
+    }
+
+    /**
+     * Sends the pending calls, for example those left over from an earlier
+     * run of the app, unless a send is already in progress or waiting.
+     */
+    static void flush(Context context) {
+        if (context == null) return;
+        synchronized (EventJournal.class) {
+            init(context);
+        }
+        handler.post(new Runnable() {
+            @Override
+            public void run() {
+                // while backing off, leave it to the retry
+                if (delay == 0) {
+                    send();
+                }
+            }
+        });
+    }
+
+    // call with the class lock held
+    private static void init(Context context) {
+        if (appContext == null) {
+            appContext = context.getApplicationContext();
+        }
+    }
+
+    // main thread
+    @SuppressLint("NewApi")
+    private static void send() {
+        if (sending || (appContext == null)) return;
+        handler.removeCallbacks(retry);
+        if (!appContext.getFileStreamPath(FILE_NAME).exists()) {
+            // nothing to send
+            delay = 0;
+            stopWaitingForNetwork();
+            return;
+        }
+        if (!AdRequest.hasNetwork(appContext)) {
+            waitForNetwork();
+            return;
+        }
+
+        sending = true;
+        AsyncTask<Void, Void, Boolean> task = new SendTask();
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB) {
+            task.executeOnExecutor(AsyncTask.THREAD_POOL_EXECUTOR);
+        } else {
+            task.execute();
+        }
+    }
+
+    // main thread, after a SendTask
+    private static void sent(boolean succeeded, boolean morePending) {
+        sending = false;
+        if (!morePending) {
+            delay = 0;
+            stopWaitingForNetwork();
+            return;
+        }
+        if (succeeded) {
+            // a full batch went through, carry on with the next
+            delay = 0;
+            send();
+            return;
+        }
+        delay = (delay == 0) ? RETRY_DELAY_INTERVAL_MS
+                : Math.min(delay * 2, RETRY_DELAY_MAX_MS);
+        Clog.d(Clog.baseLogTag, R.string.event_journal_retry, delay);
+        handler.postDelayed(retry, delay);
+        waitForNetwork();
+    }
+
+    // main thread
+    private static void waitForNetwork() {
+        if (connectivityReceiver != null) return;
+        connectivityReceiver = new BroadcastReceiver() {
+            @Override
+            public void onReceive(Context context, Intent intent) {
+                // registering delivers the current state, which isn't news
+                if (isInitialStickyBroadcast()) return;
+                if (AdRequest.hasNetwork(context)) {
+                    // back online, try again straight away
+                    delay = 0;
+                    send();
+                }
+            }
+        };
+        appContext.registerReceiver(connectivityReceiver,
+                new IntentFilter(ConnectivityManager.CONNECTIVITY_ACTION));
+    }
+
+    // main thread
+    private static void stopWaitingForNetwork() {
+        if (connectivityReceiver == null) return;
+        try {
+            appContext.unregisterReceiver(connectivityReceiver);
+        } catch (IllegalArgumentException ignored) {
+        }
+        connectivityReceiver = null;
+    }
+
+    // Sends up to BATCH_SIZE calls and drops the ones the server answered.
+    // Returns whether they all went through.
+    private static class SendTask extends AsyncTask<Void, Void, Boolean> {
+        private boolean morePending = false;
+
+        @Override
+        protected Boolean doInBackground(Void... params) {
+            ArrayList<String> batch = new ArrayList<String>();
+            synchronized (EventJournal.class) {
+                try {
+                    ArrayList<String> lines = read();
+                    for (int i = 0; (i < lines.size()) && (i < BATCH_SIZE); i++) {
+                        batch.add(lines.get(i));
+                    }
+                } catch (IOException e) {
+                    Clog.e(Clog.baseLogTag, R.string.event_journal_io_error, e.getMessage());
+                    return false;
+                }
+            }
+
+            ArrayList<String> delivered = new ArrayList<String>();
+            for (String line : batch) {
+                if (!deliver(line.substring(line.indexOf(' ') + 1))) break;
+                delivered.add(line);
+            }
+
+            synchronized (EventJournal.class) {
+                // calls may have been appended or expired while sending, so
+                // the delivered ones are found by their line, not position
+                try {
+                    ArrayList<String> lines = read();
+                    for (String line : delivered) {
+                        lines.remove(line);
+                    }
+                    write(lines);
+                    morePending = !lines.isEmpty();
+                } catch (IOException e) {
+                    Clog.e(Clog.baseLogTag, R.string.event_journal_io_error, e.getMessage());
+                    morePending = true;
+                    return false;
+                }
+            }
+            return delivered.size() == batch.size();
+        }
+
+        @Override
+        protected void onPostExecute(Boolean succeeded) {
+            sent(succeeded, morePending);
+        }
+
+        @Override
+        protected void onCancelled() {
+            sending = false;
+        }
+    }
+
+    // whether the server answered; a 5xx is worth retrying, anything else isn't
+    private static boolean deliver(String url) {
+        HttpResponse r = null;
+        try {
+            HttpGet get = new HttpGet(url);
+            get.setHeader("User-Agent", Settings.getSettings().ua);
+            r = HTTPEngine.execute(get);
+            int status = (r.getStatusLine() != null) ? r.getStatusLine().getStatusCode() : 500;
+            if (status >= 500) return false;
+            Clog.d(Clog.baseLogTag, R.string.event_journal_sent, url);
+            return true;
+        } catch (IllegalArgumentException e) {
+            // a malformed url will never go through
+            return true;
+        } catch (Exception e) {
+            return false;
+        } finally {
+            HTTPEngine.release(r);
+        }
+    }
+
+    // the live lines in the file, oldest first; call with the class lock held
+    private static ArrayList<String> read() throws IOException {
+        ArrayList<String> lines = new ArrayList<String>();
+        BufferedReader in = null;
+        boolean dropped = false;
+        try {
+            in = new BufferedReader(new InputStreamReader(
+                    appContext.openFileInput(FILE_NAME), "UTF-8"));
+            long oldest = System.currentTimeMillis() - MAX_AGE_MS;
+            String line;
+            while ((line = in.readLine()) != null) {
+                int space = line.indexOf(' ');
+                long time;
+                try {
+                    time = (space > 0) ? Long.parseLong(line.substring(0, space)) : -1;
+                } catch (NumberFormatException e) {
+                    time = -1;
+                }
+                if (time < oldest) {
+                    dropped = true;
+                    continue;
+                }
+                lines.add(line);
+            }
+        } catch (FileNotFoundException e) {
+            // nothing journaled yet
+        } finally {
+            close(in);
+        }
+        if (lines.size() > MAX_EVENTS) {
+            lines.subList(0, lines.size() - MAX_EVENTS).clear();
+            dropped = true;
+        }
+        if (dropped) {
+            Clog.w(Clog.baseLogTag, R.string.event_journal_dropped);
+        }
+        return lines;
+    }
+
+    // replaces the file with lines, through a temporary file so a crash
+    // can't leave it half written; call with the class lock held
+    private static void write(ArrayList<String> lines) throws IOException {
+        if (lines.isEmpty()) {
+            appContext.deleteFile(FILE_NAME);
+            return;
+        }
+        String tmp = FILE_NAME + ".tmp";
+        Writer out = null;
+        try {
+            out = new OutputStreamWriter(appContext.openFileOutput(tmp,
+                    Context.MODE_PRIVATE), "UTF-8");
+            for (String line : lines) {
+                out.write(line);
+                out.write('\n');
+            }
+        } finally {
+            close(out);
+        }
+        if (!appContext.getFileStreamPath(tmp).renameTo(appContext.getFileStreamPath(FILE_NAME))) {
+            throw new IOException("rename failed");
+        }
+    }
+
+    private static void close(Closeable c) {
+        if (c == null) return;
+        try {
+            c.close();
+        } catch (IOException ignored) {
+        }
+    }
+}
@@ -20,25 +20,16 @@ import android.content.BroadcastReceiver;
 import android.content.Context;
 import android.content.Intent;
 import android.net.Uri;
-import android.os.AsyncTask;
 import android.os.Bundle;
 import android.provider.Settings.Secure;
 import com.appnexus.opensdk.utils.Clog;
 import com.appnexus.opensdk.utils.HashingFunctions;
 import com.appnexus.opensdk.utils.Settings;
-import org.apache.http.client.HttpClient;
-import org.apache.http.client.methods.HttpGet;
-import org.apache.http.impl.client.DefaultHttpClient;
-import org.apache.http.params.BasicHttpParams;
-import org.apache.http.params.HttpConnectionParams;
-import org.apache.http.params.HttpParams;
 
 class InstallTrackerPixel extends BroadcastReceiver {
 
     /* SET THIS TO YOUR PIXEL ID */
     final String pid = "";
-    static final int RETRY_DELAY_INTERVAL_MS = 30 * 1000;
-    static final int RETRY_DELAY_MAX_MS = 300 * 1000;
 
     BroadcastReceiver receiver_install;
     Context context;
@@ -57,9 +48,15 @@ class InstallTrackerPixel extends BroadcastReceiver {
         this.context = context;
         Clog.error_context = context;
         Bundle extras = intent.getExtras();
+        if (extras == null) {
+            Clog.d(Clog.baseLogTag, R.string.conversion_pixel_fail);
+            return; // can't try again without proper bundle info
+        }
 
-        new PixelHttpTask(0).execute(extras);
-        // new Thread(new RequestRunnable(extras)).start();
+        String url = getInstallUrl(extras.getString("referrer"));
+        Clog.d(Clog.baseLogTag, R.string.conversion_pixel, url);
+        // sent, and retried until it goes through, by the journal
+        EventJournal.add(context, url);
 
     }
 
@@ -90,81 +87,4 @@ class InstallTrackerPixel extends BroadcastReceiver {
         return urlBuilder.toString();
     }
 
-    private class PixelHttpTask extends AsyncTask<Bundle, Void, Boolean> {
-
-        Bundle extras;
-        int delay;
-
-        public PixelHttpTask(int delay) {
-            super();
-            this.delay = delay;
-        }
-
-        @Override
-        synchronized protected Boolean doInBackground(Bundle... params) {
-
-            if (params == null || params.length < 1 || params[0] == null) {
-                Clog.d(Clog.baseLogTag,
-                        Clog.getString(R.string.conversion_pixel_fail));
-                return true; // Didn't really succeed but can't try again
-                // without proper bundle info
-            }
-
-            if (delay > 0) {
-                try {
-                    Thread.sleep(delay);
-                } catch (InterruptedException e1) {
-                    // Just continue until time limit is met
-                }
-            }
-            extras = params[0];
-            String referralString = extras.getString("referrer");
-
-            String url = getInstallUrl(referralString);
-
-            Clog.d(Clog.baseLogTag,
-                    Clog.getString(R.string.conversion_pixel, url));
-
-            try {
-                HttpParams p = new BasicHttpParams();
-                HttpConnectionParams.setConnectionTimeout(p,
-                        Settings.getSettings().HTTP_CONNECTION_TIMEOUT);
-                HttpConnectionParams.setSoTimeout(p,
-                        Settings.getSettings().HTTP_SOCKET_TIMEOUT);
-                HttpConnectionParams.setSocketBufferSize(p, 8192);
-                HttpClient client = new DefaultHttpClient(p);
-                HttpGet get = new HttpGet(url);
-                client.execute(get);
-            } catch (Exception e) {
-                e.printStackTrace();
-                return false;
-            }
-            return true;
-        }
-
-        @Override
-        protected void onPostExecute(Boolean succeeded) {
-            if (succeeded) {
-                Clog.d(Clog.baseLogTag,
-                        Clog.getString(R.string.conversion_pixel_success));
-                return;
-            } else {
-                // Wait 30 seconds and try, try again.
-                if (delay == 0) {
-                    delay = RETRY_DELAY_INTERVAL_MS;
-                } else if (delay < RETRY_DELAY_MAX_MS) {
-                    delay = delay * 2;
-                } else {
-                    // Give up
-                    Clog.d(Clog.baseLogTag,
-                            Clog.getString(R.string.conversion_pixel_fail));
-                    return;
-                }
-                Clog.d(Clog.baseLogTag,
-                        Clog.getString(R.string.conversion_pixel_delay, delay));
-                new PixelHttpTask(delay).execute(extras);
-            }
-        }
-    }
-
 }
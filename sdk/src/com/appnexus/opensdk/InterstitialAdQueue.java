@@ -0,0 +1,134 @@
+/*
+ *    Copyright 2013 APPNEXUS INC
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.appnexus.opensdk;
+
+import com.appnexus.opensdk.utils.Clog;
+import com.appnexus.opensdk.utils.Settings;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+
+/**
+ * Loaded interstitials waiting to be shown, one slot per placement, oldest
+ * first.  Each ad expires after the server's Cache-Control max-age, or
+ * Settings.INTERSTITIAL_MAX_AGE if none was sent; expired ads are dropped
+ * whenever the slot is looked at.  Ads that are dropped or cleared are
+ * destroyed, ads taken with poll() belong to the caller.  Safe to use
+ * from any thread.
+ */
+class InterstitialAdQueue {
+    private static final HashMap<String, LinkedList<Entry>> slots
+            = new HashMap<String, LinkedList<Entry>>();
+    private static int total = 0;
+
+    private static class Entry {
+        final Displayable displayable;
+        final long expiresAt;
+
+        Entry(Displayable displayable, long expiresAt) {
+            this.displayable = displayable;
+            this.expiresAt = expiresAt;
+        }
+    }
+
+    /**
+     * @param maxAge how long the ad may wait in ms, or -1 for
+     *               Settings.INTERSTITIAL_MAX_AGE
+     */
+    static synchronized void add(String placementId, Displayable d, long maxAge) {
+        if (d == null) return;
+        if (maxAge <= 0) maxAge = Settings.getSettings().INTERSTITIAL_MAX_AGE;
+
+        LinkedList<Entry> slot = slots.get(key(placementId));
+        if (slot == null) {
+            slot = new LinkedList<Entry>();
+            slots.put(key(placementId), slot);
+        }
+        slot.add(new Entry(d, System.currentTimeMillis() + maxAge));
+        changed(1);
+    }
+
+    /**
+     * @return the oldest live ad for the placement, or null if there is none
+     */
+    static synchronized Displayable peek(String placementId) {
+        LinkedList<Entry> slot = purge(placementId);
+        return ((slot == null) || slot.isEmpty()) ? null : slot.getFirst().displayable;
+    }
+
+    /**
+     * Removes and returns the oldest live ad for the placement, or null if
+     * there is none.
+     */
+    static synchronized Displayable poll(String placementId) {
+        LinkedList<Entry> slot = purge(placementId);
+        if ((slot == null) || slot.isEmpty()) return null;
+        Displayable d = slot.removeFirst().displayable;
+        changed(-1);
+        return d;
+    }
+
+    /**
+     * @return how many live ads the placement has waiting
+     */
+    static synchronized int size(String placementId) {
+        LinkedList<Entry> slot = purge(placementId);
+        return (slot == null) ? 0 : slot.size();
+    }
+
+    static synchronized void clear(String placementId) {
+        LinkedList<Entry> slot = slots.remove(key(placementId));
+        if (slot == null) return;
+        for (Entry e : slot) {
+            e.displayable.destroy();
+        }
+        changed(-slot.size());
+    }
+
+    // drops the slot's expired ads, whatever their position
+    private static LinkedList<Entry> purge(String placementId) {
+        LinkedList<Entry> slot = slots.get(key(placementId));
+        if (slot == null) return null;
+
+        long now = System.currentTimeMillis();
+        int removed = 0;
+        Iterator<Entry> it = slot.iterator();
+        while (it.hasNext()) {
+            Entry e = it.next();
+            if (e.expiresAt <= now) {
+                it.remove();
+                e.displayable.destroy();
+                removed++;
+            }
+        }
+        if (removed > 0) {
+            Clog.w(Clog.baseLogTag, R.string.too_old, removed, placementId);
+            changed(-removed);
+        }
+        return slot;
+    }
+
+    private static void changed(int delta) {
+        total += delta;
+        Metrics.gauge(Metrics.Gauge.QUEUED_INTERSTITIALS, total);
+    }
+
+    private static String key(String placementId) {
+        return (placementId == null) ? "" : placementId;
+    }
+}
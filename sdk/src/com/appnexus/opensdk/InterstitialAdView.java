@@ -23,9 +23,9 @@ import android.content.Intent;
 import android.content.res.TypedArray;
 import android.graphics.Color;
 import android.graphics.Rect;
+import android.os.SystemClock;
 import android.util.AttributeSet;
 import android.util.DisplayMetrics;
-import android.util.Pair;
 import android.view.ViewGroup;
 import android.view.Window;
 import android.view.WindowManager;
@@ -33,8 +33,6 @@ import com.appnexus.opensdk.utils.Clog;
 import com.appnexus.opensdk.utils.Settings;
 
 import java.util.ArrayList;
-import java.util.LinkedList;
-import java.util.Queue;
 
 /**
  * This class controls the loading and display of interstitial ads.
@@ -43,16 +41,23 @@ import java.util.Queue;
  * to show the ad.
  */
 public class InterstitialAdView extends AdView {
-    static final long MAX_AGE = 60000;
     private ArrayList<Size> allowedSizes;
     private int backgroundColor = Color.BLACK;
     private int closeButtonDelay = Settings.getSettings().DEFAULT_INTERSTITIAL_CLOSE_BUTTON_DELAY;
     boolean interacted = false;
     static InterstitialAdView INTERSTITIALADVIEW_TO_USE;
-    static final Queue<Pair<Long, Displayable>> q = new LinkedList<Pair<Long, Displayable>>();
+    private int preloadDepth = 0;
+    private boolean loading = false;
+    // after a failed load, refills wait until then, in uptime
+    private long refillAfter = 0;
+    private final Runnable retryRefill = new Runnable() {
+        @Override
+        public void run() {
+            refill();
+        }
+    };
 
     //Intent Keys
-    static final String INTENT_KEY_TIME = "TIME";
     private static final String INTENT_KEY_ORIENTATION = "ORIENTATION";
     static final String INTENT_KEY_CLOSE_BUTTON_DELAY = "CLOSE_BUTTON_DELAY";
     static final String INTENT_KEY_ACTIVITY_TYPE = "ACTIVITY_TYPE";
@@ -153,21 +158,19 @@ public class InterstitialAdView extends AdView {
                 R.styleable.InterstitialAdView);
 
         final int N = a.getIndexCount();
-        Clog.v(Clog.xmlLogTag, Clog.getString(R.string.found_n_in_xml, N));
+        Clog.v(Clog.xmlLogTag, R.string.found_n_in_xml, N);
         for (int i = 0; i < N; ++i) {
             int attr = a.getIndex(i);
             if (attr == R.styleable.InterstitialAdView_placement_id) {
                 setPlacementID(a.getString(attr));
-                Clog.d(Clog.xmlLogTag, Clog.getString(R.string.placement_id,
-                        a.getString(attr)));
+                Clog.d(Clog.xmlLogTag, R.string.placement_id,
+                        a.getString(attr));
             } else if (attr == R.styleable.InterstitialAdView_test) {
                 Settings.getSettings().test_mode = a.getBoolean(attr, false);
-                Clog.d(Clog.xmlLogTag,
-                        Clog.getString(R.string.xml_set_test,
-                                Settings.getSettings().test_mode));
+                Clog.d(Clog.xmlLogTag, R.string.xml_set_test,
+                                Settings.getSettings().test_mode);
             } else if (attr == R.styleable.InterstitialAdView_opens_native_browser) {
-                Clog.d(Clog.xmlLogTag,
-                        Clog.getString(R.string.xml_set_opens_native_browser));
+                Clog.d(Clog.xmlLogTag, R.string.xml_set_opens_native_browser);
                 this.setOpensNativeBrowser(a.getBoolean(attr, false));
             }
         }
@@ -176,21 +179,26 @@ public class InterstitialAdView extends AdView {
 
     /**
      * Requests a new interstitial ad from the server and stores it in
-     * a local queue.  Note that interstitials have a timeout of 60
-     * seconds; you must show the interstitial (by calling
-     * <code>show()</code>) within 60 seconds of getting a response;
-     * otherwise, the ad will not show.
+     * a local queue.  Each ad may wait in the queue for as long as the
+     * server allows, 60 seconds unless it says otherwise; you must show
+     * the interstitial (by calling <code>show()</code>) before then,
+     * otherwise the ad will not show.
      *
      * @return <code>true</code> if the ad load was successfully
      * dispatched; <code>false</code> otherwise.
      */
     @Override
     public boolean loadAd() {
-        Clog.d(Clog.publicFunctionsLogTag, Clog.getString(R.string.load_ad_int));
+        Clog.d(Clog.publicFunctionsLogTag, R.string.load_ad_int);
+        return startLoad();
+    }
+
+    private boolean startLoad() {
         if (!isReadyToStart())
             return false;
         if (mAdFetcher != null) {
             // Load an interstitial ad
+            loading = true;
             mAdFetcher.stop();
             mAdFetcher.start();
             return true;
@@ -198,14 +206,42 @@ public class InterstitialAdView extends AdView {
         return false;
     }
 
+    // Loads another ad if fewer than preloadDepth are ready, no load is
+    // in progress and the last one didn't just fail
+    void refill() {
+        if ((preloadDepth <= 0) || loading
+                || (SystemClock.uptimeMillis() < refillAfter))
+            return;
+        int ready = InterstitialAdQueue.size(getPlacementID());
+        if (ready >= preloadDepth)
+            return;
+        Clog.d(Clog.baseLogTag, R.string.interstitial_refill, getPlacementID(),
+                ready, preloadDepth);
+        startLoad();
+    }
+
     @Override
     void display(Displayable d) {
         if (d == null) {
             fail();
             return;
         }
-        InterstitialAdView.q.add(new Pair<Long, Displayable>(System
-                .currentTimeMillis(), d));
+        InterstitialAdQueue.add(getPlacementID(), d,
+                (mAdFetcher != null) ? mAdFetcher.getResponseMaxAge() : -1);
+        loading = false;
+        refill();
+    }
+
+    @Override
+    void loadFailed() {
+        loading = false;
+        if (preloadDepth > 0) {
+            // try again later, not on the next show() or setPreloadDepth()
+            long delay = Settings.getSettings().MIN_REFRESH_MILLISECONDS;
+            refillAfter = SystemClock.uptimeMillis() + delay;
+            handler.removeCallbacks(retryRefill);
+            handler.postDelayed(retryRefill, delay);
+        }
     }
 
     void interacted() {
@@ -221,27 +257,6 @@ public class InterstitialAdView extends AdView {
         // leave empty so that we don't call super
     }
 
-    // removes stale ads and returns whether or not a valid ad exists
-    private boolean removeStaleAds(long now) {
-        boolean validAdExists = false;
-        ArrayList<Pair<Long, Displayable>> staleAdsList = new ArrayList<Pair<Long, Displayable>>();
-        for (Pair<Long, Displayable> p : InterstitialAdView.q) {
-            if (p == null || p.second == null
-                    || now - p.first > InterstitialAdView.MAX_AGE) {
-                staleAdsList.add(p);
-            } else {
-                // We've reached a valid ad, so we can stop looking
-                validAdExists = true;
-                break;
-            }
-        }
-        // Clear the queue of invalid ads
-        for (Pair<Long, Displayable> p : staleAdsList) {
-            InterstitialAdView.q.remove(p);
-        }
-        return validAdExists;
-    }
-
     @Override
     boolean isBanner() {
         return false;
@@ -253,63 +268,57 @@ public class InterstitialAdView extends AdView {
     }
 
     /**
-     * Checks the queue to see if there is a valid (i.e., fresher than
-     * 60 seconds) interstitial ad available.
+     * Checks the queue to see if there is a valid (i.e., not yet
+     * expired) interstitial ad available for this view's placement.
      *
      * @return <code>true</code> if there is a valid ad available in
      * the queue, <code>false</code> otherwise.
      */
     public boolean isReady() {
-        long now = System.currentTimeMillis();
-        if (removeStaleAds(now)) {
-            Pair<Long, Displayable> top = InterstitialAdView.q.peek();
-            if (top != null && top.second instanceof MediatedDisplayable) {
-                MediatedDisplayable mediatedDisplayable = (MediatedDisplayable) top.second;
-                if (mediatedDisplayable.getMAVC() instanceof MediatedInterstitialAdViewController) {
-                    MediatedInterstitialAdViewController mAVC = (MediatedInterstitialAdViewController) mediatedDisplayable.getMAVC();
-                    return mAVC.isReady();
-                }
+        Displayable top = InterstitialAdQueue.peek(getPlacementID());
+        if (top instanceof MediatedDisplayable) {
+            MediatedDisplayable mediatedDisplayable = (MediatedDisplayable) top;
+            if (mediatedDisplayable.getMAVC() instanceof MediatedInterstitialAdViewController) {
+                MediatedInterstitialAdViewController mAVC = (MediatedInterstitialAdViewController) mediatedDisplayable.getMAVC();
+                return mAVC.isReady();
             }
-            return true;
         }
-        return false;
+        return top != null;
     }
 
     /**
-     * Pops interstitial ads from the queue until it finds one that
-     * has not exceeded the 60 second timeout, and displays it in a
-     * new activity.  All ads in the queue which have exceeded the
-     * timeout are removed.
+     * Shows the oldest interstitial ad in this placement's queue that
+     * has not expired in a new activity.  Expired ads are removed from
+     * the queue.
      *
-     * @return The number of remaining ads in the queue that do not
-     * exceed the timeout.
+     * @return The number of remaining ads in the queue that have not
+     * expired.
      */
     public int show() {
-        Clog.d(Clog.publicFunctionsLogTag, Clog.getString(R.string.show_int));
-        // Make sure there is an ad to show
-        long now = System.currentTimeMillis();
-        boolean validAdExists = removeStaleAds(now);
+        Clog.d(Clog.publicFunctionsLogTag, R.string.show_int);
+        String placementId = getPlacementID();
+        Displayable top = InterstitialAdQueue.peek(placementId);
 
         //If the head of the queue is interstitial mediation, show that instead of our adactivity
-        Pair<Long, Displayable> top = InterstitialAdView.q.peek();
-        if (top != null && top.second instanceof MediatedDisplayable) {
-            MediatedDisplayable mediatedDisplayable = (MediatedDisplayable) top.second;
+        if (top instanceof MediatedDisplayable) {
+            MediatedDisplayable mediatedDisplayable = (MediatedDisplayable) top;
             if (mediatedDisplayable.getMAVC() instanceof MediatedInterstitialAdViewController) {
                 MediatedInterstitialAdViewController mAVC = (MediatedInterstitialAdViewController) mediatedDisplayable.getMAVC();
                 mAVC.show();
 
                 //Pop the mediated view;
-                InterstitialAdView.q.poll();
-                return InterstitialAdView.q.size();
+                InterstitialAdQueue.poll(placementId);
+                refill();
+                return InterstitialAdQueue.size(placementId);
             }
         }
 
-        // otherwise, launch our adActivity
-        if (validAdExists) {
+        // otherwise, launch our adActivity, which takes the ad from the queue
+        if (top != null) {
+            InterstitialAdView.INTERSTITIALADVIEW_TO_USE = this;
             Intent i = new Intent(getContext(), AdActivity.class);
             i.putExtra(InterstitialAdView.INTENT_KEY_ACTIVITY_TYPE,
                     InterstitialAdView.ACTIVITY_TYPE_INTERSTITIAL);
-            i.putExtra(InterstitialAdView.INTENT_KEY_TIME, now);
             i.putExtra(InterstitialAdView.INTENT_KEY_ORIENTATION, getContext().getResources()
                     .getConfiguration().orientation);
             i.putExtra(InterstitialAdView.INTENT_KEY_CLOSE_BUTTON_DELAY, closeButtonDelay);
@@ -320,10 +329,38 @@ public class InterstitialAdView extends AdView {
                 Clog.e(Clog.baseLogTag, "Did you insert com.appneus.opensdk.AdActivity into AndroidManifest.xml ?");
             }
 
-            return InterstitialAdView.q.size() - 1; // Return the number of ads remaining, less the one we're about to show
+            return InterstitialAdQueue.size(placementId) - 1; // Return the number of ads remaining, less the one we're about to show
         }
-        Clog.w(Clog.baseLogTag, Clog.getString(R.string.empty_queue));
-        return InterstitialAdView.q.size();
+        Clog.w(Clog.baseLogTag, R.string.empty_queue);
+        refill();
+        return 0;
+    }
+
+    /**
+     * Get the number of interstitial ads this view keeps loaded and
+     * ready to show.
+     *
+     * @return the number of ads, 0 if ads are only loaded by
+     * <code>loadAd()</code>.
+     */
+    public int getPreloadDepth() {
+        return preloadDepth;
+    }
+
+    /**
+     * Set the number of interstitial ads this view keeps loaded and
+     * ready to show.  Whenever fewer are ready, because one was shown
+     * or expired, another is loaded in the background, one at a time.
+     * Each of these loads calls {@link AdListener#onAdLoaded} or
+     * {@link AdListener#onAdRequestFailed} as usual.  A failed load is
+     * retried after 15 seconds.  The default, 0, only loads ads
+     * when <code>loadAd()</code> is called.
+     *
+     * @param preloadDepth The number of ads to keep ready.
+     */
+    public void setPreloadDepth(int preloadDepth) {
+        this.preloadDepth = Math.max(preloadDepth, 0);
+        refill();
     }
 
     /**
@@ -334,8 +371,7 @@ public class InterstitialAdView extends AdView {
      * allowed to be displayed.
      */
     public ArrayList<Size> getAllowedSizes() {
-        Clog.d(Clog.publicFunctionsLogTag,
-                Clog.getString(R.string.get_allowed_sizes));
+        Clog.d(Clog.publicFunctionsLogTag, R.string.get_allowed_sizes);
         return allowedSizes;
     }
 
@@ -349,8 +385,7 @@ public class InterstitialAdView extends AdView {
      *                      which are allowed to be displayed.
      */
     public void setAllowedSizes(ArrayList<Size> allowed_sizes) {
-        Clog.d(Clog.publicFunctionsLogTag,
-                Clog.getString(R.string.set_allowed_sizes));
+        Clog.d(Clog.publicFunctionsLogTag, R.string.set_allowed_sizes);
         allowedSizes = allowed_sizes;
     }
 
@@ -359,7 +394,7 @@ public class InterstitialAdView extends AdView {
      * If left unspecified, the default is black.
      */
     public void setBackgroundColor(int color) {
-        Clog.d(Clog.publicFunctionsLogTag, Clog.getString(R.string.set_bg));
+        Clog.d(Clog.publicFunctionsLogTag, R.string.set_bg);
         backgroundColor = color;
     }
 
@@ -370,7 +405,7 @@ public class InterstitialAdView extends AdView {
      * @return The background color to use behind the interstitial ad.
      */
     public int getBackgroundColor() {
-        Clog.d(Clog.publicFunctionsLogTag, Clog.getString(R.string.get_bg));
+        Clog.d(Clog.publicFunctionsLogTag, R.string.get_bg);
         return backgroundColor;
     }
 
@@ -378,10 +413,12 @@ public class InterstitialAdView extends AdView {
      * Destroy this InterstitialAdView object.
      */
     public void destroy() {
-        Clog.d(Clog.publicFunctionsLogTag, Clog.getString(R.string.destroy_int));
+        Clog.d(Clog.publicFunctionsLogTag, R.string.destroy_int);
         if (this.mAdFetcher != null)
             mAdFetcher.stop();
-        InterstitialAdView.q.clear();
+        loading = false;
+        handler.removeCallbacks(retryRefill);
+        InterstitialAdQueue.clear(getPlacementID());
         InterstitialAdView.INTERSTITIALADVIEW_TO_USE = null;
     }
 
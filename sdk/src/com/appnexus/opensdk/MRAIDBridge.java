@@ -0,0 +1,87 @@
+/*
+ *    Copyright 2013 APPNEXUS INC
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.appnexus.opensdk;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.webkit.WebView;
+
+import java.util.HashMap;
+
+/**
+ * Queues native to JavaScript calls for one MRAID WebView and runs all
+ * the calls made in one pass of the main looper as a single
+ * javascript: URL.  Each call is wrapped in its own try block, so a call
+ * that throws doesn't stop the ones after it.  Calls made with a key are
+ * dropped if the last call sent with that key was the same, so repeated
+ * layouts don't resend an unchanged position.
+ */
+class MRAIDBridge implements Runnable {
+    private final WebView webView;
+    private final Handler handler = new Handler(Looper.getMainLooper());
+    private final StringBuilder pending = new StringBuilder();
+    private final HashMap<String, String> lastSent = new HashMap<String, String>();
+
+    MRAIDBridge(WebView webView) {
+        this.webView = webView;
+    }
+
+    /**
+     * Queues a statement, e.g. "window.mraid.util.readyEvent()".
+     */
+    void call(String js) {
+        if (pending.length() == 0) {
+            handler.post(this);
+        }
+        pending.append("try{").append(js).append(";}catch(e){}");
+    }
+
+    /**
+     * Queues a statement unless it is the same as the last one queued with
+     * this key.
+     */
+    void call(String key, String js) {
+        if (js.equals(lastSent.get(key))) return;
+        lastSent.put(key, js);
+        call(js);
+    }
+
+    /**
+     * Forgets what was sent with each key, call when a new page loads so
+     * it gets the current values.
+     */
+    void reset() {
+        lastSent.clear();
+    }
+
+    /**
+     * Sends whatever is queued now, for callers that must keep it ahead of
+     * something else they load into the WebView.
+     */
+    void flush() {
+        handler.removeCallbacks(this);
+        if (pending.length() == 0) return;
+        String js = pending.toString();
+        pending.setLength(0);
+        webView.loadUrl("javascript:" + js);
+    }
+
+    @Override
+    public void run() {
+        flush();
+    }
+}
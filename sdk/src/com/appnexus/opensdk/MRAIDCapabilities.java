@@ -0,0 +1,207 @@
+/*
+ *    Copyright 2013 APPNEXUS INC
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.appnexus.opensdk;
+
+import android.Manifest;
+import android.annotation.SuppressLint;
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.content.pm.PackageManager;
+import android.net.Uri;
+import android.os.AsyncTask;
+import android.os.Build;
+import android.provider.CalendarContract;
+
+import java.util.WeakHashMap;
+
+/**
+ * Which MRAID features the device supports, shared by every MRAID ad.
+ * The PackageManager is queried once, in the background, when the SDK
+ * is set up.  The answers are queried again only after an app is
+ * installed, removed or changed, and the last answers are used until the
+ * new ones are in.  Should an ad need them before the first answers are
+ * in, it is told nothing is supported rather than wait, and its
+ * {@link Listener} hears the answers when they arrive.
+ */
+class MRAIDCapabilities {
+    final boolean sms;
+    final boolean tel;
+    final boolean calendar;
+    // the calendar app only handles the event MIME type, see W3CEvent
+    final boolean calendarByMime;
+    final boolean storePicture;
+
+    interface Listener {
+        /**
+         * Called on the main thread with new answers.
+         */
+        void onCapabilitiesChanged(MRAIDCapabilities capabilities);
+    }
+
+    private static final MRAIDCapabilities NONE = new MRAIDCapabilities();
+
+    private static volatile MRAIDCapabilities current = null;
+    // the rest is guarded by the class lock, which is never held while
+    // the PackageManager is queried
+    private static Context appContext = null;
+    private static boolean probing = false;
+    // current is from before the installed apps last changed
+    private static boolean stale = false;
+    // held weakly, each ad keeps its own listener
+    private static final WeakHashMap<Listener, Boolean> listeners =
+            new WeakHashMap<Listener, Boolean>();
+    // bumped whenever the installed apps change, so a probe that started
+    // before isn't published
+    private static int generation = 0;
+
+    /**
+     * Starts working out the capabilities in the background if they are
+     * not known.  Call on the main thread.
+     */
+    @SuppressLint("NewApi")
+    static void prefetch(Context context) {
+        synchronized (MRAIDCapabilities.class) {
+            if (appContext == null) {
+                appContext = context.getApplicationContext();
+                IntentFilter filter = new IntentFilter();
+                filter.addAction(Intent.ACTION_PACKAGE_ADDED);
+                filter.addAction(Intent.ACTION_PACKAGE_REMOVED);
+                filter.addAction(Intent.ACTION_PACKAGE_CHANGED);
+                filter.addDataScheme("package");
+                appContext.registerReceiver(new BroadcastReceiver() {
+                    @Override
+                    public void onReceive(Context context, Intent intent) {
+                        invalidate();
+                        prefetch(context);
+                    }
+                }, filter);
+            }
+            if (((current != null) && !stale) || probing) return;
+            probing = true;
+        }
+
+        AsyncTask<Void, Void, MRAIDCapabilities> task = new AsyncTask<Void, Void, MRAIDCapabilities>() {
+            @Override
+            protected MRAIDCapabilities doInBackground(Void... params) {
+                return probe();
+            }
+
+            @Override
+            protected void onPostExecute(MRAIDCapabilities capabilities) {
+                Listener[] notify;
+                synchronized (MRAIDCapabilities.class) {
+                    notify = listeners.keySet().toArray(new Listener[listeners.size()]);
+                }
+                for (Listener l : notify) {
+                    if (l != null) l.onCapabilitiesChanged(capabilities);
+                }
+            }
+        };
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB) {
+            task.executeOnExecutor(AsyncTask.THREAD_POOL_EXECUTOR);
+        } else {
+            task.execute();
+        }
+    }
+
+    /**
+     * Never blocks.  Call on the main thread.
+     *
+     * @return the capabilities, or none at all if the background probe
+     * hasn't finished yet
+     */
+    static MRAIDCapabilities get(Context context) {
+        MRAIDCapabilities c = current;
+        if (c != null) return c;
+        prefetch(context);
+        return NONE;
+    }
+
+    static synchronized void addListener(Listener listener) {
+        listeners.put(listener, Boolean.TRUE);
+    }
+
+    static synchronized void removeListener(Listener listener) {
+        listeners.remove(listener);
+    }
+
+    private static MRAIDCapabilities probe() {
+        while (true) {
+            Context context;
+            int started;
+            synchronized (MRAIDCapabilities.class) {
+                context = appContext;
+                started = generation;
+            }
+            MRAIDCapabilities c = new MRAIDCapabilities(context);
+            synchronized (MRAIDCapabilities.class) {
+                if (started == generation) {
+                    current = c;
+                    stale = false;
+                    probing = false;
+                    return c;
+                }
+            }
+            // apps changed while probing, the answers may be stale
+        }
+    }
+
+    // keeps current until the next probe replaces it
+    private static synchronized void invalidate() {
+        stale = true;
+        generation++;
+    }
+
+    private MRAIDCapabilities() {
+        sms = false;
+        tel = false;
+        calendar = false;
+        calendarByMime = false;
+        storePicture = false;
+    }
+
+    @SuppressLint("NewApi")
+    private MRAIDCapabilities(Context context) {
+        PackageManager pm = context.getPackageManager();
+
+        sms = hasIntent(pm, new Intent(Intent.ACTION_VIEW, Uri.parse("sms:5555555555")));
+        tel = hasIntent(pm, new Intent(Intent.ACTION_VIEW, Uri.parse("tel:5555555555")));
+
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.ICE_CREAM_SANDWICH
+                && hasIntent(pm, new Intent(Intent.ACTION_EDIT).setData(CalendarContract.Events.CONTENT_URI))) {
+            calendar = true;
+            calendarByMime = false;
+        } else if (hasIntent(pm, new Intent(Intent.ACTION_EDIT).setType("vnd.android.cursor.item/event"))) {
+            calendar = true;
+            calendarByMime = true;
+        } else {
+            calendar = false;
+            calendarByMime = false;
+        }
+
+        // Store Picture only if on API 11 or above
+        storePicture = (Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB)
+                && (pm.checkPermission(Manifest.permission.WRITE_EXTERNAL_STORAGE,
+                context.getPackageName()) == PackageManager.PERMISSION_GRANTED);
+    }
+
+    private static boolean hasIntent(PackageManager pm, Intent i) {
+        return pm.queryIntentActivities(i, 0).size() > 0;
+    }
+}
@@ -34,7 +34,6 @@ import android.net.Uri;
 import android.net.http.SslError;
 import android.os.Build;
 import android.os.Environment;
-import android.provider.CalendarContract;
 import android.util.Base64;
 import android.view.Display;
 import android.view.Gravity;
@@ -44,6 +43,7 @@ import android.webkit.*;
 import android.widget.Toast;
 import com.appnexus.opensdk.utils.Clog;
 import com.appnexus.opensdk.utils.Hex;
+import com.appnexus.opensdk.utils.Settings;
 import com.appnexus.opensdk.utils.StringUtil;
 import com.appnexus.opensdk.utils.W3CEvent;
 import org.apache.http.message.BasicNameValuePair;
@@ -55,6 +55,7 @@ import java.util.ArrayList;
 @SuppressLint("InlinedApi")
 class MRAIDImplementation {
     protected final MRAIDWebView owner;
+    private final MRAIDBridge bridge;
     private boolean readyFired = false;
     boolean expanded = false;
     boolean resized = false;
@@ -63,47 +64,133 @@ class MRAIDImplementation {
     boolean supportsCalendar = false;
     AdActivity fullscreenActivity;
 
+    // held here, the capabilities only keep it weakly
+    private final MRAIDCapabilities.Listener capabilitiesListener = new MRAIDCapabilities.Listener() {
+        @Override
+        public void onCapabilitiesChanged(MRAIDCapabilities capabilities) {
+            // before ready, onPageFinished sends them
+            if (readyFired) setSupportsValues(capabilities);
+        }
+    };
+
     public MRAIDImplementation(MRAIDWebView owner) {
         this.owner = owner;
+        this.bridge = new MRAIDBridge(owner);
+        // ready by the time the creative finishes loading, usually
+        MRAIDCapabilities.prefetch(owner.getContext());
+        MRAIDCapabilities.addListener(capabilitiesListener);
+    }
+
+    // unchanged values are dropped by the bridge
+    private void setSupportsValues(MRAIDCapabilities capabilities) {
+        bridge.call("sms", "window.mraid.util.setSupportsSMS(" + capabilities.sms + ")");
+        bridge.call("tel", "window.mraid.util.setSupportsTel(" + capabilities.tel + ")");
+
+        bridge.call("calendar", "window.mraid.util.setSupportsCalendar(" + capabilities.calendar + ")");
+        supportsCalendar = capabilities.calendar;
+        if (capabilities.calendarByMime) {
+            W3CEvent.useMIME = true;
+        }
+
+        //Store Picture only if on API 11 or above
+        bridge.call("storePicture", "window.mraid.util.setSupportsStorePicture(" + capabilities.storePicture + ")");
+        supportsPictureAPI = capabilities.storePicture;
     }
 
+    // where the creative loads mraid.js from when MRAID_JS_BY_URL is on,
+    // never fetched, the WebViewClient answers it from memory
+    static final String MRAID_JS_URL = "http://mobile.adnxs.com/mraid.js";
+
+    // mraid.js, read from the raw resource once per process
+    private static byte[] mraidDotJSBytes = null;
+    private static String mraidDotJS = null;
+
     // The webview about to load the ad, and the html ad content
-    String onPreLoadContent(WebView wv, String html) {
-        // Check to ensure <html> tags are present
-        if (!html.contains("<html>")) {
-            html = "<html><head></head><body style='padding:0;margin:0;'>"
-                    + html + "</body></html>";
-        } else if (!html.contains("<head>")) {
+    // Runs in the background, see AdResponse.prepareCreative()
+    static String injectMraidDotJS(String html, Resources r) {
+        String script;
+        if (serveMraidDotJSByUrl()) {
+            script = "<script src=\"" + MRAID_JS_URL + "\"></script>";
+        } else {
+            script = "<script>" + getMraidDotJS(r) + "</script>";
+        }
+
+        // Insert mraid script source in one pass, adding the <html> and
+        // <head> tags if they are missing
+        StringBuilder sb = new StringBuilder(html.length() + script.length() + 96);
+        int htmlTag = html.indexOf("<html>");
+        if (htmlTag == -1) {
+            sb.append("<html><head>").append(script)
+                    .append("</head><body style='padding:0;margin:0;'>")
+                    .append(html).append("</body></html>");
+            return sb.toString();
+        }
+
+        int headTag = html.indexOf("<head>");
+        if (headTag == -1) {
             // The <html> tags are present, but there is no <head> section to
             // inject the mraid js
-            html = html.replace("<html>", "<html><head></head>");
+            int at = htmlTag + "<html>".length();
+            sb.append(html, 0, at).append("<head>").append(script).append("</head>")
+                    .append(html, at, html.length());
+        } else {
+            int at = headTag + "<head>".length();
+            sb.append(html, 0, at).append(script).append(html, at, html.length());
         }
+        return sb.toString();
+    }
 
-        // Insert mraid script source
-        html = html.replace("<head>",
-                "<head><script>" + getMraidDotJS(wv.getResources())
-                        + "</script>");
+    static String getMraidDotJS(Resources r) {
+        synchronized (MRAIDImplementation.class) {
+            if (mraidDotJS == null) {
+                byte[] bytes = readMraidDotJS(r);
+                if (bytes != null) {
+                    try {
+                        mraidDotJS = new String(bytes, "UTF-8");
+                        mraidDotJSBytes = bytes;
+                    } catch (UnsupportedEncodingException e) {
+                        // UTF-8 is always supported
+                    }
+                }
+            }
+            return mraidDotJS;
+        }
+    }
 
-        return html;
+    private static byte[] getMraidDotJSBytes(Resources r) {
+        getMraidDotJS(r);
+        return mraidDotJSBytes;
     }
 
-    String getMraidDotJS(Resources r) {
+    private static byte[] readMraidDotJS(Resources r) {
         InputStream ins = r.openRawResource(R.raw.mraid);
         try {
-            byte[] buffer = new byte[ins.available()];
-            if (ins.read(buffer) > 0) {
-                return new String(buffer, "UTF-8");
+            ByteArrayOutputStream out = new ByteArrayOutputStream(16 * 1024);
+            byte[] buffer = new byte[4096];
+            int n;
+            while ((n = ins.read(buffer)) != -1) {
+                out.write(buffer, 0, n);
             }
+            return out.toByteArray();
         } catch (IOException e) {
-
+            Clog.e(Clog.mraidLogTag, R.string.mraid_js_read_error);
+        } finally {
+            try {
+                ins.close();
+            } catch (IOException ignored) {
+            }
         }
         return null;
     }
 
+    private static boolean serveMraidDotJSByUrl() {
+        return Settings.getSettings().MRAID_JS_BY_URL
+                && (Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB);
+    }
+
     protected void onReceivedError(WebView view, int errorCode, String desc,
                                    String failingUrl) {
-        Clog.w(Clog.mraidLogTag, Clog.getString(
-                R.string.webview_received_error, errorCode, desc, failingUrl));
+        Clog.w(Clog.mraidLogTag, R.string.webview_received_error, errorCode, desc, failingUrl);
     }
 
     int screenWidth;
@@ -112,6 +199,19 @@ class MRAIDImplementation {
     WebViewClient getWebViewClient() {
         return new WebViewClient() {
 
+            @SuppressLint("NewApi")
+            @Override
+            public WebResourceResponse shouldInterceptRequest(WebView view, String url) {
+                if (MRAID_JS_URL.equals(url)) {
+                    byte[] js = getMraidDotJSBytes(view.getResources());
+                    if (js != null) {
+                        return new WebResourceResponse("text/javascript", "UTF-8",
+                                new ByteArrayInputStream(js));
+                    }
+                }
+                return AssetCache.intercept(url);
+            }
+
             @Override
             public boolean shouldOverrideUrlLoading(WebView view, String url) {
                 if (!url.startsWith("mraid:") && !url.startsWith("javascript:")) {
@@ -133,7 +233,7 @@ class MRAIDImplementation {
                         try {
                             owner.getContext().startActivity(intent);
                         } catch (ActivityNotFoundException e) {
-                            Clog.w(Clog.mraidLogTag, Clog.getString(R.string.opening_url_failed, url));
+                            Clog.w(Clog.mraidLogTag, R.string.opening_url_failed, url);
                         }
                         //Call onAdClicked
                         owner.owner.getAdDispatcher().onAdClicked();
@@ -165,34 +265,37 @@ class MRAIDImplementation {
             @Override
             public void onReceivedSslError(WebView view,
                                            SslErrorHandler handler, SslError error) {
-                Clog.e(Clog.httpRespLogTag,
-                        Clog.getString(R.string.webclient_error,
-                                error.getPrimaryError(), error.toString()));
+                Clog.e(Clog.httpRespLogTag, R.string.webclient_error,
+                                error.getPrimaryError(), error.toString());
             }
 
             @Override
             public void onReceivedError(WebView view, int errorCode,
                                         String description, String failingURL) {
-                Clog.e(Clog.httpRespLogTag, Clog.getString(
-                        R.string.webclient_error, errorCode, description));
+                Clog.e(Clog.httpRespLogTag, R.string.webclient_error, errorCode, description);
             }
 
             @Override
             public void onPageFinished(WebView view, String url) {
+                owner.pageFinished();
+                // the page has none of the values sent to the last one
+                bridge.reset();
                 // Fire the ready event only once
                 if (!readyFired) {
                     String adType = owner.owner.isBanner() ? "inline" : "interstitial";
-                    view.loadUrl("javascript:window.mraid.util.setPlacementType('"
+                    bridge.call("window.mraid.util.setPlacementType('"
                             + adType + "')");
-                    view.loadUrl("javascript:window.mraid.util.setIsViewable(true)");
+                    bridge.call("viewable", "window.mraid.util.setIsViewable(true)");
 
-                    setSupportsValues(view);
+                    setSupportsValues(MRAIDCapabilities.get(owner.getContext()));
+                    //Video should always work inline.
+                    bridge.call("window.mraid.util.setSupportsInlineVideo(true)");
                     setScreenSize(view);
                     setMaxSize(view);
                     setDefaultPosition(view);
 
-                    view.loadUrl("javascript:window.mraid.util.stateChangeEvent('default')");
-                    view.loadUrl("javascript:window.mraid.util.readyEvent();");
+                    bridge.call("window.mraid.util.stateChangeEvent('default')");
+                    bridge.call("window.mraid.util.readyEvent()");
 
                     // Store width and height for close()
                     default_width = owner.getLayoutParams().width;
@@ -217,7 +320,7 @@ class MRAIDImplementation {
                     height = (int) ((height / scale) + 0.5f);
                     width = (int) ((width / scale) + 0.5f);
 
-                    view.loadUrl("javascript:window.mraid.util.setDefaultPosition(" + location[0] + ", " + location[1] + ", " + width + ", " + height + ")");
+                    bridge.call("defaultPosition", "window.mraid.util.setDefaultPosition(" + location[0] + ", " + location[1] + ", " + width + ", " + height + ")");
                 }
             }
 
@@ -249,7 +352,7 @@ class MRAIDImplementation {
                     height = (int) ((height / scale) + 0.5f);
                     width = (int) ((width / scale) + 0.5f);
 
-                    view.loadUrl("javascript:window.mraid.util.setMaxSize(" + width + ", " + height + ")");
+                    bridge.call("maxSize", "window.mraid.util.setMaxSize(" + width + ", " + height + ")");
                 }
 
 
@@ -276,50 +379,8 @@ class MRAIDImplementation {
                     screenHeight = (int) ((screenHeight / scale) + 0.5f);
                     screenWidth = (int) ((screenWidth / scale) + 0.5f);
 
-                    view.loadUrl("javascript:window.mraid.util.setScreenSize(" + screenWidth + ", " + screenHeight + ")");
-                }
-            }
-
-            @SuppressLint("NewApi")
-            private void setSupportsValues(WebView view) {
-                //SMS
-                if (hasIntent(new Intent(Intent.ACTION_VIEW, Uri.parse("sms:5555555555")))) {
-                    view.loadUrl("javascript:window.mraid.util.setSupportsSMS(true)");
-                }
-
-                //Tel
-                if (hasIntent(new Intent(Intent.ACTION_VIEW, Uri.parse("tel:5555555555")))) {
-                    view.loadUrl("javascript:window.mraid.util.setSupportsTel(true)");
-                }
-
-                //Calendar
-                if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.ICE_CREAM_SANDWICH
-                        && hasIntent(new Intent(Intent.ACTION_EDIT).setData(CalendarContract.Events.CONTENT_URI))) {
-                    view.loadUrl("javascript:window.mraid.util.setSupportsCalendar(true)");
-                    supportsCalendar = true;
-                } else if (hasIntent(new Intent(Intent.ACTION_EDIT).setType("vnd.android.cursor.item/event"))) {
-                    view.loadUrl("javascript:window.mraid.util.setSupportsCalendar(true)");
-                    supportsCalendar = true;
-                    W3CEvent.useMIME = true;
-                }
-
-                //Store Picture only if on API 11 or above
-                PackageManager pm = owner.getContext().getPackageManager();
-                if (pm.checkPermission(Manifest.permission.WRITE_EXTERNAL_STORAGE, owner.getContext().getPackageName()) == PackageManager.PERMISSION_GRANTED) {
-                    if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB) {
-                        view.loadUrl("javascript:window.mraid.util.setSupportsStorePicture(true)");
-                        supportsPictureAPI = true;
-                    }
+                    bridge.call("screenSize", "window.mraid.util.setScreenSize(" + screenWidth + ", " + screenHeight + ")");
                 }
-
-                //Video should always work inline.
-                view.loadUrl("javascript:window.mraid.util.setSupportsInlineVideo(true)");
-
-            }
-
-            boolean hasIntent(Intent i) {
-                PackageManager pm = owner.getContext().getPackageManager();
-                return pm.queryIntentActivities(i, 0).size() > 0;
             }
         };
     }
@@ -330,11 +391,10 @@ class MRAIDImplementation {
             @Override
             public boolean onConsoleMessage(ConsoleMessage consoleMessage) {
                 // super.onConsoleMessage(consoleMessage);
-                Clog.w(Clog.mraidLogTag,
-                        Clog.getString(R.string.console_message,
+                Clog.w(Clog.mraidLogTag, R.string.console_message,
                                 consoleMessage.message(),
                                 consoleMessage.lineNumber(),
-                                consoleMessage.sourceId()));
+                                consoleMessage.sourceId());
                 return true;
             }
 
@@ -342,8 +402,7 @@ class MRAIDImplementation {
             public boolean onJsAlert(WebView view, String url, String message,
                                      JsResult result) {
                 // /super.onJsAlert(view, url, message, result);
-                Clog.w(Clog.mraidLogTag,
-                        Clog.getString(R.string.js_alert, message, url));
+                Clog.w(Clog.mraidLogTag, R.string.js_alert, message, url);
                 result.confirm();
                 return true;
             }
@@ -353,12 +412,12 @@ class MRAIDImplementation {
 
     void onVisible() {
         if (readyFired)
-            owner.loadUrl("javascript:window.mraid.util.setIsViewable(true)");
+            bridge.call("viewable", "window.mraid.util.setIsViewable(true)");
     }
 
     void onInvisible() {
         if (readyFired)
-            owner.loadUrl("javascript:window.mraid.util.setIsViewable(false)");
+            bridge.call("viewable", "window.mraid.util.setIsViewable(false)");
     }
 
     protected void setCurrentPosition(int left, int top, int right, int bottom, WebView view) {
@@ -371,8 +430,9 @@ class MRAIDImplementation {
         width = (int) ((width / scale) + 0.5f);
 
         if (readyFired) {
-            owner.loadUrl("javascript:window.mraid.util.sizeChangeEvent(" + width + "," + height + ")");
-            owner.loadUrl("javascript:window.mraid.util.setCurrentPosition(" + left + ", " + top + ", " + width + ", " + height + ")");
+            // unchanged sizes and positions are dropped by the bridge
+            bridge.call("size", "window.mraid.util.sizeChangeEvent(" + width + "," + height + ")");
+            bridge.call("position", "window.mraid.util.setCurrentPosition(" + left + ", " + top + ", " + width + ", " + height + ")");
         }
     }
 
@@ -385,7 +445,7 @@ class MRAIDImplementation {
             lp.gravity = Gravity.CENTER;
             owner.setLayoutParams(lp);
             owner.close();
-            owner.loadUrl("javascript:window.mraid.util.stateChangeEvent('default');");
+            bridge.call("window.mraid.util.stateChangeEvent('default')");
 
             if (owner.owner != null) {
                 owner.owner.getAdDispatcher().onAdCollapsed();
@@ -439,9 +499,11 @@ class MRAIDImplementation {
 
         // Fire the stateChange to MRAID
         if (!StringUtil.isEmpty(uri)) {
+            bridge.flush();
+            bridge.reset();
             this.owner.loadUrl(uri);
         }
-        this.owner.loadUrl("javascript:window.mraid.util.stateChangeEvent('expanded');");
+        bridge.call("window.mraid.util.stateChangeEvent('expanded')");
         expanded = true;
 
         // Fire the AdListener event
@@ -492,7 +554,7 @@ class MRAIDImplementation {
         } else if (func.equals("open")) {
             open(parameters);
         } else {
-            Clog.d(Clog.mraidLogTag, Clog.getString(R.string.unsupported_mraid, func));
+            Clog.d(Clog.mraidLogTag, R.string.unsupported_mraid, func);
 
         }
     }
@@ -520,7 +582,7 @@ class MRAIDImplementation {
             }
         }
         if (uri == null) {
-            Clog.d(Clog.mraidLogTag, Clog.getString(R.string.store_picture_error));
+            Clog.d(Clog.mraidLogTag, R.string.store_picture_error);
             return;
         }
 
@@ -568,17 +630,17 @@ class MRAIDImplementation {
                             outstream.write(out_array);
                         }
                     } catch (FileNotFoundException e) {
-                        Clog.d(Clog.mraidLogTag, Clog.getString(R.string.store_picture_error));
+                        Clog.d(Clog.mraidLogTag, R.string.store_picture_error);
                     } catch (IOException e) {
-                        Clog.d(Clog.mraidLogTag, Clog.getString(R.string.store_picture_error));
+                        Clog.d(Clog.mraidLogTag, R.string.store_picture_error);
                     } catch (IllegalArgumentException e) {
-                        Clog.d(Clog.mraidLogTag, Clog.getString(R.string.store_picture_error));
+                        Clog.d(Clog.mraidLogTag, R.string.store_picture_error);
                     } finally {
                         if (outstream != null) {
                             try {
                                 outstream.close();
                             } catch (IOException e) {
-                                Clog.d(Clog.mraidLogTag, Clog.getString(R.string.store_picture_error));
+                                Clog.d(Clog.mraidLogTag, R.string.store_picture_error);
                             }
                         }
                     }
@@ -597,10 +659,10 @@ class MRAIDImplementation {
                             r.setNotificationVisibility(DownloadManager.Request.VISIBILITY_VISIBLE_NOTIFY_COMPLETED);
                             dm.enqueue(r);
                         } catch (IllegalStateException ex) {
-                            Clog.d(Clog.mraidLogTag, Clog.getString(R.string.store_picture_error));
+                            Clog.d(Clog.mraidLogTag, R.string.store_picture_error);
                         }
                     } else {
-                        Clog.d(Clog.mraidLogTag, Clog.getString(R.string.store_picture_error));
+                        Clog.d(Clog.mraidLogTag, R.string.store_picture_error);
                     }
                 }
 
@@ -630,14 +692,14 @@ class MRAIDImplementation {
             }
         }
         if (uri == null) {
-            Clog.d(Clog.mraidLogTag, Clog.getString(R.string.play_vide_no_uri));
+            Clog.d(Clog.mraidLogTag, R.string.play_vide_no_uri);
             return;
         }
         Intent i = new Intent(Intent.ACTION_VIEW);
         try {
             i.setDataAndType(Uri.parse(URLDecoder.decode(uri, "UTF-8")), "video/mp4");
         } catch (UnsupportedEncodingException e) {
-            Clog.d(Clog.mraidLogTag, Clog.getString(R.string.unsupported_encoding));
+            Clog.d(Clog.mraidLogTag, R.string.unsupported_encoding);
             return;
         }
         try {
@@ -666,7 +728,7 @@ class MRAIDImplementation {
                 owner.getContext().startActivity(i);
                 // Call onAdClicked
                 this.owner.owner.getAdDispatcher().onAdClicked();
-                Clog.d(Clog.mraidLogTag, Clog.getString(R.string.create_calendar_event));
+                Clog.d(Clog.mraidLogTag, R.string.create_calendar_event);
             } catch (ActivityNotFoundException e) {
 
             }
@@ -707,7 +769,7 @@ class MRAIDImplementation {
             }
         }
 
-        Clog.d(Clog.mraidLogTag, Clog.getString(R.string.set_orientation_properties, allow_orientation_change, orientation.ordinal()));
+        Clog.d(Clog.mraidLogTag, R.string.set_orientation_properties, allow_orientation_change, orientation.ordinal());
     }
 
     public enum CUSTOM_CLOSE_POSITION {
@@ -743,13 +805,13 @@ class MRAIDImplementation {
                     allow_offscrean = Boolean.parseBoolean(bnvp.getValue());
                 }
             } catch (NumberFormatException e) {
-                Clog.d(Clog.mraidLogTag, Clog.getString(R.string.number_format));
+                Clog.d(Clog.mraidLogTag, R.string.number_format);
                 return;
             }
         }
         //If the resized ad is larger than the screen, reject with great prejudice
         if (w > screenWidth && h > screenHeight) {
-            this.owner.loadUrl("javascript:mraid.util.errorEvent('Resize called with resizeProperties larger than the screen.', 'mraid.resize()')");
+            bridge.call("mraid.util.errorEvent('Resize called with resizeProperties larger than the screen.', 'mraid.resize()')");
             return;
         }
 
@@ -760,14 +822,13 @@ class MRAIDImplementation {
         } //Default case is used
 
 
-        Clog.d(Clog.mraidLogTag, Clog.getString(R.string.resize, w, h, offset_x, offset_y, custom_close_position, allow_offscrean));
+        Clog.d(Clog.mraidLogTag, R.string.resize, w, h, offset_x, offset_y, custom_close_position, allow_offscrean);
         this.owner.resize(w, h, offset_x, offset_y, cp_enum, allow_offscrean);
 
         //Call onAdClicked
         this.owner.owner.getAdDispatcher().onAdClicked();
 
-        this.owner
-                .loadUrl("javascript:window.mraid.util.stateChangeEvent('resized');");
+        bridge.call("window.mraid.util.stateChangeEvent('resized')");
         resized = true;
 
     }
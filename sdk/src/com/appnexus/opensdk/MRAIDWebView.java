@@ -50,16 +50,12 @@ class MRAIDWebView extends AdWebView implements Displayable {
     }
 
     public void loadAd(AdResponse ar) {
-        String html = ar.getContent();
+        String html = ar.getCreativeHtml(getResources());
 
-        if (html.contains("mraid.js")) {
+        if (ar.isMraid()) {
             setImplementation(new MRAIDImplementation(this));
         }
 
-        if (implementation != null) {
-            html = implementation.onPreLoadContent(this, html);
-        }
-
         final float scale = owner.getContext().getResources()
                 .getDisplayMetrics().density;
         int rheight = (int) (ar.getHeight() * scale + 0.5f);
@@ -69,6 +65,7 @@ class MRAIDWebView extends AdWebView implements Displayable {
                 rgravity);
         this.setLayoutParams(resize);
 
+        loadStarted();
         this.loadDataWithBaseURL(null, html, "text/html", "UTF-8", null);
     }
 
@@ -18,11 +18,13 @@ package com.appnexus.opensdk;
 import java.lang.ref.WeakReference;
 
 import android.annotation.SuppressLint;
+import android.content.Context;
 import android.net.Uri;
 import android.os.AsyncTask;
 import android.os.Build;
 import android.os.Handler;
 import android.os.Message;
+import android.os.SystemClock;
 import com.appnexus.opensdk.utils.Clog;
 import com.appnexus.opensdk.utils.HTTPGet;
 import com.appnexus.opensdk.utils.HTTPResponse;
@@ -76,7 +78,13 @@ public abstract class MediatedAdViewController {
          * Return this if an Internal error is detected in the
          * third-party SDK.
          */
-        INTERNAL_ERROR
+        INTERNAL_ERROR,
+        /**
+         * Not for mediation adaptors.  Reported by the SDK for a network
+         * whose ad was requested in parallel with others and dropped
+         * because another network won, whether or not it had loaded.
+         */
+        CANCELLED
     }
 
 
@@ -89,6 +97,11 @@ public abstract class MediatedAdViewController {
     boolean hasFailed = false;
     boolean hasSucceeded = false;
 
+    // for learning how long this adapter class takes to answer
+    private Context context;
+    private long requestStartedAt = -1;
+    private long timeoutMs = -1;
+
     MediatedAdViewController(AdRequester requester, MediatedAd currentAd, AdViewListener listener) {
         this.requester = requester;
         this.listener = listener;
@@ -97,7 +110,7 @@ public abstract class MediatedAdViewController {
         RESULT errorCode = null;
 
         if (currentAd == null) {
-            Clog.e(Clog.mediationLogTag, Clog.getString(R.string.mediated_no_ads));
+            Clog.e(Clog.mediationLogTag, R.string.mediated_no_ads);
             errorCode = RESULT.UNABLE_TO_FILL;
         } else {
             boolean instantiateSuccessful = instantiateNewMediatedAd();
@@ -133,8 +146,8 @@ public abstract class MediatedAdViewController {
             return false;
         }
         if ((mAV == null) || (callerClass == null) || !callerClass.isInstance(mAV)) {
-            Clog.e(Clog.mediationLogTag, Clog.getString(R.string.instance_exception,
-                    callerClass != null ? callerClass.getCanonicalName() : "null"));
+            Clog.e(Clog.mediationLogTag, R.string.instance_exception,
+                    callerClass != null ? callerClass.getCanonicalName() : "null");
             onAdFailed(RESULT.MEDIATED_SDK_UNAVAILABLE);
             return false;
         }
@@ -149,24 +162,10 @@ public abstract class MediatedAdViewController {
      *         <code>false</code> otherwise.
      */
     private boolean instantiateNewMediatedAd() {
-        Clog.d(Clog.mediationLogTag, Clog.getString(
-                R.string.instantiating_class, currentAd.getClassName()));
-
-        try {
-            Class<?> c = Class.forName(currentAd.getClassName());
-            mAV = (MediatedAdView) c.newInstance();
-            // exceptions will skip down to return false
-            return true;
-        } catch (ClassNotFoundException e) {
-            Clog.e(Clog.mediationLogTag, Clog.getString(R.string.class_not_found_exception));
-        } catch (InstantiationException e) {
-            Clog.e(Clog.mediationLogTag, Clog.getString(R.string.instantiation_exception));
-        } catch (IllegalAccessException e) {
-            Clog.e(Clog.mediationLogTag, Clog.getString(R.string.illegal_access_exception));
-        } catch (ClassCastException e) {
-            Clog.e(Clog.mediationLogTag, Clog.getString(R.string.class_cast_exception));
-        }
-        return false;
+        Clog.d(Clog.mediationLogTag, R.string.instantiating_class, currentAd.getClassName());
+
+        mAV = MediatedAdViewRegistry.newInstance(currentAd.getClassName());
+        return mAV != null;
     }
 
     void finishController() {
@@ -174,7 +173,29 @@ public abstract class MediatedAdViewController {
         requester = null;
         currentAd = null;
         listener = null;
-        Clog.d(Clog.mediationLogTag, Clog.getString(R.string.mediation_finish));
+        Clog.d(Clog.mediationLogTag, R.string.mediation_finish);
+    }
+
+    /**
+     * Gives up on the ad, for a network whose answer is no longer wanted
+     * because another one in its group won, and reports it CANCELLED.
+     * Whatever the adaptor reports afterwards is ignored.
+     */
+    void cancel() {
+        if (hasSucceeded || hasFailed) return;
+        cancelTimeout();
+        fireResultCB(RESULT.CANCELLED);
+        finishController();
+        hasFailed = true;
+    }
+
+    /**
+     * Reports the outcome of an ad that loaded in a parallel group, once
+     * the group knows it: SUCCESS for the winner, CANCELLED for a loser.
+     */
+    void reportGroupResult(RESULT result) {
+        if (!hasSucceeded || hasFailed) return;
+        fireResultCB(result);
     }
 
     /**
@@ -189,11 +210,16 @@ public abstract class MediatedAdViewController {
     public void onAdLoaded() {
         if (hasSucceeded || hasFailed) return;
         cancelTimeout();
+        recordLatency();
         hasSucceeded = true;
 
+        // in a parallel group the ad may still lose, so the group reports
+        // the result once it has picked a winner
+        boolean inGroup = requester instanceof MediationGroup.Slot;
         if (listener != null)
             listener.onAdLoaded(mediatedDisplayable);
-        fireResultCB(RESULT.SUCCESS);
+        if (!inGroup)
+            fireResultCB(RESULT.SUCCESS);
     }
 
     /**
@@ -210,6 +236,9 @@ public abstract class MediatedAdViewController {
     public void onAdFailed(MediatedAdViewController.RESULT reason) {
         if (hasSucceeded || hasFailed) return;
         cancelTimeout();
+        // only answers that took a round trip say how slow the network is
+        if ((reason == RESULT.UNABLE_TO_FILL) || (reason == RESULT.NETWORK_ERROR))
+            recordLatency();
 
         if (listener != null)
             listener.onAdFailed(false);
@@ -260,17 +289,27 @@ public abstract class MediatedAdViewController {
 
         // if resultCB is empty don't fire resultCB, and just continue to next ad
         if ((currentAd == null) || StringUtil.isEmpty(currentAd.getResultCB())) {
-            if(result == RESULT.SUCCESS) return;
-            Clog.w(Clog.mediationLogTag, Clog.getString(R.string.fire_cb_result_null));
+            if ((result == RESULT.SUCCESS) || (result == RESULT.CANCELLED)) return;
+            Clog.w(Clog.mediationLogTag, R.string.fire_cb_result_null);
             // just making sure
             if (requester == null) {
-                Clog.e(Clog.httpRespLogTag, Clog.getString(R.string.fire_cb_requester_null));
+                Clog.e(Clog.httpRespLogTag, R.string.fire_cb_requester_null);
                 return;
             }
             requester.onReceiveResponse(null);
             return;
         }
 
+        // nothing waits on the answer to a success or a cancellation, so
+        // it goes through the journal, which keeps trying until the server
+        // has heard of it
+        if (((result == RESULT.SUCCESS) || (result == RESULT.CANCELLED)) && (requester != null)
+                && (requester.getOwner() != null)) {
+            EventJournal.post(requester.getOwner().getContext(),
+                    resultCBUrl(currentAd.getResultCB(), result));
+            return;
+        }
+
         //fire call to result cb url
         ResultCBRequest cb = new ResultCBRequest(requester, currentAd.getResultCB(), result);
 
@@ -300,14 +339,14 @@ public abstract class MediatedAdViewController {
                 return;
 
             if (this.requester == null) {
-                Clog.w(Clog.httpRespLogTag, Clog.getString(R.string.fire_cb_requester_null));
+                Clog.w(Clog.httpRespLogTag, R.string.fire_cb_requester_null);
                 return;
             }
             AdResponse response = null;
             if ((httpResponse != null) && httpResponse.getSucceeded()) {
                 response = new AdResponse(httpResponse);
             } else {
-                Clog.w(Clog.httpRespLogTag, Clog.getString(R.string.result_cb_bad_response));
+                Clog.w(Clog.httpRespLogTag, R.string.result_cb_bad_response);
             }
 
             this.requester.onReceiveResponse(response);
@@ -315,29 +354,55 @@ public abstract class MediatedAdViewController {
 
         @Override
         protected String getUrl() {
-            // create the resultCB request
-            StringBuilder sb = new StringBuilder(this.resultCB);
-            sb.append("&reason=").append(this.result.ordinal());
-            // append the hashes of the device ID from settings
-            sb.append("&md5udid=").append(Uri.encode(Settings.getSettings().hidmd5));
-            sb.append("&sha1udid=").append(Uri.encode(Settings.getSettings().hidsha1));
-            return sb.toString();
+            return resultCBUrl(this.resultCB, this.result);
         }
     }
 
+    private static String resultCBUrl(String resultCB, RESULT result) {
+        // create the resultCB request
+        StringBuilder sb = new StringBuilder(resultCB);
+        sb.append("&reason=").append(result.ordinal());
+        // append the hashes of the device ID from settings
+        sb.append("&md5udid=").append(Uri.encode(Settings.getSettings().hidmd5));
+        sb.append("&sha1udid=").append(Uri.encode(Settings.getSettings().hidsha1));
+        return sb.toString();
+    }
+
     /*
      Timeout handler code
      */
 
-    void startTimeout() {
+    void startTimeout(Context context) {
         if (hasSucceeded || hasFailed) return;
-        timeoutHandler.sendEmptyMessageDelayed(0, Settings.getSettings().MEDIATED_NETWORK_TIMEOUT);
+        long timeout = Settings.getSettings().MEDIATED_NETWORK_TIMEOUT;
+        if ((context != null) && (currentAd != null)) {
+            this.context = context;
+            timeout = MediationLatency.getTimeout(context, currentAd.getClassName());
+        }
+        requestStartedAt = SystemClock.uptimeMillis();
+        timeoutMs = timeout;
+        timeoutHandler.sendEmptyMessageDelayed(0, timeout);
     }
 
     void cancelTimeout() {
         timeoutHandler.removeMessages(0);
     }
 
+    private void recordLatency() {
+        if ((context == null) || (currentAd == null) || (requestStartedAt == -1)) return;
+        MediationLatency.record(context, currentAd.getClassName(),
+                SystemClock.uptimeMillis() - requestStartedAt);
+        requestStartedAt = -1;
+    }
+
+    // a timeout is an answer at the timeout, or a network that got slower
+    // would never be given longer again
+    private void recordTimeout() {
+        if ((context == null) || (currentAd == null) || (requestStartedAt == -1)) return;
+        MediationLatency.record(context, currentAd.getClassName(), timeoutMs);
+        requestStartedAt = -1;
+    }
+
     static class TimeoutHandler extends Handler {
         WeakReference<MediatedAdViewController> mavc;
         
@@ -350,7 +415,9 @@ public abstract class MediatedAdViewController {
             MediatedAdViewController avc = mavc.get();
             
             if (avc == null || avc.hasFailed) return;
-            Clog.w(Clog.mediationLogTag, Clog.getString(R.string.mediation_timeout));
+            Clog.w(Clog.mediationLogTag, R.string.mediation_timeout);
+            Metrics.count(Metrics.Counter.MEDIATION_TIMEOUTS);
+            avc.recordTimeout();
             avc.onAdFailed(RESULT.INTERNAL_ERROR);
         }
     };
@@ -0,0 +1,142 @@
+/*
+ *    Copyright 2013 APPNEXUS INC
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.appnexus.opensdk;
+
+import com.appnexus.opensdk.utils.Clog;
+
+import java.lang.reflect.Constructor;
+import java.lang.reflect.InvocationTargetException;
+import java.util.HashMap;
+import java.util.HashSet;
+
+/**
+ * <p>
+ * Creates the mediation adaptors named by the AppNexus server.  Each
+ * class name is looked up by reflection only once.  After that its
+ * constructor is reused, or, if the class is missing or is not a
+ * mediation adaptor, it is remembered as unavailable and not looked up
+ * again.
+ * </p>
+ * <p>
+ * Apps can register a {@link Factory} for an adaptor class name to skip
+ * reflection for it altogether.
+ * </p>
+ */
+public class MediatedAdViewRegistry {
+
+    /**
+     * Creates a new instance of a mediation adaptor.
+     */
+    public interface Factory {
+        /**
+         * @return a new adaptor, or null if it can't be created.
+         */
+        public MediatedAdView create();
+    }
+
+    private static final HashMap<String, Factory> factories = new HashMap<String, Factory>();
+    private static final HashMap<String, Constructor<?>> constructors = new HashMap<String, Constructor<?>>();
+    private static final HashSet<String> unavailable = new HashSet<String>();
+
+    /**
+     * Registers a factory for the adaptor with the given class name, as
+     * sent by the AppNexus server.  It is used instead of reflection.
+     *
+     * @param className The fully qualified class name of the adaptor.
+     * @param factory   The factory, or null to go back to reflection.
+     */
+    public static synchronized void registerFactory(String className, Factory factory) {
+        if (className == null) return;
+        if (factory == null) {
+            factories.remove(className);
+        } else {
+            factories.put(className, factory);
+            unavailable.remove(className);
+        }
+    }
+
+    /**
+     * @return true if the class was already found to be missing or not a
+     * mediation adaptor.
+     */
+    static synchronized boolean isUnavailable(String className) {
+        return (className != null) && unavailable.contains(className);
+    }
+
+    /**
+     * @return a new instance of the adaptor, or null if it can't be
+     * created.
+     */
+    static MediatedAdView newInstance(String className) {
+        if (className == null) return null;
+
+        Factory factory;
+        Constructor<?> constructor;
+        synchronized (MediatedAdViewRegistry.class) {
+            if (unavailable.contains(className)) {
+                Clog.d(Clog.mediationLogTag, R.string.adaptor_unavailable, className);
+                return null;
+            }
+            factory = factories.get(className);
+            constructor = (factory == null) ? lookUp(className) : null;
+        }
+
+        if (factory != null) {
+            return factory.create();
+        }
+        if (constructor == null) {
+            return null;
+        }
+
+        try {
+            return (MediatedAdView) constructor.newInstance();
+        } catch (InstantiationException e) {
+            Clog.e(Clog.mediationLogTag, R.string.instantiation_exception);
+        } catch (IllegalAccessException e) {
+            Clog.e(Clog.mediationLogTag, R.string.illegal_access_exception);
+        } catch (InvocationTargetException e) {
+            Clog.e(Clog.mediationLogTag, R.string.instantiation_exception);
+        }
+        return null;
+    }
+
+    // finds the adaptor's no-arg constructor, or marks the class unavailable
+    private static Constructor<?> lookUp(String className) {
+        Constructor<?> constructor = constructors.get(className);
+        if (constructor != null) return constructor;
+
+        try {
+            Class<?> c = Class.forName(className);
+            if (!MediatedAdView.class.isAssignableFrom(c)) {
+                Clog.e(Clog.mediationLogTag, R.string.class_cast_exception);
+            } else {
+                constructor = c.getConstructor();
+                constructors.put(className, constructor);
+                return constructor;
+            }
+        } catch (ClassNotFoundException e) {
+            Clog.e(Clog.mediationLogTag, R.string.class_not_found_exception);
+        } catch (NoSuchMethodException e) {
+            Clog.e(Clog.mediationLogTag, R.string.instantiation_exception);
+        } catch (LinkageError e) {
+            // the adaptor is there but the SDK it wraps is not
+            Clog.e(Clog.mediationLogTag, R.string.class_not_found_exception);
+        }
+        unavailable.add(className);
+        return null;
+    }
+}
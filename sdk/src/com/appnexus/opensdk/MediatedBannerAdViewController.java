@@ -44,11 +44,11 @@ public class MediatedBannerAdViewController extends MediatedAdViewController {
             return;
 
         // if controller is valid, request an ad
-        Clog.d(Clog.mediationLogTag, Clog.getString(R.string.mediated_request));
+        Clog.d(Clog.mediationLogTag, R.string.mediated_request);
 
         RESULT errorCode = null;
 
-        startTimeout();
+        startTimeout(activity);
 
         TargetingParameters tp=null;
         try{
@@ -74,7 +74,7 @@ public class MediatedBannerAdViewController extends MediatedAdViewController {
                         tp);
                 mediatedDisplayable.setView(viewFromMediatedAdaptor);
             }else{
-                Clog.e(Clog.mediationLogTag, Clog.getString(R.string.mediated_request_null_activity));
+                Clog.e(Clog.mediationLogTag, R.string.mediated_request_null_activity);
                 errorCode = RESULT.INTERNAL_ERROR;
             }
         } catch (Exception e) {
@@ -87,7 +87,7 @@ public class MediatedBannerAdViewController extends MediatedAdViewController {
         }
 
         if (mediatedDisplayable.getView() == null) {
-            Clog.e(Clog.mediationLogTag, Clog.getString(R.string.mediated_view_null));
+            Clog.e(Clog.mediationLogTag, R.string.mediated_view_null);
             errorCode = RESULT.UNABLE_TO_FILL;
         }
 
@@ -43,7 +43,7 @@ public class MediatedInterstitialAdViewController extends MediatedAdViewControll
             return;
 
         // if controller is valid, request an ad.
-        Clog.d(Clog.mediationLogTag, Clog.getString(R.string.mediated_request));
+        Clog.d(Clog.mediationLogTag, R.string.mediated_request);
 
         RESULT errorCode = null;
 
@@ -61,7 +61,7 @@ public class MediatedInterstitialAdViewController extends MediatedAdViewControll
             }
         }
 
-        startTimeout();
+        startTimeout(activity);
         try {
             if(activity!=null){
                 ((MediatedInterstitialAdView) mAV).requestAd(this,
@@ -70,7 +70,7 @@ public class MediatedInterstitialAdViewController extends MediatedAdViewControll
                         currentAd.getId(),
                         tp);
             }else{
-                Clog.e(Clog.mediationLogTag, Clog.getString(R.string.mediated_request_null_activity));
+                Clog.e(Clog.mediationLogTag, R.string.mediated_request_null_activity);
                 errorCode = RESULT.INTERNAL_ERROR;
             }
         } catch (Exception e) {
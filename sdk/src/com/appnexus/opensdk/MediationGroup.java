@@ -0,0 +1,205 @@
+/*
+ *    Copyright 2013 APPNEXUS INC
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.appnexus.opensdk;
+
+import android.app.Activity;
+import com.appnexus.opensdk.utils.Clog;
+
+import java.util.List;
+
+/**
+ * Requests several mediated ads at once instead of one after the other.
+ * Each network gets its own controller, which still fires its result_cb
+ * for every outcome, but a success is only reported once the group has
+ * picked the winner: SUCCESS for it, CANCELLED for every loser, loaded or
+ * not.  The first success in server priority order is shown.
+ * A lower priority success waits until every network above it has failed.
+ * Once the winner is picked, losers that loaded are destroyed and the
+ * rest are cancelled, so what their adaptors report afterwards is ignored.
+ * Only if every network in the group fails does the waterfall continue,
+ * driven by the result_cb response of the last network to fail, just
+ * like the serial waterfall; the other result_cb responses are dropped.
+ */
+class MediationGroup {
+    private static final int PENDING = 0;
+    private static final int LOADED = 1;
+    private static final int FAILED = 2;
+
+    private final AdRequester requester;
+    private final AdViewListener listener;
+    private final int[] states;
+    private final Displayable[] displayables;
+    private final MediatedAdViewController[] controllers;
+    private int winner = -1;
+    private int exhaustedBy = -1;
+
+    MediationGroup(AdRequester requester, AdViewListener listener, int size) {
+        this.requester = requester;
+        this.listener = listener;
+        states = new int[size];
+        displayables = new Displayable[size];
+        controllers = new MediatedAdViewController[size];
+    }
+
+    void start(Activity activity, boolean isBanner, List<MediatedAd> ads) {
+        Clog.d(Clog.mediationLogTag, R.string.mediation_group_start, ads.size());
+        for (int i = 0; i < ads.size(); i++) {
+            Slot slot = new Slot(i);
+            MediatedAdViewController controller;
+            if (isBanner) {
+                controller = MediatedBannerAdViewController.create(activity, slot, ads.get(i), slot);
+            } else {
+                controller = MediatedInterstitialAdViewController.create(activity, slot, ads.get(i), slot);
+            }
+            started(i, controller);
+        }
+    }
+
+    private synchronized void started(int i, MediatedAdViewController controller) {
+        controllers[i] = controller;
+        // a higher priority network may have won while this one was created
+        if ((controller != null) && (winner != -1) && (states[i] == PENDING)) {
+            controller.cancel();
+        }
+    }
+
+    private synchronized void onLoaded(int i, Displayable d) {
+        states[i] = LOADED;
+        displayables[i] = d;
+        if ((winner != -1) || (exhaustedBy != -1)) {
+            // a higher priority network already won
+            lost(d);
+            return;
+        }
+        evaluate(i);
+    }
+
+    private synchronized void onFailed(int i) {
+        states[i] = FAILED;
+        evaluate(i);
+    }
+
+    // picks the winner, if priority order allows it yet
+    private void evaluate(int changed) {
+        if ((winner != -1) || (exhaustedBy != -1)) return;
+        for (int i = 0; i < states.length; i++) {
+            if (states[i] == PENDING) {
+                // a higher priority network may still fill
+                return;
+            }
+            if (states[i] == LOADED) {
+                win(i);
+                return;
+            }
+        }
+        Clog.d(Clog.mediationLogTag, R.string.mediation_group_exhausted);
+        exhaustedBy = changed;
+    }
+
+    private void win(int i) {
+        Clog.d(Clog.mediationLogTag, R.string.mediation_group_winner, i);
+        winner = i;
+        report(displayables[i], MediatedAdViewController.RESULT.SUCCESS);
+        listener.onAdLoaded(displayables[i]);
+        // destroy the losers that already loaded and cancel the rest, both
+        // reported CANCELLED
+        for (int j = 0; j < states.length; j++) {
+            if (j == i) continue;
+            if (states[j] == LOADED) {
+                lost(displayables[j]);
+            } else if ((states[j] == PENDING) && (controllers[j] != null)) {
+                controllers[j].cancel();
+            }
+        }
+    }
+
+    private static void lost(Displayable d) {
+        report(d, MediatedAdViewController.RESULT.CANCELLED);
+        d.destroy();
+    }
+
+    private static void report(Displayable d, MediatedAdViewController.RESULT result) {
+        if (d instanceof MediatedDisplayable) {
+            ((MediatedDisplayable) d).getMAVC().reportGroupResult(result);
+        }
+    }
+
+    private synchronized boolean isWinner(int i) {
+        return i == winner;
+    }
+
+    private synchronized boolean isExhaustedBy(int i) {
+        return i == exhaustedBy;
+    }
+
+    // stands in for the fetcher and the view's listener for one network
+    class Slot implements AdRequester, AdViewListener {
+        private final int index;
+
+        Slot(int index) {
+            this.index = index;
+        }
+
+        @Override
+        public void onAdLoaded(Displayable d) {
+            onLoaded(index, d);
+        }
+
+        @Override
+        public void onAdFailed(boolean noMoreAds) {
+            onFailed(index);
+        }
+
+        @Override
+        public void onAdExpanded() {
+            if (isWinner(index)) listener.onAdExpanded();
+        }
+
+        @Override
+        public void onAdCollapsed() {
+            if (isWinner(index)) listener.onAdCollapsed();
+        }
+
+        @Override
+        public void onAdClicked() {
+            if (isWinner(index)) listener.onAdClicked();
+        }
+
+        @Override
+        public void failed(AdRequest request) {
+            if (isExhaustedBy(index)) requester.failed(request);
+        }
+
+        // The result_cb response, which only continues the waterfall once
+        // the whole group has failed.  The last network to fail wins: its
+        // response carries on the waterfall and those of the networks that
+        // failed before it are dropped.
+        @Override
+        public void onReceiveResponse(AdResponse response) {
+            if (isExhaustedBy(index)) {
+                requester.onReceiveResponse(response);
+            } else {
+                Clog.d(Clog.mediationLogTag, R.string.mediation_group_response_dropped, index);
+            }
+        }
+
+        @Override
+        public AdView getOwner() {
+            return requester.getOwner();
+        }
+    }
+}
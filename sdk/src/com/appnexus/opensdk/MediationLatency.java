@@ -0,0 +1,134 @@
+/*
+ *    Copyright 2013 APPNEXUS INC
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.appnexus.opensdk;
+
+import android.annotation.SuppressLint;
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.os.AsyncTask;
+import android.os.Build;
+import com.appnexus.opensdk.utils.Clog;
+import com.appnexus.opensdk.utils.LatencyHistogram;
+import com.appnexus.opensdk.utils.Settings;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * How long each mediation adapter class takes to answer, kept across
+ * sessions in SharedPreferences.  The mediation timeout for a class is the
+ * 95th percentile of its answers plus a margin, clamped between
+ * MEDIATED_NETWORK_TIMEOUT_MIN and MEDIATED_NETWORK_TIMEOUT.  Until a
+ * class has MIN_SAMPLES answers it gets MEDIATED_NETWORK_TIMEOUT.  A
+ * timeout counts as an answer at the timeout, so the learned timeout can
+ * grow again for a network that got slower.
+ * <p>
+ * The SharedPreferences are read in the background the first time they
+ * are needed.  Until then every class gets MEDIATED_NETWORK_TIMEOUT, and
+ * answers are kept in memory and merged in once the stored ones are read.
+ */
+class MediationLatency {
+    private static final String PREFS_NAME = "appnexus_mediation_latency";
+    static final int MIN_SAMPLES = 20;
+    static final double PERCENTILE = 0.95;
+
+    private static final HashMap<String, LatencyHistogram> histograms =
+            new HashMap<String, LatencyHistogram>();
+    private static SharedPreferences prefs = null;
+    private static boolean loading = false;
+
+    static synchronized long getTimeout(Context context, String className) {
+        Settings settings = Settings.getSettings();
+        load(context);
+        LatencyHistogram h = histograms.get(className);
+        if ((prefs == null) || (h == null) || (h.getCount() < MIN_SAMPLES)) {
+            return settings.MEDIATED_NETWORK_TIMEOUT;
+        }
+        long timeout = h.percentile(PERCENTILE) + settings.MEDIATED_NETWORK_TIMEOUT_MARGIN;
+        timeout = Math.max(timeout, settings.MEDIATED_NETWORK_TIMEOUT_MIN);
+        timeout = Math.min(timeout, settings.MEDIATED_NETWORK_TIMEOUT);
+        Clog.d(Clog.mediationLogTag, R.string.mediation_adaptive_timeout,
+                className, (int) timeout);
+        return timeout;
+    }
+
+    static synchronized void record(Context context, String className, long ms) {
+        load(context);
+        LatencyHistogram h = histograms.get(className);
+        if (h == null) {
+            h = new LatencyHistogram();
+            histograms.put(className, h);
+        }
+        h.record(ms);
+        // until loaded, the sample is saved with the stored ones
+        if (prefs != null) {
+            save(prefs.edit().putString(className, h.toString()));
+        }
+    }
+
+    // starts reading the stored histograms, call with the class lock held
+    @SuppressLint("NewApi")
+    private static void load(Context context) {
+        if ((prefs != null) || loading || (context == null)) return;
+        loading = true;
+        final Context appContext = context.getApplicationContext();
+        AsyncTask<Void, Void, Void> task = new AsyncTask<Void, Void, Void>() {
+            @Override
+            protected Void doInBackground(Void... params) {
+                loaded(appContext.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE));
+                return null;
+            }
+        };
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB) {
+            task.executeOnExecutor(AsyncTask.THREAD_POOL_EXECUTOR);
+        } else {
+            task.execute();
+        }
+    }
+
+    private static synchronized void loaded(SharedPreferences stored) {
+        SharedPreferences.Editor editor = stored.edit();
+        for (Map.Entry<String, ?> e : stored.getAll().entrySet()) {
+            if (!(e.getValue() instanceof String)) continue;
+            LatencyHistogram h = LatencyHistogram.fromString((String) e.getValue());
+            LatencyHistogram recent = histograms.get(e.getKey());
+            if (recent != null) {
+                h.merge(recent);
+                editor.putString(e.getKey(), h.toString());
+            }
+            histograms.put(e.getKey(), h);
+        }
+        // classes first heard of this session
+        for (Map.Entry<String, LatencyHistogram> e : histograms.entrySet()) {
+            if (!stored.contains(e.getKey())) {
+                editor.putString(e.getKey(), e.getValue().toString());
+            }
+        }
+        save(editor);
+        prefs = stored;
+        loading = false;
+    }
+
+    @SuppressLint("NewApi")
+    private static void save(SharedPreferences.Editor editor) {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.GINGERBREAD) {
+            editor.apply();
+        } else {
+            editor.commit();
+        }
+    }
+}
@@ -0,0 +1,185 @@
+/*
+ *    Copyright 2013 APPNEXUS INC
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.appnexus.opensdk;
+
+import android.os.SystemClock;
+import com.appnexus.opensdk.utils.LatencyHistogram;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * <p>
+ * Measurements of the ad load pipeline: how long each stage takes, how
+ * often things happen and how many of some things exist right now.
+ * </p>
+ * <p>
+ * By default they are kept in memory and can be read with
+ * {@link #getLatency(Stage, double)}, {@link #getCount(Counter)} and
+ * {@link #getGauge(Gauge)}.  Set a {@link Sink} to send them to your own
+ * telemetry instead.  The sink is called on whichever thread made the
+ * measurement, including the main thread, so it must be quick.
+ * </p>
+ */
+public class Metrics {
+
+    /**
+     * The stages of loading an ad.
+     */
+    public static enum Stage {
+        /**
+         * From the ad request being created to it running in the
+         * background.
+         */
+        QUEUE,
+        /**
+         * From sending the ad request to receiving the response headers.
+         */
+        HTTP,
+        /**
+         * Reading and parsing the response body.
+         */
+        PARSE,
+        /**
+         * From the parsed response to the ad being handed to a view.
+         */
+        DISPATCH,
+        /**
+         * From loading the creative into a WebView to the page finishing.
+         */
+        RENDER,
+        /**
+         * From the refresh timer firing to AdListener.onAdLoaded.
+         */
+        TOTAL
+    }
+
+    public static enum Counter {
+        REQUESTS,
+        FILLS,
+        NO_FILLS,
+        HTTP_ERRORS,
+        MEDIATION_TIMEOUTS,
+        WEBVIEW_POOL_HITS,
+        WEBVIEW_POOL_MISSES
+    }
+
+    public static enum Gauge {
+        QUEUED_INTERSTITIALS,
+        LIVE_WEBVIEWS,
+        POOLED_WEBVIEWS
+    }
+
+    /**
+     * Receives the measurements.  Calls may come from any thread.
+     */
+    public interface Sink {
+        public void onLatency(Stage stage, long ms);
+
+        public void onCount(Counter counter, long delta);
+
+        public void onGauge(Gauge gauge, long value);
+    }
+
+    private static volatile Sink sink = null;
+
+    private static final LatencyHistogram[] latencies = new LatencyHistogram[Stage.values().length];
+    private static final AtomicLong[] counts = new AtomicLong[Counter.values().length];
+    private static final AtomicLong[] gauges = new AtomicLong[Gauge.values().length];
+
+    static {
+        for (int i = 0; i < latencies.length; i++) latencies[i] = new LatencyHistogram();
+        for (int i = 0; i < counts.length; i++) counts[i] = new AtomicLong();
+        for (int i = 0; i < gauges.length; i++) gauges[i] = new AtomicLong();
+    }
+
+    /**
+     * @param s the sink to send measurements to, or null to keep them in
+     *          memory (the default)
+     */
+    public static void setSink(Sink s) {
+        sink = s;
+    }
+
+    /**
+     * @param stage the stage
+     * @param p     a fraction between 0 and 1, 0.95 for the 95th percentile
+     * @return the latency of the stage at that percentile in ms, to the
+     * nearest LatencyHistogram.BUCKET_WIDTH, or -1 if nothing was recorded
+     */
+    public static long getLatency(Stage stage, double p) {
+        LatencyHistogram h = latencies[stage.ordinal()];
+        synchronized (h) {
+            return h.percentile(p);
+        }
+    }
+
+    public static long getCount(Counter counter) {
+        return counts[counter.ordinal()].get();
+    }
+
+    public static long getGauge(Gauge gauge) {
+        return gauges[gauge.ordinal()].get();
+    }
+
+    static void latency(Stage stage, long ms) {
+        if (ms < 0) return;
+        Sink s = sink;
+        if (s != null) {
+            s.onLatency(stage, ms);
+            return;
+        }
+        LatencyHistogram h = latencies[stage.ordinal()];
+        synchronized (h) {
+            h.record(ms);
+        }
+    }
+
+    /**
+     * Records the time from start, a SystemClock.elapsedRealtime() time,
+     * to now.  Does nothing if start is -1.
+     */
+    static void since(Stage stage, long start) {
+        if (start == -1) return;
+        latency(stage, SystemClock.elapsedRealtime() - start);
+    }
+
+    static void count(Counter counter) {
+        Sink s = sink;
+        if (s != null) {
+            s.onCount(counter, 1);
+            return;
+        }
+        counts[counter.ordinal()].incrementAndGet();
+    }
+
+    static void gauge(Gauge gauge, long value) {
+        gauges[gauge.ordinal()].set(value);
+        Sink s = sink;
+        if (s != null) {
+            s.onGauge(gauge, value);
+        }
+    }
+
+    // atomic, unlike gauge() with a value read beforehand
+    static void adjustGauge(Gauge gauge, long delta) {
+        long value = gauges[gauge.ordinal()].addAndGet(delta);
+        Sink s = sink;
+        if (s != null) {
+            s.onGauge(gauge, value);
+        }
+    }
+}
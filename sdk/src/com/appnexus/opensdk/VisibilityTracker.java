@@ -0,0 +1,132 @@
+/*
+ *    Copyright 2013 APPNEXUS INC
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.appnexus.opensdk;
+
+import android.graphics.Rect;
+import android.os.SystemClock;
+import android.view.View;
+import android.view.ViewTreeObserver;
+import com.appnexus.opensdk.utils.Settings;
+
+/**
+ * Tells a listener when a view scrolls on or off the screen.  A view
+ * counts as on screen while at least Settings.MIN_VISIBLE_PERCENT of its
+ * area is.  The view is measured before frames are drawn, at most once
+ * every CHECK_INTERVAL_MS; the last position after scrolling stops is
+ * always measured.  Main thread only.
+ */
+class VisibilityTracker implements ViewTreeObserver.OnPreDrawListener {
+    static final long CHECK_INTERVAL_MS = 100;
+
+    interface Listener {
+        void onVisibilityChanged(boolean visible);
+    }
+
+    private final View view;
+    private final Listener listener;
+    private final Rect rect = new Rect();
+    private ViewTreeObserver observer = null;
+    private boolean visible = true;
+    private long lastCheck = 0;
+    private boolean checkPending = false;
+
+    private final Runnable check = new Runnable() {
+        @Override
+        public void run() {
+            checkPending = false;
+            check();
+        }
+    };
+
+    VisibilityTracker(View view, Listener listener) {
+        this.view = view;
+        this.listener = listener;
+    }
+
+    /**
+     * Starts measuring, call when the view is attached to its window.
+     */
+    void start() {
+        if ((observer != null) && observer.isAlive()) {
+            observer.removeOnPreDrawListener(this);
+        }
+        observer = view.getViewTreeObserver();
+        if (observer.isAlive()) {
+            observer.addOnPreDrawListener(this);
+        }
+    }
+
+    /**
+     * Stops measuring, call when the view is detached from its window.  A
+     * detached view is off screen, and the listener hears so.
+     */
+    void stop() {
+        if ((observer != null) && observer.isAlive()) {
+            observer.removeOnPreDrawListener(this);
+        }
+        observer = null;
+        view.removeCallbacks(check);
+        checkPending = false;
+        if (visible) {
+            visible = false;
+            listener.onVisibilityChanged(false);
+        }
+    }
+
+    /**
+     * Forgets the last result, so the listener hears about the next one
+     * if the view is off screen.
+     */
+    void reset() {
+        visible = true;
+    }
+
+    boolean isVisible() {
+        return visible;
+    }
+
+    @Override
+    public boolean onPreDraw() {
+        long wait = lastCheck + CHECK_INTERVAL_MS - SystemClock.uptimeMillis();
+        if (wait <= 0) {
+            check();
+        } else if (!checkPending) {
+            // the frame may be the last one for a while
+            checkPending = true;
+            view.postDelayed(check, wait);
+        }
+        return true;
+    }
+
+    private void check() {
+        lastCheck = SystemClock.uptimeMillis();
+        boolean now = measure();
+        if (now != visible) {
+            visible = now;
+            listener.onVisibilityChanged(now);
+        }
+    }
+
+    private boolean measure() {
+        long area = (long) view.getWidth() * view.getHeight();
+        if (!view.isShown() || (area == 0) || !view.getGlobalVisibleRect(rect)) {
+            return false;
+        }
+        long shown = (long) rect.width() * rect.height();
+        return shown * 100 >= area * Settings.getSettings().MIN_VISIBLE_PERCENT;
+    }
+}
@@ -0,0 +1,153 @@
+/*
+ *    Copyright 2013 APPNEXUS INC
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.appnexus.opensdk;
+
+import android.content.Context;
+import android.os.Looper;
+import android.os.MessageQueue;
+import android.webkit.WebView;
+import com.appnexus.opensdk.utils.Clog;
+import com.appnexus.opensdk.utils.Settings;
+
+import java.util.ArrayList;
+
+/**
+ * Keeps up to WEBVIEW_POOL_SIZE standard ad WebViews ready to use.  They
+ * are built and configured while the main thread is idle, and plain ad
+ * WebViews are reset and put back when their ad is replaced.  Only used on
+ * the main thread.
+ *
+ * MRAID ads still get a new MRAIDWebView each time, since MRAIDImplementation
+ * treats the WebView's own context as the hosting Activity.
+ *
+ * The pool size is reported as {@link Metrics.Gauge#POOLED_WEBVIEWS} and
+ * hits and misses as {@link Metrics.Counter#WEBVIEW_POOL_HITS} and
+ * {@link Metrics.Counter#WEBVIEW_POOL_MISSES}.
+ */
+class WebViewPool {
+    private static final ArrayList<AdWebView> pool = new ArrayList<AdWebView>();
+    private static Context appContext = null;
+    private static boolean warming = false;
+    private static int hits = 0;
+    private static int misses = 0;
+
+    /**
+     * Makes sure the user agent is known and starts filling the pool in
+     * idle time.
+     */
+    static void prepare(Context context) {
+        appContext = context.getApplicationContext();
+        if ((Settings.getSettings().ua == null) && pool.isEmpty()) {
+            // building the first WebView reads the user agent
+            AdWebView first = new AdWebView(appContext);
+            if (Settings.getSettings().WEBVIEW_POOL_SIZE > 0) {
+                pool.add(first);
+                poolChanged();
+            } else {
+                first.destroy();
+            }
+        }
+        warm();
+    }
+
+    private static void warm() {
+        if (warming || (appContext == null) || isFull()) return;
+        warming = true;
+        Looper.myQueue().addIdleHandler(new MessageQueue.IdleHandler() {
+            @Override
+            public boolean queueIdle() {
+                if (!isFull()) {
+                    pool.add(new AdWebView(appContext));
+                    poolChanged();
+                }
+                warming = !isFull();
+                return warming;
+            }
+        });
+    }
+
+    private static boolean isFull() {
+        return pool.size() >= Settings.getSettings().WEBVIEW_POOL_SIZE;
+    }
+
+    /**
+     * @return a WebView ready to load a standard ad for owner
+     */
+    static AdWebView acquire(AdView owner) {
+        AdWebView webView;
+        if (!pool.isEmpty()) {
+            hits++;
+            Metrics.count(Metrics.Counter.WEBVIEW_POOL_HITS);
+            webView = pool.remove(pool.size() - 1);
+            poolChanged();
+            webView.attach(owner);
+            Clog.d(Clog.baseLogTag, R.string.webview_pool_hit,
+                    pool.size(), getHitRate());
+        } else {
+            misses++;
+            Metrics.count(Metrics.Counter.WEBVIEW_POOL_MISSES);
+            webView = new AdWebView(owner);
+            Clog.d(Clog.baseLogTag, R.string.webview_pool_miss, getHitRate());
+        }
+        if (appContext == null) {
+            appContext = owner.getContext().getApplicationContext();
+        }
+        warm();
+        return webView;
+    }
+
+    /**
+     * Takes back the WebView of an ad that was replaced.  It is reset and
+     * pooled if it is a pooled AdWebView and there is room, otherwise it is
+     * destroyed.
+     */
+    static void recycle(WebView webView) {
+        if ((webView != null) && (webView.getClass() == AdWebView.class) && !isFull()
+                && ((AdWebView) webView).detach()) {
+            pool.add((AdWebView) webView);
+            poolChanged();
+            return;
+        }
+        if (webView != null) {
+            webView.destroy();
+        }
+    }
+
+    private static void poolChanged() {
+        Metrics.gauge(Metrics.Gauge.POOLED_WEBVIEWS, pool.size());
+    }
+
+    static int getSize() {
+        return pool.size();
+    }
+
+    static int getHits() {
+        return hits;
+    }
+
+    static int getMisses() {
+        return misses;
+    }
+
+    /**
+     * @return the percentage of ads that got a pooled WebView
+     */
+    static int getHitRate() {
+        int total = hits + misses;
+        return total == 0 ? 0 : (100 * hits) / total;
+    }
+}
@@ -19,83 +19,186 @@ package com.appnexus.opensdk.utils;
 import android.content.Context;
 import android.util.Log;
 
-import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
 
 import static com.appnexus.opensdk.utils.ClogListener.LOG_LEVEL;
 
 public class Clog {
     public static boolean clogged = false;
 
+    /**
+     * Messages below this level are not written to logcat.  Raise it in
+     * release builds to skip building verbose and debug messages that
+     * no ClogListener wants either.
+     */
+    public static volatile LOG_LEVEL logcatLevel = LOG_LEVEL.V;
+
+    /*
+     * The overloads that take a string resource id and its format arguments
+     * only look up and format the message if logcat or a listener will take
+     * it, so callers don't pay for messages nobody sees.
+     */
+
     public static void v(String LogTag, String message) {
-        if (!clogged && message != null) {
-            notifyListener(LOG_LEVEL.V, LogTag, message);
-            Log.v(LogTag, message);
-        }
+        log(LOG_LEVEL.V, LogTag, message, null);
     }
 
     public static void v(String LogTag, String message, Throwable tr) {
-        if (!clogged && message != null) {
-            notifyListener(LOG_LEVEL.V, LogTag, message, tr);
-            Log.v(LogTag, message, tr);
-        }
+        log(LOG_LEVEL.V, LogTag, message, tr);
+    }
+
+    public static void v(String LogTag, int id) {
+        if (isLoggable(LOG_LEVEL.V)) log(LOG_LEVEL.V, LogTag, format(id), null);
+    }
+
+    public static void v(String LogTag, int id, Object arg) {
+        if (isLoggable(LOG_LEVEL.V)) log(LOG_LEVEL.V, LogTag, format(id, arg), null);
+    }
+
+    public static void v(String LogTag, int id, Object arg1, Object arg2) {
+        if (isLoggable(LOG_LEVEL.V)) log(LOG_LEVEL.V, LogTag, format(id, arg1, arg2), null);
+    }
+
+    public static void v(String LogTag, int id, Object... args) {
+        if (isLoggable(LOG_LEVEL.V)) log(LOG_LEVEL.V, LogTag, format(id, args), null);
     }
 
     public static void d(String LogTag, String message) {
-        if (!clogged && message != null) {
-            notifyListener(LOG_LEVEL.D, LogTag, message);
-            Log.d(LogTag, message);
-        }
+        log(LOG_LEVEL.D, LogTag, message, null);
     }
 
     public static void d(String LogTag, String message, Throwable tr) {
-        if (!clogged && message != null) {
-            notifyListener(LOG_LEVEL.D, LogTag, message, tr);
-            Log.d(LogTag, message, tr);
-        }
+        log(LOG_LEVEL.D, LogTag, message, tr);
+    }
+
+    public static void d(String LogTag, int id) {
+        if (isLoggable(LOG_LEVEL.D)) log(LOG_LEVEL.D, LogTag, format(id), null);
+    }
+
+    public static void d(String LogTag, int id, Object arg) {
+        if (isLoggable(LOG_LEVEL.D)) log(LOG_LEVEL.D, LogTag, format(id, arg), null);
+    }
+
+    public static void d(String LogTag, int id, Object arg1, Object arg2) {
+        if (isLoggable(LOG_LEVEL.D)) log(LOG_LEVEL.D, LogTag, format(id, arg1, arg2), null);
+    }
+
+    public static void d(String LogTag, int id, Object... args) {
+        if (isLoggable(LOG_LEVEL.D)) log(LOG_LEVEL.D, LogTag, format(id, args), null);
     }
 
     public static void i(String LogTag, String message) {
-        if (!clogged && message != null) {
-            notifyListener(LOG_LEVEL.I, LogTag, message);
-            Log.i(LogTag, message);
-        }
+        log(LOG_LEVEL.I, LogTag, message, null);
     }
 
     public static void i(String LogTag, String message, Throwable tr) {
-        if (!clogged && message != null) {
-            notifyListener(LOG_LEVEL.I, LogTag, message, tr);
-            Log.i(LogTag, message, tr);
-        }
+        log(LOG_LEVEL.I, LogTag, message, tr);
+    }
+
+    public static void i(String LogTag, int id) {
+        if (isLoggable(LOG_LEVEL.I)) log(LOG_LEVEL.I, LogTag, format(id), null);
+    }
+
+    public static void i(String LogTag, int id, Object arg) {
+        if (isLoggable(LOG_LEVEL.I)) log(LOG_LEVEL.I, LogTag, format(id, arg), null);
+    }
+
+    public static void i(String LogTag, int id, Object arg1, Object arg2) {
+        if (isLoggable(LOG_LEVEL.I)) log(LOG_LEVEL.I, LogTag, format(id, arg1, arg2), null);
+    }
+
+    public static void i(String LogTag, int id, Object... args) {
+        if (isLoggable(LOG_LEVEL.I)) log(LOG_LEVEL.I, LogTag, format(id, args), null);
     }
 
     public static void w(String LogTag, String message) {
-        if (!clogged && message != null) {
-            notifyListener(LOG_LEVEL.W, LogTag, message);
-            Log.w(LogTag, message);
-        }
+        log(LOG_LEVEL.W, LogTag, message, null);
     }
 
     public static void w(String LogTag, String message, Throwable tr) {
-        if (!clogged && message != null) {
-            notifyListener(LOG_LEVEL.W, LogTag, message, tr);
-            Log.w(LogTag, message, tr);
-        }
+        log(LOG_LEVEL.W, LogTag, message, tr);
+    }
+
+    public static void w(String LogTag, int id) {
+        if (isLoggable(LOG_LEVEL.W)) log(LOG_LEVEL.W, LogTag, format(id), null);
+    }
+
+    public static void w(String LogTag, int id, Object arg) {
+        if (isLoggable(LOG_LEVEL.W)) log(LOG_LEVEL.W, LogTag, format(id, arg), null);
+    }
+
+    public static void w(String LogTag, int id, Object arg1, Object arg2) {
+        if (isLoggable(LOG_LEVEL.W)) log(LOG_LEVEL.W, LogTag, format(id, arg1, arg2), null);
+    }
+
+    public static void w(String LogTag, int id, Object... args) {
+        if (isLoggable(LOG_LEVEL.W)) log(LOG_LEVEL.W, LogTag, format(id, args), null);
     }
 
     public static void e(String LogTag, String message) {
-        if (!clogged && message != null) {
-            notifyListener(LOG_LEVEL.E, LogTag, message);
-            Log.e(LogTag, message);
-        }
+        log(LOG_LEVEL.E, LogTag, message, null);
     }
 
     public static void e(String LogTag, String message, Throwable tr) {
-        if (!clogged && message != null) {
-            notifyListener(LOG_LEVEL.E, LogTag, message, tr);
-            Log.e(LogTag, message, tr);
+        log(LOG_LEVEL.E, LogTag, message, tr);
+    }
+
+    public static void e(String LogTag, int id) {
+        if (isLoggable(LOG_LEVEL.E)) log(LOG_LEVEL.E, LogTag, format(id), null);
+    }
+
+    public static void e(String LogTag, int id, Object arg) {
+        if (isLoggable(LOG_LEVEL.E)) log(LOG_LEVEL.E, LogTag, format(id, arg), null);
+    }
+
+    public static void e(String LogTag, int id, Object arg1, Object arg2) {
+        if (isLoggable(LOG_LEVEL.E)) log(LOG_LEVEL.E, LogTag, format(id, arg1, arg2), null);
+    }
+
+    public static void e(String LogTag, int id, Object... args) {
+        if (isLoggable(LOG_LEVEL.E)) log(LOG_LEVEL.E, LogTag, format(id, args), null);
+    }
+
+    /**
+     * @return true if a message of this level would be written to logcat or
+     * passed to a listener.  Check this before building an expensive message.
+     */
+    public static boolean isLoggable(LOG_LEVEL level) {
+        return !clogged && ((level.ordinal() >= logcatLevel.ordinal()) || hasListenerFor(level));
+    }
+
+    private static void log(LOG_LEVEL level, String LogTag, String message, Throwable tr) {
+        if (clogged || message == null) return;
+
+        notifyListener(level, LogTag, message, tr);
+        if (level.ordinal() < logcatLevel.ordinal()) return;
+        switch (level) {
+            case V:
+                if (tr != null) Log.v(LogTag, message, tr); else Log.v(LogTag, message);
+                break;
+            case D:
+                if (tr != null) Log.d(LogTag, message, tr); else Log.d(LogTag, message);
+                break;
+            case I:
+                if (tr != null) Log.i(LogTag, message, tr); else Log.i(LogTag, message);
+                break;
+            case W:
+                if (tr != null) Log.w(LogTag, message, tr); else Log.w(LogTag, message);
+                break;
+            case E:
+                if (tr != null) Log.e(LogTag, message, tr); else Log.e(LogTag, message);
+                break;
         }
     }
 
+    private static String format(int id, Object... args) {
+        if (error_context == null)
+            return null;
+        String s = error_context.getString(id);
+        return args.length == 0 ? s : String.format(s, args);
+    }
+
     /**
      * Logging helper functions for SDK
      */
@@ -194,52 +297,122 @@ public class Clog {
      */
 
 
-    private static String lastRequest = "";
-    private static String lastResponse = "";
+    // getLastResponse() keeps at most this much of the body
+    static final int MAX_LAST_RESPONSE_LENGTH = 32 * 1024;
+
+    private static volatile String lastRequest = "";
+    private static volatile String lastResponse = "";
 
-    synchronized public static void setLastRequest(String lastRequest) {
+    public static void setLastRequest(String lastRequest) {
         Clog.lastRequest = lastRequest;
     }
 
-    synchronized public static String getLastRequest() {
+    public static String getLastRequest() {
         return lastRequest;
     }
 
-    synchronized public static void clearLastResponse() {
+    public static void clearLastResponse() {
         Clog.lastResponse = "";
     }
 
-    synchronized public static void setLastResponse(String lastResponse) {
-        Clog.lastResponse = lastResponse;
+    public static void setLastResponse(String lastResponse) {
+        Clog.lastResponse = RequestHistory.truncate(lastResponse, MAX_LAST_RESPONSE_LENGTH);
+        RequestHistory.noteResponseBody(lastResponse);
     }
 
-    synchronized public static String getLastResponse() {
+    public static String getLastResponse() {
         return lastResponse;
     }
 
+    /**
+     * @return the most recent ad calls, newest first.  See
+     * {@link RequestHistory}.
+     */
+    public static List<RequestHistory.Record> getRequestHistory() {
+        return RequestHistory.getRecords();
+    }
+
     /**
      * ClogListener helper methods
      */
 
-    private static final ArrayList<ClogListener> listeners = new ArrayList<ClogListener>();
+    private static final CopyOnWriteArrayList<ClogListener> listeners = new CopyOnWriteArrayList<ClogListener>();
+    // lowest level any listener wants, so unwanted messages are dropped
+    // before anything is done with them
+    private static volatile int minListenerLevel = Integer.MAX_VALUE;
+    private static volatile ClogDispatcher dispatcher = null;
 
-    synchronized public static boolean registerListener(ClogListener listener) {
-        return listener != null && listeners.add(listener);
+    public static boolean registerListener(ClogListener listener) {
+        if (listener == null || !listeners.add(listener)) return false;
+        updateMinListenerLevel();
+        return true;
     }
 
-    synchronized public static boolean unregisterListener(ClogListener listener) {
-        return listener != null && listeners.remove(listener);
+    public static boolean unregisterListener(ClogListener listener) {
+        if (listener == null || !listeners.remove(listener)) return false;
+        updateMinListenerLevel();
+        return true;
     }
 
-    synchronized public static void unregisterAllListeners() {
+    public static void unregisterAllListeners() {
         listeners.clear();
+        updateMinListenerLevel();
+    }
+
+    /**
+     * @return true if a registered listener wants messages of this level
+     */
+    public static boolean hasListenerFor(LOG_LEVEL level) {
+        return level.ordinal() >= minListenerLevel;
     }
 
-    private synchronized static void notifyListener(LOG_LEVEL level, String LogTag, String message) {
-        notifyListener(level, LogTag, message, null);
+    /**
+     * Hand messages to listeners on a background thread instead of the
+     * thread that logged.  Up to capacity messages wait for the listeners;
+     * further messages are dropped until they catch up.
+     *
+     * @param capacity how many messages may wait, or 0 to call listeners
+     *                 on the logging thread again (the default)
+     */
+    public static synchronized void setAsyncDispatch(int capacity) {
+        if (dispatcher != null) {
+            dispatcher.shutdown();
+            dispatcher = null;
+        }
+        if (capacity > 0) {
+            dispatcher = new ClogDispatcher(capacity);
+        }
+    }
+
+    /**
+     * @return how many messages the async dispatcher has dropped because
+     * listeners fell behind
+     */
+    public static int getDroppedMessageCount() {
+        ClogDispatcher d = dispatcher;
+        return d == null ? 0 : d.getDroppedCount();
+    }
+
+    private static synchronized void updateMinListenerLevel() {
+        int min = Integer.MAX_VALUE;
+        for (ClogListener listener : listeners) {
+            min = Math.min(min, listener.getLogLevel().ordinal());
+        }
+        minListenerLevel = min;
+    }
+
+    private static void notifyListener(LOG_LEVEL level, String LogTag, String message, Throwable tr) {
+        if (!hasListenerFor(level)) return;
+
+        ClogDispatcher d = dispatcher;
+        if (d != null) {
+            d.offer(level, LogTag, message, tr);
+        } else {
+            deliver(level, LogTag, message, tr);
+        }
     }
 
-    private synchronized static void notifyListener(LOG_LEVEL level, String LogTag, String message, Throwable tr) {
+    static void deliver(LOG_LEVEL level, String LogTag, String message, Throwable tr) {
         for (ClogListener listener: listeners) {
             if (level.ordinal() >= listener.getLogLevel().ordinal()) {
                 if (tr != null)
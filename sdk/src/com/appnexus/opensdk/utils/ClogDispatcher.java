@@ -0,0 +1,104 @@
+/*
+ *    Copyright 2013 APPNEXUS INC
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.appnexus.opensdk.utils;
+
+import com.appnexus.opensdk.utils.ClogListener.LOG_LEVEL;
+
+/**
+ * Hands Clog messages to the listeners on a background thread.  Messages
+ * wait in a fixed size ring buffer.  When it is full new messages are
+ * dropped and counted, so a slow listener never holds up the thread that
+ * logged.
+ */
+class ClogDispatcher implements Runnable {
+    private final LOG_LEVEL[] levels;
+    private final String[] tags;
+    private final String[] messages;
+    private final Throwable[] throwables;
+    private int head = 0;
+    private int count = 0;
+    private int dropped = 0;
+    private boolean running = true;
+
+    ClogDispatcher(int capacity) {
+        levels = new LOG_LEVEL[capacity];
+        tags = new String[capacity];
+        messages = new String[capacity];
+        throwables = new Throwable[capacity];
+        Thread thread = new Thread(this, "ClogDispatcher");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * @return false if the buffer was full and the message was dropped
+     */
+    synchronized boolean offer(LOG_LEVEL level, String LogTag, String message, Throwable tr) {
+        if (count == levels.length) {
+            dropped++;
+            return false;
+        }
+        int tail = (head + count) % levels.length;
+        levels[tail] = level;
+        tags[tail] = LogTag;
+        messages[tail] = message;
+        throwables[tail] = tr;
+        count++;
+        notify();
+        return true;
+    }
+
+    synchronized int getDroppedCount() {
+        return dropped;
+    }
+
+    synchronized void shutdown() {
+        running = false;
+        notify();
+    }
+
+    @Override
+    public void run() {
+        while (true) {
+            LOG_LEVEL level;
+            String LogTag;
+            String message;
+            Throwable tr;
+            synchronized (this) {
+                while (running && (count == 0)) {
+                    try {
+                        wait();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+                if (count == 0) return;
+
+                level = levels[head];
+                LogTag = tags[head];
+                message = messages[head];
+                tr = throwables[head];
+                tags[head] = null;
+                messages[head] = null;
+                throwables[head] = null;
+                head = (head + 1) % levels.length;
+                count--;
+            }
+            Clog.deliver(level, LogTag, message, tr);
+        }
+    }
+}
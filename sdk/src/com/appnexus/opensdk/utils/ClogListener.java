@@ -33,8 +33,10 @@ public abstract class ClogListener {
     /**
      * Callback for all messages set to Clog after listener is registered.
      * Implement special handling of Clog messages here.
-     * Make sure not to print to Clog in this method, or else
-     * the program will deadlock.
+     * This is called on the thread that logged the message, or on
+     * Clog's dispatcher thread if {@link Clog#setAsyncDispatch(int)} is on.
+     * Don't print to Clog in this method, the message would come
+     * straight back to the listener.
      *
      * @param level the level of verbosity
      * @param LogTag the log tag associated with the message
@@ -45,8 +47,10 @@ public abstract class ClogListener {
     /**
      * Callback for all messages set to Clog after listener is registered.
      * Implement special handling of Clog messages here.
-     * Make sure not to print to Clog in this method, or else
-     * the program will deadlock.
+     * This is called on the thread that logged the message, or on
+     * Clog's dispatcher thread if {@link Clog#setAsyncDispatch(int)} is on.
+     * Don't print to Clog in this method, the message would come
+     * straight back to the listener.
      *
      * @param level the level of verbosity
      * @param LogTag the log tag associated with the message
@@ -56,7 +60,8 @@ public abstract class ClogListener {
     public abstract void onReceiveMessage(LOG_LEVEL level, String LogTag, String message, Throwable tr);
 
     /**
-     * Specify filtering level for Clog messages
+     * Specify filtering level for Clog messages.  It is read when the
+     * listener is registered, so it should not change afterwards.
      *
      * @return minimum level of verbosity to filter messages at.
      * For example, returning V (Verbose) will receive all messages.
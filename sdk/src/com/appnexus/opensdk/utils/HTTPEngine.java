@@ -0,0 +1,367 @@
+/*
+ *    Copyright 2013 APPNEXUS INC
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.appnexus.opensdk.utils;
+
+import org.apache.http.Header;
+import org.apache.http.HeaderElement;
+import org.apache.http.HeaderElementIterator;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpRequest;
+import org.apache.http.HttpRequestInterceptor;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpResponseInterceptor;
+import org.apache.http.HttpVersion;
+import org.apache.http.client.methods.HttpUriRequest;
+import org.apache.http.conn.ClientConnectionRequest;
+import org.apache.http.conn.ConnectionKeepAliveStrategy;
+import org.apache.http.conn.ConnectionPoolTimeoutException;
+import org.apache.http.conn.ManagedClientConnection;
+import org.apache.http.conn.params.ConnManagerParams;
+import org.apache.http.conn.params.ConnPerRouteBean;
+import org.apache.http.conn.routing.HttpRoute;
+import org.apache.http.conn.scheme.PlainSocketFactory;
+import org.apache.http.conn.scheme.Scheme;
+import org.apache.http.conn.scheme.SchemeRegistry;
+import org.apache.http.conn.ssl.SSLSocketFactory;
+import org.apache.http.entity.HttpEntityWrapper;
+import org.apache.http.impl.client.DefaultHttpClient;
+import org.apache.http.impl.conn.tsccm.ThreadSafeClientConnManager;
+import org.apache.http.message.BasicHeaderElementIterator;
+import org.apache.http.params.BasicHttpParams;
+import org.apache.http.params.HttpConnectionParams;
+import org.apache.http.params.HttpParams;
+import org.apache.http.params.HttpProtocolParams;
+import org.apache.http.protocol.HTTP;
+import org.apache.http.protocol.HttpContext;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PushbackInputStream;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * SDK-wide HTTP client.  Every ad call, result callback and pixel goes
+ * through one pooled, keep-alive client so repeated calls to the ad
+ * server reuse their TCP connection instead of handshaking each time.
+ * Requests ask for gzip or deflate, and compressed responses are decoded
+ * as they are read, so callers always see the plain body.
+ */
+public class HTTPEngine {
+    private static DefaultHttpClient client = null;
+    private static PoolingConnManager connManager = null;
+
+    private static final AtomicLong poolHits = new AtomicLong();
+    private static final AtomicLong poolMisses = new AtomicLong();
+    private static final AtomicLong bytesReceived = new AtomicLong();
+    private static final AtomicLong bytesDecoded = new AtomicLong();
+
+    /**
+     * Returns the shared client, creating it on first use.
+     */
+    public static synchronized DefaultHttpClient getClient() {
+        if (client == null) {
+            Settings settings = Settings.getSettings();
+
+            HttpParams p = new BasicHttpParams();
+            HttpProtocolParams.setVersion(p, HttpVersion.HTTP_1_1);
+            HttpProtocolParams.setContentCharset(p, HTTP.UTF_8);
+            HttpConnectionParams.setConnectionTimeout(p,
+                    settings.HTTP_CONNECTION_TIMEOUT);
+            HttpConnectionParams.setSoTimeout(p,
+                    settings.HTTP_SOCKET_TIMEOUT);
+            HttpConnectionParams.setSocketBufferSize(p, 8192);
+            HttpConnectionParams.setStaleCheckingEnabled(p, true);
+            ConnManagerParams.setMaxTotalConnections(p,
+                    settings.HTTP_MAX_CONNECTIONS);
+            ConnManagerParams.setMaxConnectionsPerRoute(p,
+                    new ConnPerRouteBean(settings.HTTP_MAX_CONNECTIONS_PER_HOST));
+            // don't wait on an exhausted pool any longer than on a connect
+            ConnManagerParams.setTimeout(p, settings.HTTP_CONNECTION_TIMEOUT);
+
+            SchemeRegistry registry = new SchemeRegistry();
+            registry.register(new Scheme("http",
+                    PlainSocketFactory.getSocketFactory(), 80));
+            registry.register(new Scheme("https",
+                    SSLSocketFactory.getSocketFactory(), 443));
+
+            connManager = new PoolingConnManager(p, registry);
+            client = new DefaultHttpClient(connManager, p);
+            client.setKeepAliveStrategy(new KeepAliveStrategy());
+            client.addRequestInterceptor(new HttpRequestInterceptor() {
+                @Override
+                public void process(HttpRequest request, HttpContext context) {
+                    if (Settings.getSettings().HTTP_ACCEPT_COMPRESSION
+                            && !request.containsHeader("Accept-Encoding")) {
+                        request.addHeader("Accept-Encoding", "gzip, deflate");
+                    }
+                }
+            });
+            client.addResponseInterceptor(new HttpResponseInterceptor() {
+                @Override
+                public void process(HttpResponse response, HttpContext context) {
+                    HttpEntity entity = response.getEntity();
+                    if (entity != null) {
+                        response.setEntity(new DecodingEntity(entity));
+                    }
+                }
+            });
+        }
+        return client;
+    }
+
+    /**
+     * Executes a request on the shared client.  The {@link Settings}
+     * timeouts and user agent are applied to the request.
+     * Callers must consume the response entity (or call
+     * {@link #release(HttpResponse)}) to return the connection.
+     */
+    public static HttpResponse execute(HttpUriRequest request) throws IOException {
+        DefaultHttpClient h = getClient();
+        Settings settings = Settings.getSettings();
+
+        HttpParams p = request.getParams();
+        HttpConnectionParams.setConnectionTimeout(p,
+                settings.HTTP_CONNECTION_TIMEOUT);
+        HttpConnectionParams.setSoTimeout(p, settings.HTTP_SOCKET_TIMEOUT);
+        if (!request.containsHeader("User-Agent")
+                && !StringUtil.isEmpty(settings.ua)) {
+            request.setHeader("User-Agent", settings.ua);
+        }
+
+        // the client's own manager, shutdown() may clear connManager
+        h.getConnectionManager().closeExpiredConnections();
+        return h.execute(request);
+    }
+
+    /**
+     * Consumes whatever is left of the response entity so the
+     * underlying connection goes back to the pool.
+     */
+    public static void release(HttpResponse response) {
+        if (response == null) return;
+        HttpEntity entity = response.getEntity();
+        if (entity != null) {
+            try {
+                entity.consumeContent();
+            } catch (IOException ignored) {
+                // the connection manager drops the connection in this case
+            }
+        }
+    }
+
+    /**
+     * @return the number of requests served by an already open,
+     * pooled connection.
+     */
+    public static long getPoolHits() {
+        return poolHits.get();
+    }
+
+    /**
+     * @return the number of requests that had to open a new
+     * connection.
+     */
+    public static long getPoolMisses() {
+        return poolMisses.get();
+    }
+
+    /**
+     * @return the number of response body bytes read off the network,
+     * compressed or not.
+     */
+    public static long getBytesReceived() {
+        return bytesReceived.get();
+    }
+
+    /**
+     * @return the number of response body bytes after decoding.  The
+     * difference to {@link #getBytesReceived()} is what compression saved.
+     */
+    public static long getBytesDecoded() {
+        return bytesDecoded.get();
+    }
+
+    /**
+     * @return the number of connections currently held by the pool,
+     * leased or idle.
+     */
+    public static synchronized int getConnectionsInPool() {
+        return connManager != null ? connManager.getConnectionsInPool() : 0;
+    }
+
+    /**
+     * Closes the pool and all of its connections.  The next request
+     * builds a fresh client.
+     */
+    public static synchronized void shutdown() {
+        if (client != null) {
+            client.getConnectionManager().shutdown();
+            client = null;
+            connManager = null;
+        }
+    }
+
+    // counts whether a leased connection was already open (a pool hit)
+    // or needs to be opened by the request director (a miss)
+    private static class PoolingConnManager extends ThreadSafeClientConnManager {
+
+        PoolingConnManager(HttpParams params, SchemeRegistry registry) {
+            super(params, registry);
+        }
+
+        @Override
+        public ClientConnectionRequest requestConnection(HttpRoute route, Object state) {
+            final ClientConnectionRequest request = super.requestConnection(route, state);
+            return new ClientConnectionRequest() {
+                @Override
+                public ManagedClientConnection getConnection(long timeout, TimeUnit tunit)
+                        throws InterruptedException, ConnectionPoolTimeoutException {
+                    ManagedClientConnection conn = request.getConnection(timeout, tunit);
+                    if (conn.isOpen()) {
+                        poolHits.incrementAndGet();
+                    } else {
+                        poolMisses.incrementAndGet();
+                    }
+                    return conn;
+                }
+
+                @Override
+                public void abortRequest() {
+                    request.abortRequest();
+                }
+            };
+        }
+    }
+
+    // Decodes a gzip or deflate body while it is read, and counts the
+    // bytes before and after decoding
+    static class DecodingEntity extends HttpEntityWrapper {
+        private final String encoding;
+        private InputStream content = null;
+
+        DecodingEntity(HttpEntity entity) {
+            super(entity);
+            Header h = entity.getContentEncoding();
+            String value = (h != null) ? h.getValue().trim().toLowerCase(Locale.US) : null;
+            encoding = ("gzip".equals(value) || "x-gzip".equals(value) || "deflate".equals(value))
+                    ? value : null;
+        }
+
+        @Override
+        public InputStream getContent() throws IOException {
+            if (content != null) return content;
+            InputStream in = new CountingInputStream(wrappedEntity.getContent(), bytesReceived);
+            if ("deflate".equals(encoding)) {
+                in = inflate(in);
+            } else if (encoding != null) {
+                in = new GZIPInputStream(in);
+            }
+            content = new CountingInputStream(in, bytesDecoded);
+            return content;
+        }
+
+        @Override
+        public Header getContentEncoding() {
+            return (encoding != null) ? null : wrappedEntity.getContentEncoding();
+        }
+
+        @Override
+        public long getContentLength() {
+            return (encoding != null) ? -1 : wrappedEntity.getContentLength();
+        }
+
+        @Override
+        public void writeTo(OutputStream out) throws IOException {
+            InputStream in = getContent();
+            byte[] buffer = new byte[4096];
+            int n;
+            while ((n = in.read(buffer)) != -1) {
+                out.write(buffer, 0, n);
+            }
+            in.close();
+        }
+
+        // "deflate" is meant to be zlib wrapped, but some servers send raw
+        // deflate data, so look at the first two bytes
+        private static InputStream inflate(InputStream in) throws IOException {
+            PushbackInputStream pushback = new PushbackInputStream(in, 2);
+            byte[] head = new byte[2];
+            int n = pushback.read(head);
+            if (n > 0) pushback.unread(head, 0, n);
+            boolean zlib = (n == 2) && ((head[0] & 0x0f) == 8)
+                    && ((((head[0] & 0xff) << 8) | (head[1] & 0xff)) % 31 == 0);
+            return new InflaterInputStream(pushback, new Inflater(!zlib));
+        }
+    }
+
+    private static class CountingInputStream extends FilterInputStream {
+        private final AtomicLong counter;
+
+        CountingInputStream(InputStream in, AtomicLong counter) {
+            super(in);
+            this.counter = counter;
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if (b != -1) counter.incrementAndGet();
+            return b;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int count) throws IOException {
+            int n = super.read(buffer, offset, count);
+            if (n > 0) counter.addAndGet(n);
+            return n;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            long skipped = super.skip(n);
+            if (skipped > 0) counter.addAndGet(skipped);
+            return skipped;
+        }
+    }
+
+    // honor the server's Keep-Alive timeout, fall back to our own default
+    private static class KeepAliveStrategy implements ConnectionKeepAliveStrategy {
+        @Override
+        public long getKeepAliveDuration(HttpResponse response, HttpContext context) {
+            HeaderElementIterator it = new BasicHeaderElementIterator(
+                    response.headerIterator(HTTP.CONN_KEEP_ALIVE));
+            while (it.hasNext()) {
+                HeaderElement he = it.nextElement();
+                if ("timeout".equalsIgnoreCase(he.getName())
+                        && !StringUtil.isEmpty(he.getValue())) {
+                    try {
+                        return Long.parseLong(he.getValue()) * 1000;
+                    } catch (NumberFormatException ignored) {
+                    }
+                }
+            }
+            return Settings.getSettings().HTTP_KEEP_ALIVE_DURATION;
+        }
+    }
+}
@@ -21,9 +21,7 @@ import android.os.AsyncTask;
 import android.os.Build;
 import org.apache.http.HttpResponse;
 import org.apache.http.client.ClientProtocolException;
-import org.apache.http.client.HttpClient;
 import org.apache.http.client.methods.HttpGet;
-import org.apache.http.impl.client.DefaultHttpClient;
 import org.apache.http.util.EntityUtils;
 
 import java.io.IOException;
@@ -43,13 +41,13 @@ public abstract class HTTPGet<Params extends Void, Progress extends Void, Result
     protected HTTPResponse doInBackground(Void... params) {
         HTTPResponse out = new HTTPResponse();
 
-        HttpClient httpc = new DefaultHttpClient();
+        HttpResponse r = null;
         try {
             URI uri = new URI(getUrl());
             HttpGet request = new HttpGet();
             request.setHeader("User-Agent", Settings.getSettings().ua);
             request.setURI(uri);
-            HttpResponse r = httpc.execute(request);
+            r = HTTPEngine.execute(request);
 
             out.setHeaders(r.getAllHeaders());
             out.setResponseBody(EntityUtils.toString(r.getEntity()));
@@ -64,7 +62,7 @@ public abstract class HTTPGet<Params extends Void, Progress extends Void, Result
         } catch (IOException e) {
             out.setSucceeded(false);
         } finally {
-            httpc.getConnectionManager().shutdown();
+            HTTPEngine.release(r);
         }
 
         return out;
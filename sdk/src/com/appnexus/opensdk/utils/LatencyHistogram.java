@@ -0,0 +1,121 @@
+/*
+ *    Copyright 2013 APPNEXUS INC
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package com.appnexus.opensdk.utils;
+
+/**
+ * Counts latencies in fixed-width buckets.  Once MAX_SAMPLES have been
+ * recorded every count is halved, so older samples fade out and the
+ * percentiles follow recent behaviour.  Serializes to a comma separated
+ * string of counts for storing in SharedPreferences.
+ */
+public class LatencyHistogram {
+    public static final int BUCKET_WIDTH = 250;
+    public static final int BUCKET_COUNT = 61;
+    static final int MAX_SAMPLES = 200;
+
+    private final int[] counts = new int[BUCKET_COUNT];
+    private int total = 0;
+
+    /**
+     * @param ms the latency to add.  Anything beyond the last bucket is
+     *           counted in the last bucket.
+     */
+    public void record(long ms) {
+        int bucket = (int) Math.min(Math.max(ms, 0) / BUCKET_WIDTH, BUCKET_COUNT - 1);
+        counts[bucket]++;
+        total++;
+        if (total >= MAX_SAMPLES) {
+            halve();
+        }
+    }
+
+    /**
+     * Adds the samples of another histogram to this one.
+     */
+    public void merge(LatencyHistogram other) {
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            counts[i] += other.counts[i];
+            total += other.counts[i];
+        }
+        while (total >= MAX_SAMPLES) {
+            halve();
+        }
+    }
+
+    // older samples count for less as new ones come in
+    private void halve() {
+        total = 0;
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            counts[i] /= 2;
+            total += counts[i];
+        }
+    }
+
+    public int getCount() {
+        return total;
+    }
+
+    /**
+     * @param p a fraction between 0 and 1, 0.95 for the 95th percentile
+     * @return the upper bound of the bucket holding the percentile, or -1
+     * if nothing was recorded
+     */
+    public long percentile(double p) {
+        if (total == 0) return -1;
+        // the sample that must be covered, counting from 1
+        int rank = (int) Math.ceil(p * total);
+        if (rank < 1) rank = 1;
+        int seen = 0;
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            seen += counts[i];
+            if (seen >= rank) {
+                return (long) (i + 1) * BUCKET_WIDTH;
+            }
+        }
+        return (long) BUCKET_COUNT * BUCKET_WIDTH;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            if (i > 0) sb.append(',');
+            sb.append(counts[i]);
+        }
+        return sb.toString();
+    }
+
+    /**
+     * @param s a string made by toString()
+     * @return the histogram, empty if s is null or malformed
+     */
+    public static LatencyHistogram fromString(String s) {
+        LatencyHistogram h = new LatencyHistogram();
+        if (StringUtil.isEmpty(s)) return h;
+
+        String[] parts = s.split(",");
+        if (parts.length != BUCKET_COUNT) return h;
+        try {
+            for (int i = 0; i < BUCKET_COUNT; i++) {
+                h.counts[i] = Math.max(Integer.parseInt(parts[i]), 0);
+                h.total += h.counts[i];
+            }
+        } catch (NumberFormatException e) {
+            return new LatencyHistogram();
+        }
+        return h;
+    }
+}
@@ -0,0 +1,132 @@
+/*
+ *    Copyright 2013 APPNEXUS INC
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.appnexus.opensdk.utils;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * The last CAPACITY ad calls, for diagnostics.  Each record keeps at most
+ * MAX_URL_LENGTH characters of the URL and MAX_BODY_LENGTH characters of
+ * the response body, so the history never holds more than a fixed amount
+ * of memory.  Adding a record takes no lock: writers claim a slot with an
+ * atomic counter and overwrite the oldest record.
+ */
+public class RequestHistory {
+    public static final int CAPACITY = 16;
+    public static final int MAX_URL_LENGTH = 2048;
+    public static final int MAX_BODY_LENGTH = 4096;
+
+    /**
+     * One ad call.  Immutable.
+     */
+    public static final class Record {
+        /**
+         * When the request was sent, in System.currentTimeMillis() time.
+         */
+        public final long requestedAt;
+        /**
+         * How long the call took in ms.
+         */
+        public final long latency;
+        public final String url;
+        /**
+         * The placement id, or comma separated ids for a batch request.
+         */
+        public final String placementId;
+        /**
+         * The HTTP status code, or -1 if no response was received.
+         */
+        public final int status;
+        /**
+         * The start of the response body, or null if there was none.
+         */
+        public final String body;
+        public final boolean bodyTruncated;
+
+        public Record(long requestedAt, long latency, String url, String placementId,
+                      int status, String body) {
+            this.requestedAt = requestedAt;
+            this.latency = latency;
+            this.url = truncate(url, MAX_URL_LENGTH);
+            this.placementId = placementId;
+            this.status = status;
+            this.body = truncate(body, MAX_BODY_LENGTH);
+            this.bodyTruncated = (body != null) && (body.length() > MAX_BODY_LENGTH);
+        }
+    }
+
+    private static final AtomicReferenceArray<Record> records =
+            new AtomicReferenceArray<Record>(CAPACITY);
+    private static final AtomicLong next = new AtomicLong(0);
+
+    // the body seen by the ad call running on this thread
+    private static final ThreadLocal<String> responseBody = new ThreadLocal<String>();
+
+    public static void add(Record record) {
+        if (record == null) return;
+        long slot = next.getAndIncrement();
+        records.set((int) (slot % CAPACITY), record);
+    }
+
+    /**
+     * @return the recorded calls, newest first
+     */
+    public static List<Record> getRecords() {
+        long end = next.get();
+        ArrayList<Record> out = new ArrayList<Record>(CAPACITY);
+        for (long i = end - 1; (i >= 0) && (i >= end - CAPACITY); i--) {
+            Record r = records.get((int) (i % CAPACITY));
+            if (r != null) out.add(r);
+        }
+        return out;
+    }
+
+    public static void clear() {
+        for (int i = 0; i < CAPACITY; i++) {
+            records.set(i, null);
+        }
+        next.set(0);
+    }
+
+    /**
+     * Remembers the start of the response body parsed on this thread, so
+     * the ad call that is running here can record it.  Only as much as a
+     * Record keeps is held, a result_cb response parsed on the main thread
+     * is never taken.
+     */
+    static void noteResponseBody(String body) {
+        // one character over, so the Record still sees it was cut
+        responseBody.set(truncate(body, MAX_BODY_LENGTH + 1));
+    }
+
+    /**
+     * @return the body noted on this thread since the last call, or null
+     */
+    public static String takeResponseBody() {
+        String body = responseBody.get();
+        responseBody.set(null);
+        return body;
+    }
+
+    // copies the start, a substring would share the whole string's chars
+    static String truncate(String s, int max) {
+        return ((s == null) || (s.length() <= max)) ? s : new String(s.substring(0, max));
+    }
+}
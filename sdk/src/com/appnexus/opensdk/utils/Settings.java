@@ -43,13 +43,55 @@ public class Settings {
 
     public final int HTTP_CONNECTION_TIMEOUT = 15000;
     public final int HTTP_SOCKET_TIMEOUT = 20000;
-
+    public int HTTP_MAX_CONNECTIONS = 8;
+    public int HTTP_MAX_CONNECTIONS_PER_HOST = 4;
+    public long HTTP_KEEP_ALIVE_DURATION = 30000;
+    // ask servers for gzip or deflate bodies, which are decoded transparently
+    public boolean HTTP_ACCEPT_COMPRESSION = true;
+    // send ad requests as a form-encoded POST; the device and app
+    // parameters then go once per session and are named by a token after
+    // that, which the ad server must support
+    public boolean POST_REQUESTS = false;
+
+    // standard ad WebViews kept ready, 0 turns pooling off
+    public int WEBVIEW_POOL_SIZE = 2;
+
+    // on API 11 and up, MRAID creatives load mraid.js with a script tag
+    // answered from memory instead of having it inlined
+    public boolean MRAID_JS_BY_URL = false;
+
+    // how much of a banner must be on screen for auto-refresh to continue,
+    // 0 only pauses banners that are entirely off screen
+    public int MIN_VISIBLE_PERCENT = 50;
+
+    // bytes of creative images, scripts and stylesheets kept on disk,
+    // 0 turns the asset cache off
+    public long ASSET_CACHE_SIZE = 4 * 1024 * 1024;
+
+    /**
+     * @deprecated Unused, ad refreshes are scheduled on the main looper
+     * and no longer have threads of their own.
+     */
+    @Deprecated
     public final int FETCH_THREAD_COUNT = 4;
 
+    public int AD_CACHE_SIZE = 8;
+    public long AD_CACHE_TTL = 120000;
+
     public final int MIN_REFRESH_MILLISECONDS = 15000;
     public final int DEFAULT_INTERSTITIAL_CLOSE_BUTTON_DELAY = 10000;
+    // how long a loaded interstitial may wait to be shown when the server
+    // sends no Cache-Control max-age
+    public long INTERSTITIAL_MAX_AGE = 60000;
 
     public final long MEDIATED_NETWORK_TIMEOUT = 15000;
+    // bounds for the per-network timeouts learned from past answers,
+    // MEDIATED_NETWORK_TIMEOUT is the upper bound
+    public long MEDIATED_NETWORK_TIMEOUT_MIN = 3000;
+    public long MEDIATED_NETWORK_TIMEOUT_MARGIN = 1000;
+    // how many mediated networks to request at once, 1 walks the waterfall
+    // one network at a time
+    public int MEDIATION_PARALLELISM = 1;
 
     public final String COOKIE_DOMAIN = "http://mediation.adnxs.com";
     public final String AN_UUID = "uuid2";
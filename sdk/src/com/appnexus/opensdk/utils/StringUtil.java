@@ -25,4 +25,14 @@ public class StringUtil {
 	public static boolean isEmpty(String s) {
 		return s == null || s.length() == 0;
 	}
+
+	/**
+	 * Null-safe equals
+	 * @param a
+	 * @param b
+	 * @return true if both are null or equal
+	 */
+	public static boolean equals(String a, String b) {
+		return a == null ? b == null : a.equals(b);
+	}
 }
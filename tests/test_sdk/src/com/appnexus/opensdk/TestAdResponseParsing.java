@@ -0,0 +1,121 @@
+/*
+ *    Copyright 2013 APPNEXUS INC
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.appnexus.opensdk;
+
+import junit.framework.TestCase;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+public class TestAdResponseParsing extends TestCase {
+
+    private static final String STD_AD = "{\"status\":\"ok\",\"ads\":[{\"type\":\"banner\","
+            + "\"width\":320,\"height\":\"50\",\"content\":\"<div>ad</div>\"}],"
+            + "\"mediated\":[{\"handler\":[{\"type\":\"android\",\"class\":\"com.example.Banner\"}]}]}";
+
+    private static final String MEDIATED_ONLY = "{\"status\":\"ok\",\"ads\":[],"
+            + "\"mediated\":[{\"result_cb\":\"http://cb/1\",\"handler\":["
+            + "{\"type\":\"ios\",\"class\":\"IOSBanner\"},"
+            + "{\"type\":\"android\",\"class\":\"com.example.First\",\"width\":300.0,\"height\":250,\"id\":\"1\"}]},"
+            + "{\"handler\":[{\"class\":\"com.example.Second\",\"type\":\"android\"}],\"result_cb\":\"http://cb/2\"}]}";
+
+    private static AdResponse parse(String body) throws IOException {
+        InputStream in = new ByteArrayInputStream(body.getBytes("UTF-8"));
+        return new AdResponse(in, "UTF-8", null);
+    }
+
+    public void testStdAd() throws IOException {
+        AdResponse response = parse(STD_AD);
+        assertTrue(response.containsAds());
+        assertEquals("<div>ad</div>", response.getContent());
+        assertEquals(320, response.getWidth());
+        assertEquals(50, response.getHeight());
+        // a standard ad wins over mediated[]
+        assertNull(response.getMediatedAds());
+    }
+
+    public void testStdAdMatchesStringParser() throws IOException {
+        AdResponse streamed = parse(STD_AD);
+        AdResponse buffered = new AdResponse(STD_AD, null);
+        assertEquals(buffered.getContent(), streamed.getContent());
+        assertEquals(buffered.getWidth(), streamed.getWidth());
+        assertEquals(buffered.getHeight(), streamed.getHeight());
+        assertEquals(buffered.isMraid(), streamed.isMraid());
+    }
+
+    public void testCreativeWrapped() throws IOException {
+        AdResponse response = parse(STD_AD);
+        String html = response.getCreativeHtml(null);
+        assertEquals("<html><head /><body style='margin:0;padding:0;'><div>ad</div></body></html>",
+                html);
+        // built once
+        assertSame(html, response.getCreativeHtml(null));
+    }
+
+    public void testMediatedAds() throws IOException {
+        AdResponse response = parse(MEDIATED_ONLY);
+        assertTrue(response.containsAds());
+        assertEquals(2, response.getMediatedAds().size());
+
+        MediatedAd first = response.getMediatedAds().get(0);
+        assertEquals("com.example.First", first.getClassName());
+        assertEquals(300, first.getWidth());
+        assertEquals(250, first.getHeight());
+        assertEquals("http://cb/1", first.getResultCB());
+
+        // result_cb after handler[] still applies to the handler
+        MediatedAd second = response.getMediatedAds().get(1);
+        assertEquals("com.example.Second", second.getClassName());
+        assertEquals(-1, second.getWidth());
+        assertEquals("http://cb/2", second.getResultCB());
+    }
+
+    public void testErrorStatus() throws IOException {
+        AdResponse response = parse("{\"status\":\"error\",\"errorMessage\":\"bad\"," +
+                "\"ads\":[{\"content\":\"<div>ad</div>\"}]}");
+        assertFalse(response.containsAds());
+
+        // the status may come after the ad
+        response = parse("{\"ads\":[{\"content\":\"<div>ad</div>\"}]," +
+                "\"status\":\"error\",\"errorMessage\":\"bad\"}");
+        assertFalse(response.containsAds());
+    }
+
+    public void testBlankAndMalformed() throws IOException {
+        AdResponse blank = parse("");
+        assertTrue(blank.isBlank());
+        assertFalse(blank.containsAds());
+
+        AdResponse malformed = parse("{\"ads\":[{\"content\":");
+        assertFalse(malformed.isBlank());
+        assertFalse(malformed.containsAds());
+
+        AdResponse wrongShape = parse("[1, 2, 3]");
+        assertFalse(wrongShape.containsAds());
+    }
+
+    public void testParseInt() {
+        assertEquals(50, AdResponse.parseInt("50"));
+        assertEquals(300, AdResponse.parseInt("300.75"));
+        assertEquals(-2, AdResponse.parseInt("-2"));
+        assertEquals(-1, AdResponse.parseInt("abc"));
+        assertEquals(-1, AdResponse.parseInt("12px"));
+        assertEquals(-1, AdResponse.parseInt(""));
+        assertEquals(-1, AdResponse.parseInt("99999999999"));
+    }
+}
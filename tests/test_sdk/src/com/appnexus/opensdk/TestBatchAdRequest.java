@@ -0,0 +1,162 @@
+/*
+ *    Copyright 2013 APPNEXUS INC
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.appnexus.opensdk;
+
+import android.test.ActivityInstrumentationTestCase2;
+import com.appnexus.opensdk.util.InstanceLock;
+import com.appnexus.opensdk.util.StubServer;
+import com.appnexus.opensdk.util.TestUtil;
+import com.appnexus.opensdk.utils.Clog;
+import com.appnexus.opensdk.utils.Settings;
+
+import java.util.List;
+
+public class TestBatchAdRequest extends ActivityInstrumentationTestCase2<TestActivity> implements AdListener {
+    private static final String BATCH_RESPONSE = "{\"status\":\"ok\",\"batch\":["
+            + "{\"status\":\"ok\",\"ads\":[{\"type\":\"banner\",\"width\":320,\"height\":50,"
+            + "\"content\":\"<div>first</div>\"}]},"
+            + "{\"status\":\"ok\",\"ads\":[]},"
+            + "{\"status\":\"ok\",\"ads\":[{\"type\":\"banner\",\"width\":300,\"height\":250,"
+            + "\"content\":\"<div>third</div>\"}]}]}";
+
+    TestActivity activity;
+    StubServer server;
+    BannerAdView first, second, third;
+    InstanceLock lock;
+    String old_base_url;
+    int loaded, failed;
+    boolean firstLoaded, secondFailed, thirdLoaded;
+
+    public TestBatchAdRequest() {
+        super(TestActivity.class);
+    }
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        server = new StubServer(BATCH_RESPONSE);
+        old_base_url = Settings.getSettings().BASE_URL;
+        Settings.getSettings().BASE_URL = server.getBaseUrl();
+        Clog.d(TestUtil.testLogTag, "BASE_URL set to " + Settings.getSettings().BASE_URL);
+        lock = new InstanceLock();
+        loaded = 0;
+        failed = 0;
+
+        activity = getActivity();
+        getInstrumentation().runOnMainSync(new Runnable() {
+            @Override
+            public void run() {
+                first = makeBanner("1", 320, 50);
+                second = makeBanner("2", 320, 50);
+                third = makeBanner("3", 300, 250);
+            }
+        });
+    }
+
+    private BannerAdView makeBanner(String placementID, int width, int height) {
+        BannerAdView bav = new BannerAdView(activity, 0);
+        bav.setPlacementID(placementID);
+        bav.setAdSize(width, height);
+        bav.setAdListener(this);
+        return bav;
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        Clog.d(TestUtil.testLogTag, "tear down");
+        Settings.getSettings().BASE_URL = old_base_url;
+        server.shutdown();
+
+        super.tearDown();
+    }
+
+    public void testOneCallForAllBanners() {
+        getInstrumentation().runOnMainSync(new Runnable() {
+            @Override
+            public void run() {
+                assertTrue(BannerAdView.loadAdsInBatch(first, second, third));
+            }
+        });
+
+        // wait for all three banners to hear back
+        long deadline = System.currentTimeMillis() + 10000;
+        while ((getResultCount() < 3) && (System.currentTimeMillis() < deadline)) {
+            lock.pause(1000);
+        }
+
+        List<String> requests = server.getRequests();
+        assertEquals(1, requests.size());
+        String request = requests.get(0);
+        assertTrue(request.contains("ids=1,2,3"));
+        assertTrue(request.contains("sizes=320x50,320x50,300x250"));
+        // shared parameters are sent once
+        assertEquals(request.indexOf("&sdkver="), request.lastIndexOf("&sdkver="));
+
+        assertEquals(2, loaded);
+        assertEquals(1, failed);
+        assertTrue(firstLoaded);
+        assertTrue(secondFailed);
+        assertTrue(thirdLoaded);
+    }
+
+    public void testNothingToLoad() {
+        getInstrumentation().runOnMainSync(new Runnable() {
+            @Override
+            public void run() {
+                first.setPlacementID(null);
+                assertFalse(BannerAdView.loadAdsInBatch(first));
+                assertFalse(BannerAdView.loadAdsInBatch());
+            }
+        });
+        assertEquals(0, server.getRequests().size());
+    }
+
+    private synchronized int getResultCount() {
+        return loaded + failed;
+    }
+
+    @Override
+    public void onAdLoaded(AdView adView) {
+        synchronized (this) {
+            loaded++;
+            if (adView == first) firstLoaded = true;
+            if (adView == third) thirdLoaded = true;
+        }
+        lock.unpause();
+    }
+
+    @Override
+    public void onAdRequestFailed(AdView adView) {
+        synchronized (this) {
+            failed++;
+            if (adView == second) secondFailed = true;
+        }
+        lock.unpause();
+    }
+
+    @Override
+    public void onAdExpanded(AdView adView) {
+    }
+
+    @Override
+    public void onAdCollapsed(AdView adView) {
+    }
+
+    @Override
+    public void onAdClicked(AdView adView) {
+    }
+}
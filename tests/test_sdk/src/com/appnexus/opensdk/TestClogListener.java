@@ -22,6 +22,9 @@ import com.appnexus.opensdk.utils.ClogListener;
 import com.appnexus.opensdk.util.TestUtil;
 import junit.framework.TestCase;
 
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
 public class TestClogListener extends TestCase {
 
     boolean didReceiveMessage;
@@ -34,6 +37,7 @@ public class TestClogListener extends TestCase {
     @Override
     protected void tearDown() throws Exception {
         Clog.unregisterAllListeners();
+        assertFalse(Clog.hasListenerFor(ClogListener.LOG_LEVEL.E));
         super.tearDown();
     }
 
@@ -186,6 +190,30 @@ public class TestClogListener extends TestCase {
         assertTrue(didReceiveMessage);
     }
 
+    public void testAsyncDispatch() throws Exception {
+        FilterClogListener wLevel = new FilterClogListener(ClogListener.LOG_LEVEL.W);
+        // the warning and the error
+        wLevel.received = new CountDownLatch(2);
+        Clog.registerListener(wLevel);
+        assertFalse(Clog.hasListenerFor(ClogListener.LOG_LEVEL.I));
+        assertTrue(Clog.hasListenerFor(ClogListener.LOG_LEVEL.W));
+
+        Clog.setAsyncDispatch(16);
+        try {
+            clogStuff();
+
+            assertTrue(wLevel.received.await(5, TimeUnit.SECONDS));
+
+            // dispatched in order, so the info would have come first
+            assertEquals(false, wLevel.didReceiveI);
+            assertEquals(true, wLevel.didReceiveW);
+            assertEquals(true, wLevel.didReceiveE);
+            assertEquals(0, Clog.getDroppedMessageCount());
+        } finally {
+            Clog.setAsyncDispatch(0);
+        }
+    }
+
     private void clogStuff() {
         Clog.v(TestUtil.testLogTag, "verbose");
         Clog.d(TestUtil.testLogTag, "debug");
@@ -199,6 +227,8 @@ public class TestClogListener extends TestCase {
         public LOG_LEVEL level;
         public boolean didReceiveV, didReceiveD, didReceiveI,
                 didReceiveW, didReceiveE;
+        // counted down for every message, if set
+        public CountDownLatch received;
 
 
         private FilterClogListener(LOG_LEVEL level) {
@@ -240,6 +270,8 @@ public class TestClogListener extends TestCase {
                 this.didReceiveE = true;
             else
                 assertTrue(false);
+            if (received != null)
+                received.countDown();
         }
 
         @Override
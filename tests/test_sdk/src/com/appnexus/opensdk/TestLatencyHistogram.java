@@ -0,0 +1,101 @@
+/*
+ *    Copyright 2013 APPNEXUS INC
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.appnexus.opensdk;
+
+import com.appnexus.opensdk.utils.LatencyHistogram;
+import junit.framework.TestCase;
+
+public class TestLatencyHistogram extends TestCase {
+
+    public void testEmpty() {
+        LatencyHistogram h = new LatencyHistogram();
+        assertEquals(0, h.getCount());
+        assertEquals(-1, h.percentile(0.95));
+    }
+
+    public void testPercentile() {
+        LatencyHistogram h = new LatencyHistogram();
+        for (int i = 0; i < 95; i++) {
+            h.record(100);
+        }
+        for (int i = 0; i < 5; i++) {
+            h.record(9000);
+        }
+        assertEquals(100, h.getCount());
+        assertEquals(LatencyHistogram.BUCKET_WIDTH, h.percentile(0.95));
+        assertEquals(9000 + LatencyHistogram.BUCKET_WIDTH, h.percentile(0.99));
+    }
+
+    public void testOverflowBucket() {
+        LatencyHistogram h = new LatencyHistogram();
+        h.record(Long.MAX_VALUE);
+        h.record(-5);
+        assertEquals(LatencyHistogram.BUCKET_WIDTH, h.percentile(0.5));
+        assertEquals((long) LatencyHistogram.BUCKET_COUNT * LatencyHistogram.BUCKET_WIDTH,
+                h.percentile(1.0));
+    }
+
+    public void testOldSamplesFade() {
+        LatencyHistogram h = new LatencyHistogram();
+        for (int i = 0; i < 1000; i++) {
+            h.record(10000);
+        }
+        for (int i = 0; i < 1000; i++) {
+            h.record(500);
+        }
+        // the slow samples have been halved away
+        assertEquals(750, h.percentile(0.95));
+        assertTrue(h.getCount() < 200);
+    }
+
+    public void testRoundTrip() {
+        LatencyHistogram h = new LatencyHistogram();
+        h.record(300);
+        h.record(1200);
+        h.record(1300);
+        LatencyHistogram copy = LatencyHistogram.fromString(h.toString());
+        assertEquals(h.getCount(), copy.getCount());
+        assertEquals(h.percentile(0.5), copy.percentile(0.5));
+        assertEquals(h.toString(), copy.toString());
+    }
+
+    public void testMerge() {
+        LatencyHistogram stored = new LatencyHistogram();
+        stored.record(300);
+        LatencyHistogram recent = new LatencyHistogram();
+        recent.record(5000);
+        recent.record(5000);
+        stored.merge(recent);
+        assertEquals(3, stored.getCount());
+        assertEquals(5000 + LatencyHistogram.BUCKET_WIDTH, stored.percentile(0.5));
+
+        // merging past MAX_SAMPLES halves like recording does
+        LatencyHistogram big = new LatencyHistogram();
+        for (int i = 0; i < 150; i++) {
+            big.record(100);
+        }
+        big.merge(LatencyHistogram.fromString(big.toString()));
+        assertTrue(big.getCount() < 200);
+    }
+
+    public void testMalformed() {
+        assertEquals(0, LatencyHistogram.fromString(null).getCount());
+        assertEquals(0, LatencyHistogram.fromString("1,2,3").getCount());
+        String bad = new LatencyHistogram().toString().replaceFirst("0", "x");
+        assertEquals(0, LatencyHistogram.fromString(bad).getCount());
+    }
+}
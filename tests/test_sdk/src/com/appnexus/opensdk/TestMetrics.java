@@ -0,0 +1,77 @@
+/*
+ *    Copyright 2013 APPNEXUS INC
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.appnexus.opensdk;
+
+import junit.framework.TestCase;
+
+import java.util.ArrayList;
+
+public class TestMetrics extends TestCase {
+
+    @Override
+    protected void tearDown() throws Exception {
+        Metrics.setSink(null);
+        super.tearDown();
+    }
+
+    public void testDefaultSink() {
+        long before = Metrics.getCount(Metrics.Counter.FILLS);
+        Metrics.count(Metrics.Counter.FILLS);
+        Metrics.count(Metrics.Counter.FILLS);
+        assertEquals(before + 2, Metrics.getCount(Metrics.Counter.FILLS));
+
+        Metrics.latency(Metrics.Stage.PARSE, 10);
+        assertTrue(Metrics.getLatency(Metrics.Stage.PARSE, 0.5) >= 0);
+
+        Metrics.gauge(Metrics.Gauge.LIVE_WEBVIEWS, 3);
+        Metrics.adjustGauge(Metrics.Gauge.LIVE_WEBVIEWS, -1);
+        assertEquals(2, Metrics.getGauge(Metrics.Gauge.LIVE_WEBVIEWS));
+    }
+
+    public void testCustomSink() {
+        final ArrayList<String> seen = new ArrayList<String>();
+        Metrics.setSink(new Metrics.Sink() {
+            @Override
+            public void onLatency(Metrics.Stage stage, long ms) {
+                seen.add(stage + "=" + ms);
+            }
+
+            @Override
+            public void onCount(Metrics.Counter counter, long delta) {
+                seen.add(counter + "+" + delta);
+            }
+
+            @Override
+            public void onGauge(Metrics.Gauge gauge, long value) {
+                seen.add(gauge + ":" + value);
+            }
+        });
+
+        long before = Metrics.getCount(Metrics.Counter.NO_FILLS);
+        Metrics.count(Metrics.Counter.NO_FILLS);
+        Metrics.latency(Metrics.Stage.HTTP, 42);
+        Metrics.latency(Metrics.Stage.HTTP, -1);
+        Metrics.gauge(Metrics.Gauge.QUEUED_INTERSTITIALS, 1);
+
+        assertEquals(3, seen.size());
+        assertEquals("NO_FILLS+1", seen.get(0));
+        assertEquals("HTTP=42", seen.get(1));
+        assertEquals("QUEUED_INTERSTITIALS:1", seen.get(2));
+        // the sink replaces the in-memory counters
+        assertEquals(before, Metrics.getCount(Metrics.Counter.NO_FILLS));
+    }
+}
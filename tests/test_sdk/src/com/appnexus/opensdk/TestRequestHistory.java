@@ -0,0 +1,99 @@
+/*
+ *    Copyright 2013 APPNEXUS INC
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.appnexus.opensdk;
+
+import com.appnexus.opensdk.utils.RequestHistory;
+import junit.framework.TestCase;
+
+import java.util.List;
+
+public class TestRequestHistory extends TestCase {
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        RequestHistory.clear();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        RequestHistory.clear();
+        super.tearDown();
+    }
+
+    private static RequestHistory.Record record(int i) {
+        return new RequestHistory.Record(i, 10, "http://example.com/mob?id=" + i,
+                "" + i, 200, "{}");
+    }
+
+    public void testNewestFirst() {
+        RequestHistory.add(record(1));
+        RequestHistory.add(record(2));
+        RequestHistory.add(record(3));
+
+        List<RequestHistory.Record> records = RequestHistory.getRecords();
+        assertEquals(3, records.size());
+        assertEquals("3", records.get(0).placementId);
+        assertEquals("1", records.get(2).placementId);
+    }
+
+    public void testOldestOverwritten() {
+        int total = RequestHistory.CAPACITY + 5;
+        for (int i = 0; i < total; i++) {
+            RequestHistory.add(record(i));
+        }
+
+        List<RequestHistory.Record> records = RequestHistory.getRecords();
+        assertEquals(RequestHistory.CAPACITY, records.size());
+        assertEquals("" + (total - 1), records.get(0).placementId);
+        assertEquals("5", records.get(RequestHistory.CAPACITY - 1).placementId);
+    }
+
+    public void testBodyTruncated() {
+        StringBuilder body = new StringBuilder();
+        while (body.length() <= RequestHistory.MAX_BODY_LENGTH) {
+            body.append("0123456789");
+        }
+        RequestHistory.Record r = new RequestHistory.Record(0, 0, "url", "1", 200,
+                body.toString());
+        assertEquals(RequestHistory.MAX_BODY_LENGTH, r.body.length());
+        assertTrue(r.bodyTruncated);
+
+        RequestHistory.Record empty = new RequestHistory.Record(0, 0, "url", "1", -1, null);
+        assertNull(empty.body);
+        assertFalse(empty.bodyTruncated);
+    }
+
+    public void testConcurrentAdds() throws Exception {
+        Thread[] threads = new Thread[4];
+        for (int t = 0; t < threads.length; t++) {
+            threads[t] = new Thread() {
+                @Override
+                public void run() {
+                    for (int i = 0; i < 1000; i++) {
+                        RequestHistory.add(record(i));
+                    }
+                }
+            };
+            threads[t].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertEquals(RequestHistory.CAPACITY, RequestHistory.getRecords().size());
+    }
+}
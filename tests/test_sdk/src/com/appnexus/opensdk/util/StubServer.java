@@ -0,0 +1,123 @@
+/*
+ *    Copyright 2013 APPNEXUS INC
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.appnexus.opensdk.util;
+
+import com.appnexus.opensdk.utils.Clog;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A minimal HTTP server on localhost that answers every request with the
+ * same canned JSON body and records the request lines it received.  Point
+ * Settings.BASE_URL at getBaseUrl() to use it in place of the ad server.
+ */
+public class StubServer implements Runnable {
+    private final ServerSocket serverSocket;
+    private final List<String> requests = new ArrayList<String>();
+    private volatile String body;
+    private volatile int status = 200;
+    private volatile boolean running = true;
+
+    public StubServer(String body) throws IOException {
+        this.body = body;
+        serverSocket = new ServerSocket(0, 8, InetAddress.getByName("127.0.0.1"));
+        Thread thread = new Thread(this, "StubServer");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    public String getBaseUrl() {
+        return "http://127.0.0.1:" + serverSocket.getLocalPort() + "/mob?";
+    }
+
+    public void setBody(String body) {
+        this.body = body;
+    }
+
+    public void setStatus(int status) {
+        this.status = status;
+    }
+
+    /**
+     * @return the path and query of every request served so far.
+     */
+    public synchronized List<String> getRequests() {
+        return new ArrayList<String>(requests);
+    }
+
+    public void shutdown() {
+        running = false;
+        try {
+            serverSocket.close();
+        } catch (IOException ignored) {
+        }
+    }
+
+    @Override
+    public void run() {
+        while (running) {
+            Socket socket = null;
+            try {
+                socket = serverSocket.accept();
+                serve(socket);
+            } catch (IOException e) {
+                if (running) Clog.w(TestUtil.testLogTag, "StubServer: " + e.getMessage());
+            } finally {
+                if (socket != null) {
+                    try {
+                        socket.close();
+                    } catch (IOException ignored) {
+                    }
+                }
+            }
+        }
+    }
+
+    private void serve(Socket socket) throws IOException {
+        BufferedReader in = new BufferedReader(
+                new InputStreamReader(socket.getInputStream(), "UTF-8"));
+        String requestLine = in.readLine();
+        if (requestLine == null) return;
+        // skip the headers, GET requests have no body
+        String line;
+        while (((line = in.readLine()) != null) && (line.length() > 0)) {
+        }
+
+        String[] parts = requestLine.split(" ");
+        synchronized (this) {
+            requests.add(parts.length > 1 ? parts[1] : requestLine);
+        }
+
+        byte[] content = body.getBytes("UTF-8");
+        String headers = "HTTP/1.1 " + status + (status == 200 ? " OK" : " Error") + "\r\n"
+                + "Content-Type: application/json; charset=UTF-8\r\n"
+                + "Content-Length: " + content.length + "\r\n"
+                + "Connection: close\r\n\r\n";
+        OutputStream out = socket.getOutputStream();
+        out.write(headers.getBytes("UTF-8"));
+        out.write(content);
+        out.flush();
+    }
+}